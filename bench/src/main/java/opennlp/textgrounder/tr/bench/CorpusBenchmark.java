@@ -0,0 +1,66 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import opennlp.textgrounder.tr.text.*;
+import opennlp.textgrounder.tr.topo.gaz.*;
+
+/**
+ * Loading a CompactCorpus from documents that are already in memory, so
+ * that only the interning of tokens, toponyms and candidate lists is timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CorpusBenchmark {
+
+  @Param({"20000"})
+  public int locations;
+
+  @Param({"4000"})
+  public int names;
+
+  @Param({"1000"})
+  public int documents;
+
+  @Param({"40"})
+  public int toponymsPerDocument;
+
+  private List<Document<Token>> source;
+
+  @Setup
+  public void setup() {
+    GeoNamesGazetteer gazetteer = SyntheticData.gazetteer(42, this.locations, this.names);
+    this.source = SyntheticData.documents(43, this.documents, this.toponymsPerDocument,
+                                          gazetteer, this.names);
+  }
+
+  @Benchmark
+  public StoredCorpus load() {
+    StoredCorpus corpus = Corpus.createStoredCorpus();
+    corpus.addSource(SyntheticData.source(this.source));
+    corpus.load();
+    return corpus;
+  }
+}
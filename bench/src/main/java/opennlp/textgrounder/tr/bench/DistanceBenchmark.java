@@ -0,0 +1,108 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import opennlp.textgrounder.tr.topo.*;
+
+/**
+ * Great-circle distances between coordinates and between regions. Each
+ * invocation walks a fixed array of random pairs, so the score is the time
+ * for pairCount distances.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class DistanceBenchmark {
+
+  @Param({"1024"})
+  public int pairCount;
+
+  /* Representatives per point-set region (GeoNames IPE expansion keeps 5 to 30). */
+  @Param({"10"})
+  public int pointSetSize;
+
+  private Coordinate[] coordinates;
+  private Region[] points;
+  private Region[] pointSets;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    this.coordinates = new Coordinate[this.pairCount * 2];
+    this.points = new Region[this.pairCount * 2];
+    this.pointSets = new Region[this.pairCount * 2];
+
+    for (int i = 0; i < this.pairCount * 2; i++) {
+      this.coordinates[i] = SyntheticData.randomCoordinate(random);
+      this.points[i] = new PointRegion(this.coordinates[i]);
+      this.pointSets[i] = SyntheticData.randomPointSet(random, this.pointSetSize);
+    }
+  }
+
+  @Benchmark
+  public double coordinateDistance() {
+    double total = 0.0;
+    for (int i = 0; i < this.pairCount; i++) {
+      total += this.coordinates[2 * i].distance(this.coordinates[2 * i + 1]);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double pointToPoint() {
+    double total = 0.0;
+    for (int i = 0; i < this.pairCount; i++) {
+      total += this.points[2 * i].distance(this.points[2 * i + 1]);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double pointToPointSet() {
+    double total = 0.0;
+    for (int i = 0; i < this.pairCount; i++) {
+      total += this.points[2 * i].distance(this.pointSets[2 * i + 1]);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public double pointSetToPointSet() {
+    double total = 0.0;
+    for (int i = 0; i < this.pairCount; i++) {
+      total += this.pointSets[2 * i].distance(this.pointSets[2 * i + 1]);
+    }
+    return total;
+  }
+
+  /** pointSetToPointSet with the approximate arc cosine. */
+  @Benchmark
+  public double pointSetToPointSetApprox() {
+    double total = 0.0;
+    for (int i = 0; i < this.pairCount; i++) {
+      total += this.pointSets[2 * i].approxDistance(this.pointSets[2 * i + 1]);
+    }
+    return total;
+  }
+}
@@ -0,0 +1,67 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import opennlp.textgrounder.tr.topo.gaz.*;
+
+/**
+ * GeoNamesGazetteer lookups: queryCount random names per invocation, of
+ * which roughly one in ten is not in the gazetteer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class GazetteerBenchmark {
+
+  @Param({"100000"})
+  public int locations;
+
+  @Param({"20000"})
+  public int names;
+
+  @Param({"1024"})
+  public int queryCount;
+
+  private GeoNamesGazetteer gazetteer;
+  private String[] queries;
+
+  @Setup
+  public void setup() {
+    this.gazetteer = SyntheticData.gazetteer(42, this.locations, this.names);
+
+    Random random = new Random(43);
+    this.queries = new String[this.queryCount];
+    for (int i = 0; i < this.queryCount; i++) {
+      this.queries[i] = SyntheticData.getName(random.nextInt(this.names + this.names / 10));
+    }
+  }
+
+  @Benchmark
+  public void lookup(Blackhole blackhole) {
+    for (String query : this.queries) {
+      blackhole.consume(this.gazetteer.lookup(query));
+    }
+  }
+}
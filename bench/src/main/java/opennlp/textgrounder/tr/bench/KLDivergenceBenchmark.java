@@ -0,0 +1,140 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import opennlp.textgrounder.worddist.*;
+
+/**
+ * FastDiscountedUnigramWordDist.fast_kl_divergence of one document against
+ * every cell, the way grid location ranks cells. Each invocation creates the
+ * document's cache once and then compares against all cellCount cells, so
+ * the score is the time to rank one document (without the sort).
+ *
+ * Word counts in documents and cells are drawn from a Zipfian distribution
+ * over vocabularySize words, which gives the usual mix of a few frequent
+ * words that every cell contains and a long tail that most don't.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class KLDivergenceBenchmark {
+
+  @Param({"1000"})
+  public int cellCount;
+
+  /* Tokens in the document; a tweet is about 20, a Wikipedia article 500+. */
+  @Param({"20", "500"})
+  public int documentTokens;
+
+  @Param({"5000"})
+  public int cellTokens;
+
+  @Param({"50000"})
+  public int vocabularySize;
+
+  @Param({"false", "true"})
+  public boolean interpolate;
+
+  /* Whether the cell distributions are frozen into sorted arrays. */
+  @Param({"true"})
+  public boolean frozen;
+
+  private DiscountedUnigramWordDist document;
+  private DiscountedUnigramWordDist[] cells;
+
+  private double[] zipfCumulative;
+  /* Overall probability of each word, indexed by word id. */
+  private double[] overallProbs;
+
+  private int zipfWord(Random random) {
+    int index = Arrays.binarySearch(this.zipfCumulative, random.nextDouble());
+    if (index < 0) {
+      index = -index - 1;
+    }
+    // Word ids start at 1.
+    return Math.min(index, this.vocabularySize - 1) + 1;
+  }
+
+  private DiscountedUnigramWordDist randomDist(
+      DiscountedUnigramWordDistFactory factory, Random random, int tokens) {
+    DiscountedUnigramWordDist dist =
+      (DiscountedUnigramWordDist) factory.create_word_dist(false);
+    for (int i = 0; i < tokens; i++) {
+      dist.model().add_item(zipfWord(random), 1.0);
+    }
+    // Stand-ins for what finish_after_global() computes from real data.
+    double seenOwp = 0.0;
+    for (int word = 1; word <= this.vocabularySize; word++) {
+      if (dist.model().contains(word)) {
+        seenOwp += this.overallProbs[word];
+      }
+    }
+    dist.unseen_mass_$eq(0.5 * dist.model().num_types() / tokens);
+    dist.overall_unseen_mass_$eq(this.interpolate ? 1.0 : 1.0 - seenOwp);
+    dist.finished_$eq(true);
+    return dist;
+  }
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    DiscountedUnigramWordDistFactory factory =
+      new PseudoGoodTuringUnigramWordDistFactory(this.interpolate ? "yes" : "no");
+
+    this.zipfCumulative = new double[this.vocabularySize];
+    this.overallProbs = new double[this.vocabularySize + 1];
+    double total = 0.0;
+    for (int i = 0; i < this.vocabularySize; i++) {
+      total += 1.0 / (i + 1);
+      this.zipfCumulative[i] = total;
+    }
+    for (int i = 0; i < this.vocabularySize; i++) {
+      this.zipfCumulative[i] /= total;
+      this.overallProbs[i + 1] = 1.0 / ((i + 1) * total);
+      factory.overall_word_probs().put(i + 1, this.overallProbs[i + 1]);
+    }
+    factory.owp_adjusted_$eq(true);
+
+    this.document = randomDist(factory, random, this.documentTokens);
+    this.cells = new DiscountedUnigramWordDist[this.cellCount];
+    for (int i = 0; i < this.cellCount; i++) {
+      this.cells[i] = randomDist(factory, random, this.cellTokens);
+      if (this.frozen) {
+        this.cells[i].freeze();
+      }
+    }
+  }
+
+  @Benchmark
+  public double rankCells() {
+    DiscountedUnigramKLDivergenceCache cache =
+      FastDiscountedUnigramWordDist.get_kl_divergence_cache(this.document);
+    double total = 0.0;
+    for (int i = 0; i < this.cellCount; i++) {
+      total += FastDiscountedUnigramWordDist.fast_kl_divergence(
+        this.document, cache, this.cells[i], this.interpolate, true);
+    }
+    return total;
+  }
+}
@@ -0,0 +1,108 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import opennlp.textgrounder.tr.resolver.*;
+import opennlp.textgrounder.tr.text.*;
+import opennlp.textgrounder.tr.topo.*;
+import opennlp.textgrounder.tr.topo.gaz.*;
+
+/**
+ * The minimum-distance resolvers on a synthetic corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ResolverBenchmark {
+
+  @Param({"20000"})
+  public int locations;
+
+  /* Distinct toponym names; locations / names is the average ambiguity. */
+  @Param({"4000"})
+  public int names;
+
+  @Param({"200"})
+  public int documents;
+
+  @Param({"40"})
+  public int toponymsPerDocument;
+
+  private StoredCorpus corpus;
+  private List<Document<StoredToken>> storedDocuments;
+  private BasicMinDistResolver basicResolver;
+  private WeightedMinDistResolver weightedResolver;
+
+  @Setup
+  public void setup() {
+    GeoNamesGazetteer gazetteer = SyntheticData.gazetteer(42, this.locations, this.names);
+    this.corpus = SyntheticData.corpus(SyntheticData.documents(
+      43, this.documents, this.toponymsPerDocument, gazetteer, this.names));
+
+    this.storedDocuments = new ArrayList<Document<StoredToken>>();
+    for (Document<StoredToken> document : this.corpus) {
+      this.storedDocuments.add(document);
+    }
+
+    this.basicResolver = new BasicMinDistResolver();
+    this.weightedResolver = new WeightedMinDistResolver(1);
+  }
+
+  /**
+   * checkCandidate for every candidate of every toponym, without the early
+   * exit on the current minimum, i.e. the worst case of disambiguate.
+   */
+  @Benchmark
+  public void basicCheckCandidate(Blackhole blackhole) {
+    for (Document<StoredToken> document : this.storedDocuments) {
+      for (Sentence<StoredToken> sentence : document) {
+        for (Toponym toponym : sentence.getToponyms()) {
+          for (Location candidate : toponym) {
+            blackhole.consume(this.basicResolver.checkCandidate(toponym, candidate, document, Double.MAX_VALUE));
+          }
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public StoredCorpus basicDisambiguate() {
+    return this.basicResolver.disambiguate(this.corpus);
+  }
+
+  /**
+   * One iteration of WeightedMinDistResolver training. updateWeights is
+   * private, so this also counts initializing the counts and weights, which
+   * is a single pass over the candidates. The resolver is made once per
+   * trial and keeps its distance table between calls on the same corpus, so
+   * after warmup this is the cost of a training pass with the distances
+   * cached, as in all but the first EM iteration.
+   */
+  @Benchmark
+  public WeightedMinDistResolver weightedUpdateWeights() {
+    this.weightedResolver.train(this.corpus);
+    return this.weightedResolver;
+  }
+}
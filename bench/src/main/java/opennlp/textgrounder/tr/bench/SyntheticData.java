@@ -0,0 +1,155 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.bench;
+
+import java.io.*;
+import java.util.*;
+
+import opennlp.textgrounder.tr.text.*;
+import opennlp.textgrounder.tr.topo.*;
+import opennlp.textgrounder.tr.topo.gaz.*;
+import opennlp.textgrounder.tr.util.Span;
+
+/**
+ * Random gazetteers and corpora for the benchmarks. Everything is generated
+ * from a seed, so two runs with the same parameters see the same data.
+ */
+public class SyntheticData {
+
+  private static final String[] COUNTRIES = { "US", "GB", "FR", "DE", "IN", "BR", "AU", "CA" };
+
+  /**
+   * A GeoNames dump with one country entry per country code, followed by
+   * populated places whose names are drawn from nameCount distinct names, so
+   * that on average each name is locationCount / nameCount ways ambiguous.
+   */
+  public static String geoNamesDump(long seed, int locationCount, int nameCount) {
+    Random random = new Random(seed);
+    StringBuilder dump = new StringBuilder();
+
+    for (int i = 0; i < COUNTRIES.length; i++) {
+      appendLine(dump, i, "Country " + COUNTRIES[i], "A", "PCLI", COUNTRIES[i],
+                 randomCoordinate(random), random.nextInt(100000000));
+    }
+
+    for (int i = 0; i < locationCount; i++) {
+      appendLine(dump, COUNTRIES.length + i, getName(random.nextInt(nameCount)), "P", "PPL",
+                 COUNTRIES[random.nextInt(COUNTRIES.length)], randomCoordinate(random),
+                 random.nextInt(1000000));
+    }
+
+    return dump.toString();
+  }
+
+  private static void appendLine(StringBuilder dump, int id, String name, String cat, String type,
+                                 String country, Coordinate coordinate, int population) {
+    dump.append(id).append('\t').append(name).append('\t').append(name).append('\t')
+        .append(name.toUpperCase()).append('\t')
+        .append(coordinate.getLatDegrees()).append('\t').append(coordinate.getLngDegrees()).append('\t')
+        .append(cat).append('\t').append(type).append('\t').append(country).append("\t\t")
+        .append(id % 50).append("\t\t\t\t").append(population).append("\t0\t0\tUTC\t2012-01-01\n");
+  }
+
+  public static GeoNamesGazetteer gazetteer(long seed, int locationCount, int nameCount) {
+    try {
+      return new GeoNamesGazetteer(new BufferedReader(new StringReader(
+        geoNamesDump(seed, locationCount, nameCount))), false);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static String getName(int index) {
+    return "Place " + index;
+  }
+
+  public static Coordinate randomCoordinate(Random random) {
+    return Coordinate.fromDegrees(random.nextDouble() * 180.0 - 90.0,
+                                  random.nextDouble() * 360.0 - 180.0);
+  }
+
+  public static PointSetRegion randomPointSet(Random random, int size) {
+    List<Coordinate> coordinates = new ArrayList<Coordinate>(size);
+    for (int i = 0; i < size; i++) {
+      coordinates.add(randomCoordinate(random));
+    }
+    return new PointSetRegion(coordinates);
+  }
+
+  /**
+   * Documents of three-sentence paragraphs in which every other token is a
+   * toponym, with its candidates looked up in the gazetteer. The documents
+   * are built once and can be read any number of times through source().
+   */
+  public static List<Document<Token>> documents(long seed, int documentCount, int toponymsPerDocument,
+                                                Gazetteer gazetteer, int nameCount) {
+    Random random = new Random(seed);
+    List<Document<Token>> documents = new ArrayList<Document<Token>>(documentCount);
+
+    for (int d = 0; d < documentCount; d++) {
+      final List<Sentence<Token>> sentences = new ArrayList<Sentence<Token>>();
+      int remaining = toponymsPerDocument;
+
+      for (int s = 0; remaining > 0; s++) {
+        List<Token> tokens = new ArrayList<Token>();
+        List<Span<Token>> spans = new ArrayList<Span<Token>>();
+
+        for (int t = 0; t < 8 && remaining > 0; t++, remaining--) {
+          tokens.add(new SimpleToken("word" + random.nextInt(1000)));
+          String name = getName(random.nextInt(nameCount));
+          List<Location> candidates = gazetteer.lookup(name);
+          if (candidates == null) {
+            candidates = new ArrayList<Location>();
+          }
+          Toponym toponym = new SimpleToponym(name, candidates);
+          spans.add(new Span<Token>(tokens.size(), tokens.size() + 1, toponym));
+          tokens.add(toponym);
+        }
+
+        sentences.add(new SimpleSentence<Token>("s" + s, tokens, spans));
+      }
+
+      documents.add(new Document<Token>("d" + d) {
+        public Iterator<Sentence<Token>> iterator() {
+          return sentences.iterator();
+        }
+      });
+    }
+
+    return documents;
+  }
+
+  public static DocumentSource source(final List<Document<Token>> documents) {
+    return new DocumentSource() {
+      private final Iterator<Document<Token>> iterator = documents.iterator();
+
+      public boolean hasNext() {
+        return this.iterator.hasNext();
+      }
+
+      public Document<Token> next() {
+        return this.iterator.next();
+      }
+    };
+  }
+
+  public static StoredCorpus corpus(List<Document<Token>> documents) {
+    StoredCorpus corpus = Corpus.createStoredCorpus();
+    corpus.addSource(source(documents));
+    corpus.load();
+    return corpus;
+  }
+}
@@ -5,7 +5,10 @@
 package opennlp.textgrounder.tr.app;
 
 import org.apache.commons.cli.*;
+import opennlp.textgrounder.tr.text.DocumentSource;
+import opennlp.textgrounder.tr.text.prep.*;
 import opennlp.textgrounder.tr.topo.*;
+import opennlp.textgrounder.tr.topo.gaz.Gazetteer;
 import java.io.*;
 
 public class BaseApp {
@@ -44,6 +47,10 @@ public class BaseApp {
     
     private int numIterations = 1;
 
+    private long maxCachedDistances = -1;
+
+    private int numThreads = -1; // -1 if -nt wasn't given, so each consumer picks its own default
+
     private int knnForLP = -1;
 
     public static enum RESOLVER_TYPE {
@@ -80,6 +87,8 @@ public class BaseApp {
         options.addOption("ig", "input-graph", true, "path to input graph for label propagation resolvers");
         options.addOption("r", "resolver", true, "resolver (RandomResolver, BasicMinDistResolver, WeightedMinDistResolver, LabelPropDefaultRuleResolver, LabelPropContextSensitiveResolver, LabelPropComplexResolver) [default = BasicMinDistResolver]");
         options.addOption("it", "iterations", true, "number of iterations for iterative models [default = 1]");
+        options.addOption("nt", "num-threads", true, "number of worker threads for parallel resolvers (BasicMinDistResolver, WeightedMinDistResolver, LabelPropResolver), gazetteer import and toponym annotation during corpus import; if not given, gazetteer import uses one thread per processor and everything else runs on a single thread");
+        options.addOption("dcs", "distance-cache-size", true, "maximum number of candidate distances cached by WeightedMinDistResolver [default = 16777216]");
         options.addOption("o", "output", true, "output path");
         options.addOption("ok", "output-kml", true, "kml output path");
         options.addOption("okd", "output-kml-dynamic", true, "dynamic kml output path");
@@ -87,10 +96,10 @@ public class BaseApp {
         options.addOption("gold", "output-gold-locations", false, "output gold locations rather than system locations in KML");
         options.addOption("gt", "gold-toponyms", false, "use gold toponyms (named entities) if available");
         options.addOption("g", "geo-gazetteer-filename", true, "GeoNames gazetteer filename");
-        options.addOption("sg", "serialized-gazetteer-path", true, "path to serialized GeoNames gazetteer");
-        options.addOption("sci", "serialized-corpus-input-path", true, "path to serialized corpus for input");
+        options.addOption("sg", "serialized-gazetteer-path", true, "path to GeoNames gazetteer written by ImportGazetteer (mapped binary, or Java-serialized if ending in .ser/.gz); a mapped one replaces the gazetteer recorded in a binary corpus");
+        options.addOption("sci", "serialized-corpus-input-path", true, "path to corpus written by ImportCorpus or RunResolver (binary, or Java-serialized if ending in .ser/.gz)");
         //options.addOption("sgci", "serialized-gold-corpus-input-path", true, "path to serialized gold corpus for input");
-        options.addOption("sco", "serialized-corpus-output-path", true, "path to serialized corpus for output");
+        options.addOption("sco", "serialized-corpus-output-path", true, "path to serialized corpus for output (binary, or Java-serialized if ending in .ser/.gz)");
         //options.addOption("tr", "tr-conll", false, "read input path as TR-CoNLL directory");
         options.addOption("cf", "corpus-format", true, "corpus format (Plain, TrCoNLL, GeoText) [default = Plain]");
 
@@ -252,9 +261,14 @@ public class BaseApp {
                 case 'n':
                     if(option.getOpt().equals("ner"))
                         setHighRecallNER(new Integer(value)!=0);
+                    else if(option.getOpt().equals("nt"))
+                        numThreads = Integer.parseInt(value);
                     break;
                 case 'd':
-                    doKMeans = true;
+                    if(option.getOpt().equals("dkm"))
+                        doKMeans = true;
+                    else if(option.getOpt().equals("dcs"))
+                        maxCachedDistances = Long.parseLong(value);
                     break;
             }
         }
@@ -303,6 +317,28 @@ public class BaseApp {
         return numIterations;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /* Wraps source in a ToponymAnnotator, or with -nt greater than 1, in a
+     * ParallelToponymAnnotator with that many worker threads. */
+    protected DocumentSource annotateToponyms(DocumentSource source,
+                                              NamedEntityRecognizerFactory recognizerFactory,
+                                              Gazetteer gazetteer) throws Exception {
+        if(getNumThreads() > 1)
+            return new ParallelToponymAnnotator(source, recognizerFactory, gazetteer, null, getNumThreads());
+        return new ToponymAnnotator(source, recognizerFactory.create(), gazetteer, null);
+    }
+
+    public long getMaxCachedDistances() {
+        return maxCachedDistances;
+    }
+
     public String getOutputPath() {
         return outputPath;
     }
@@ -385,7 +421,7 @@ public class BaseApp {
     }
 
 	public void setHighRecallNER(boolean highRecallNER) {
-		highRecallNER = highRecallNER;
+		this.highRecallNER = highRecallNER;
 	}
 
 	public boolean isHighRecallNER() {
@@ -7,6 +7,7 @@ import opennlp.textgrounder.tr.text.*;
 import opennlp.textgrounder.tr.text.io.*;
 import opennlp.textgrounder.tr.text.prep.*;
 import opennlp.textgrounder.tr.topo.gaz.*;
+import opennlp.textgrounder.tr.util.*;
 import java.io.*;
 import java.util.zip.*;
 
@@ -29,7 +30,7 @@ public class ImportCorpus extends BaseApp {
         StoredCorpus corpus = currentRun.doImport(currentRun.getInputPath(), currentRun.getSerializedGazetteerPath(), currentRun.getCorpusFormat(), currentRun.getUseGoldToponyms(), currentRun.getSentsPerDocument());
         
         if(currentRun.getSerializedCorpusOutputPath() != null)
-            currentRun.serialize(corpus, currentRun.getSerializedCorpusOutputPath());
+            currentRun.serialize(corpus, currentRun.getSerializedCorpusOutputPath(), currentRun.getSerializedGazetteerPath());
         if(currentRun.getOutputPath() != null)
             currentRun.writeToXML(corpus, currentRun.getOutputPath());
     }
@@ -48,22 +49,17 @@ public class ImportCorpus extends BaseApp {
             checkExists(serGazInputPath);
 
         Tokenizer tokenizer = new OpenNLPTokenizer();
-        OpenNLPRecognizer recognizer = new OpenNLPRecognizer();
-
-        GeoNamesGazetteer gnGaz = null;
-        System.out.println("Reading serialized GeoNames gazetteer from " + serGazInputPath + " ...");
-        ObjectInputStream ois = null;
-        if(serGazInputPath.toLowerCase().endsWith(".gz")) {
-            GZIPInputStream gis = new GZIPInputStream(new FileInputStream(serGazInputPath));
-            ois = new ObjectInputStream(gis);
-        }
-        else {
-            FileInputStream fis = new FileInputStream(serGazInputPath);
-            ois = new ObjectInputStream(fis);
-        }
-        gnGaz = (GeoNamesGazetteer) ois.readObject();
-        if(isHighRecallNER())
-        	recognizer = new HighRecallToponymRecognizer(gnGaz.getUniqueLocationNameSet());
+
+        System.out.println("Reading GeoNames gazetteer from " + serGazInputPath + " ...");
+        Gazetteer gnGaz = TopoUtil.readGazetteer(serGazInputPath);
+        final ToponymTrie toponymTrie = isHighRecallNER() ? TopoUtil.getToponymTrie(gnGaz) : null;
+        NamedEntityRecognizerFactory recognizerFactory = new NamedEntityRecognizerFactory() {
+            public NamedEntityRecognizer create() throws Exception {
+                if(toponymTrie != null)
+                    return new HighRecallToponymRecognizer(toponymTrie);
+                return new OpenNLPRecognizer();
+            }
+        };
         System.out.println("Done.");
 
         System.out.print("Reading raw corpus from " + corpusInputPath + " ...");
@@ -78,29 +74,29 @@ public class ImportCorpus extends BaseApp {
             }
             else {
                 if(corpusInputFile.isDirectory())
-                    corpus.addSource(new ToponymAnnotator(
+                    corpus.addSource(annotateToponyms(
                            new ToponymRemover(new TrXMLDirSource(new File(corpusInputPath), tokenizer)),
-                           recognizer, gnGaz, null));
+                           recognizerFactory, gnGaz));
                 else
-                    corpus.addSource(new ToponymAnnotator(
+                    corpus.addSource(annotateToponyms(
                            new ToponymRemover(new TrXMLSource(new BufferedReader(new FileReader(corpusInputPath)), tokenizer)),
-                           recognizer, gnGaz, null));
+                           recognizerFactory, gnGaz));
             }
         }
         else if(corpusFormat == CORPUS_FORMAT.GEOTEXT) {
-            corpus.addSource(new ToponymAnnotator(new GeoTextSource(
+            corpus.addSource(annotateToponyms(new GeoTextSource(
                 new BufferedReader(new FileReader(corpusInputPath)), tokenizer),
-                recognizer, gnGaz, null));
+                recognizerFactory, gnGaz));
         }
 	else if (corpusInputPath.endsWith("txt")) {
-            corpus.addSource(new ToponymAnnotator(new PlainTextSource(
+            corpus.addSource(annotateToponyms(new PlainTextSource(
                              new BufferedReader(new FileReader(corpusInputPath)), new OpenNLPSentenceDivider(), tokenizer, corpusInputPath),
-                recognizer, gnGaz, null));
+                recognizerFactory, gnGaz));
 	}
         else {
-            corpus.addSource(new ToponymAnnotator(new PlainTextDirSource(
+            corpus.addSource(annotateToponyms(new PlainTextDirSource(
                 new File(corpusInputPath), new OpenNLPSentenceDivider(), tokenizer),
-                recognizer, gnGaz, null));
+                recognizerFactory, gnGaz));
         }
         corpus.setFormat(corpusFormat);
         //if(corpusFormat != CORPUS_FORMAT.GEOTEXT)
@@ -119,8 +115,21 @@ public class ImportCorpus extends BaseApp {
     }
 
     public void serialize(Corpus corpus, String serializedCorpusPath) throws Exception {
+        serialize(corpus, serializedCorpusPath, null);
+    }
+
+    /* Writes the binary corpus format (with candidates stored as ids into the gazetteer,
+     * if it's a mapped one), unless the path asks for Java serialization with .ser or .gz. */
+    public void serialize(Corpus corpus, String serializedCorpusPath, String gazetteerPath) throws Exception {
 
         System.out.print("\nSerializing corpus to " + serializedCorpusPath + " ...");
+
+        String lowerPath = serializedCorpusPath.toLowerCase();
+        if(corpus instanceof StoredCorpus && !lowerPath.endsWith(".ser") && !lowerPath.endsWith(".gz")) {
+            BinaryCorpus.write((StoredCorpus) corpus, serializedCorpusPath, gazetteerPath);
+            System.out.println("done.");
+            return;
+        }
         
         ObjectOutputStream oos = null;
         if(serializedCorpusPath.toLowerCase().endsWith(".gz")) {
@@ -23,27 +23,55 @@ public class ImportGazetteer extends BaseApp {
         checkExists(gazInputPath);
         
         GeoNamesGazetteer gnGaz = null;
+        BufferedReader reader;
+        ZipInputStream zis = null;
         if(gazInputPath.toLowerCase().endsWith(".zip")) {
             ZipFile zf = new ZipFile(gazInputPath);
-            ZipInputStream zis = new ZipInputStream(new FileInputStream(gazInputPath));
+            zis = new ZipInputStream(new FileInputStream(gazInputPath));
             ZipEntry ze = zis.getNextEntry();
-            gnGaz = new GeoNamesGazetteer(new BufferedReader(new InputStreamReader(zf.getInputStream(ze))), runKMeans);
-            zis.close();
+            reader = new BufferedReader(new InputStreamReader(zf.getInputStream(ze)), 1 << 20);
         }
         else {
-            gnGaz = new GeoNamesGazetteer(new BufferedReader(new FileReader(gazInputPath)), runKMeans);
+            reader = new BufferedReader(new FileReader(gazInputPath), 1 << 20);
         }
 
+        if(getNumThreads() > 0)
+            gnGaz = new GeoNamesGazetteer(reader, runKMeans, GeoNamesGazetteer.DEFAULT_POINT_RATIO,
+                                          GeoNamesGazetteer.DEFAULT_MIN_POINTS, GeoNamesGazetteer.DEFAULT_MAX_POINTS,
+                                          GeoNamesGazetteer.DEFAULT_MAX_CONSIDERED, getNumThreads());
+        else
+            gnGaz = new GeoNamesGazetteer(reader, runKMeans);
+
+        if(zis != null)
+            zis.close();
+
         System.out.println("Done.");
 
         return gnGaz;
     }
 
+    /* Writes the memory-mapped binary format (see MappedGazetteer), unless the output path ends
+     * in .ser or .gz, in which case the gazetteer is Java-serialized as before. */
     public void serialize(GeoNamesGazetteer gnGaz, String serializedGazOutputPath) throws Exception {
+        String lowerPath = serializedGazOutputPath.toLowerCase();
+        if(!lowerPath.endsWith(".ser") && !lowerPath.endsWith(".gz")) {
+            System.out.print("Writing mapped GeoNames gazetteer to " + serializedGazOutputPath + " ...");
+            MappedGazetteer.write(gnGaz, serializedGazOutputPath);
+            System.out.println("done.");
+            return;
+        }
+
+        // With high-recall NER on, save the gazetteer with its toponym trie, so it needn't be built on loading.
+        if(isHighRecallNER()) {
+            System.out.print("Building toponym trie ...");
+            ToponymTrie trie = gnGaz.getToponymTrie();
+            System.out.println("done (" + trie.getNodeCount() + " nodes).");
+        }
+
         System.out.print("Serializing GeoNames gazetteer to " + serializedGazOutputPath + " ...");
 
         ObjectOutputStream oos = null;
-        if(serializedGazOutputPath.toLowerCase().endsWith(".gz")) {
+        if(lowerPath.endsWith(".gz")) {
             GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(serializedGazOutputPath));
             oos = new ObjectOutputStream(gos);
         }
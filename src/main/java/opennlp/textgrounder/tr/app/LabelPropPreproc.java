@@ -8,7 +8,6 @@ import opennlp.textgrounder.tr.topo.gaz.*;
 import opennlp.textgrounder.tr.util.*;
 import java.io.*;
 import java.util.*;
-import java.util.zip.*;
 
 public class LabelPropPreproc extends BaseApp {
 
@@ -193,16 +192,7 @@ public class LabelPropPreproc extends BaseApp {
         StoredCorpus corpus;
         if(serCorpusPath != null) {
             System.out.print("Reading serialized corpus from " + serCorpusPath + " ...");
-            ObjectInputStream ois = null;
-            if(serCorpusPath.toLowerCase().endsWith(".gz")) {
-                GZIPInputStream gis = new GZIPInputStream(new FileInputStream(serCorpusPath));
-                ois = new ObjectInputStream(gis);
-            }
-            else {
-                FileInputStream fis = new FileInputStream(serCorpusPath);
-                ois = new ObjectInputStream(fis);
-            }
-            corpus = (StoredCorpus) ois.readObject();
+            corpus = TopoUtil.readStoredCorpusFromSerialized(serCorpusPath, serGazPath);
             System.out.println("done.");
         }
         else {
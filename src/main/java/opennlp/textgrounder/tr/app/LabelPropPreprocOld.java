@@ -8,7 +8,6 @@ import opennlp.textgrounder.tr.topo.gaz.*;
 import opennlp.textgrounder.tr.util.*;
 import java.io.*;
 import java.util.*;
-import java.util.zip.*;
 
 public class LabelPropPreprocOld extends BaseApp {
 
@@ -35,9 +34,7 @@ public class LabelPropPreprocOld extends BaseApp {
         OpenNLPRecognizer recognizer = new OpenNLPRecognizer();
 
         System.out.println("Reading serialized GeoNames gazetteer from " + getSerializedGazetteerPath() + " ...");
-        GZIPInputStream gis = new GZIPInputStream(new FileInputStream(getSerializedGazetteerPath()));
-        ObjectInputStream ois = new ObjectInputStream(gis);
-        GeoNamesGazetteer gnGaz = (GeoNamesGazetteer) ois.readObject();
+        Gazetteer gnGaz = TopoUtil.readGazetteer(getSerializedGazetteerPath());
         System.out.println("Done.");
 
         StoredCorpus corpus = Corpus.createStoredCorpus();
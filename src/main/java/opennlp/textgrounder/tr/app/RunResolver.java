@@ -30,7 +30,11 @@ public class RunResolver extends BaseApp {
         }
 
         Tokenizer tokenizer = new OpenNLPTokenizer();
-        OpenNLPRecognizer recognizer = new OpenNLPRecognizer();
+        NamedEntityRecognizerFactory recognizerFactory = new NamedEntityRecognizerFactory() {
+            public NamedEntityRecognizer create() throws Exception {
+                return new OpenNLPRecognizer();
+            }
+        };
 
         StoredCorpus goldCorpus = null;
         if(currentRun.getCorpusFormat() == CORPUS_FORMAT.TRCONLL) {
@@ -49,11 +53,12 @@ public class RunResolver extends BaseApp {
         StoredCorpus testCorpus;
         if(currentRun.getSerializedCorpusInputPath() != null) {
             System.out.print("Reading serialized corpus from " + currentRun.getSerializedCorpusInputPath() + " ...");
-            testCorpus = TopoUtil.readStoredCorpusFromSerialized(currentRun.getSerializedCorpusInputPath());
+            testCorpus = TopoUtil.readStoredCorpusFromSerialized(currentRun.getSerializedCorpusInputPath(), currentRun.getSerializedGazetteerPath());
             System.out.println("done.");
         }
         else {
             ImportCorpus importCorpus = new ImportCorpus();
+            importCorpus.setNumThreads(currentRun.getNumThreads());
             testCorpus = importCorpus.doImport(currentRun.getInputPath(), currentRun.getSerializedGazetteerPath(), currentRun.getCorpusFormat(), currentRun.getUseGoldToponyms(), currentRun.getSentsPerDocument());
         }
 
@@ -72,10 +77,10 @@ public class RunResolver extends BaseApp {
                     new BufferedReader(new FileReader(currentRun.getAdditionalInputPath())), new OpenNLPSentenceDivider(), tokenizer),
                     recognizer,
                     multiGaz));*/
-            trainCorpus.addSource(new ToponymAnnotator(new GigawordSource(
+            trainCorpus.addSource(currentRun.annotateToponyms(new GigawordSource(
                     new BufferedReader(new InputStreamReader(
                     new GZIPInputStream(new FileInputStream(currentRun.getAdditionalInputPath())))), 10, 40000),
-                    recognizer,
+                    recognizerFactory,
                     multiGaz));
             trainCorpus.addSource(new TrXMLDirSource(new File(currentRun.getInputPath()), tokenizer));
             trainCorpus.setFormat(currentRun.getCorpusFormat());
@@ -94,7 +99,10 @@ public class RunResolver extends BaseApp {
         }
         else if(currentRun.getResolverType() == RESOLVER_TYPE.WEIGHTED_MIN_DIST) {
             System.out.println("Running WEIGHTED MINIMUM DISTANCE resolver with " + currentRun.getNumIterations() + " iteration(s)...");
-            resolver = new WeightedMinDistResolver(currentRun.getNumIterations());
+            if(currentRun.getMaxCachedDistances() >= 0)
+                resolver = new WeightedMinDistResolver(currentRun.getNumIterations(), currentRun.getMaxCachedDistances());
+            else
+                resolver = new WeightedMinDistResolver(currentRun.getNumIterations());
         }
         else if(currentRun.getResolverType() == RESOLVER_TYPE.DOC_DIST) {
             System.out.println("Running DOC DIST resolver, using log file at " + currentRun.getLogFilePath() + " ...");
@@ -106,7 +114,7 @@ public class RunResolver extends BaseApp {
         }
         else if(currentRun.getResolverType() == RESOLVER_TYPE.LABEL_PROP) {
             System.out.print("Running LABEL PROP resolver...");
-            resolver = new LabelPropResolver(currentRun.getLogFilePath(), currentRun.getKnnForLP());
+            resolver = new LabelPropResolver(currentRun.getLogFilePath(), currentRun.getKnnForLP(), currentRun.getNumThreads());
         }
         else if(currentRun.getResolverType() == RESOLVER_TYPE.LABEL_PROP_DEFAULT_RULE) {
             System.out.print("Running LABEL PROP DEFAULT RULE resolver, using graph at " + currentRun.getGraphInputPath() + " ...");
@@ -139,6 +147,8 @@ public class RunResolver extends BaseApp {
             resolver = new BasicMinDistResolver();
         }
 
+        resolver.setNumThreads(currentRun.getNumThreads());
+
         if(currentRun.getAdditionalInputPath() != null)
             resolver.train(trainCorpus);
         StoredCorpus disambiguated = resolver.disambiguate(testCorpus);
@@ -12,37 +12,44 @@ import java.util.*;
 public class BasicMinDistResolver extends Resolver {
 
   /* This implementation of disambiguate immediately stops computing distance
-   * totals for candidates when it becomes clear that they aren't minimal. */
+   * totals for candidates when it becomes clear that they aren't minimal.
+   * Documents are independent, so they may be resolved in parallel. */
   @Override
   public StoredCorpus disambiguate(StoredCorpus corpus) {
-    for (Document<StoredToken> doc : corpus) {
-      if(!doc.isTrain() && !doc.isTest()) {
-        for (Sentence<StoredToken> sent : doc) {
-            for (Toponym toponym : sent.getToponyms()) {
-                double min = Double.MAX_VALUE;
-                int minIdx = -1;
-                
-                int idx = 0;
-                for (Location candidate : toponym) {
-                    Double candidateMin = this.checkCandidate(toponym, candidate, doc, min);
-                    if (candidateMin != null) {
-                        min = candidateMin;
-                        minIdx = idx;
-                    }
-                    idx++;
-                }
-                
-                if (minIdx > -1) {
-                    toponym.setSelectedIdx(minIdx);
-                }
-            }
+    forEachDocument(corpus, new DocumentTask() {
+      public void process(Document<StoredToken> doc, int worker) {
+        if(!doc.isTrain() && !doc.isTest()) {
+          disambiguateDocument(doc);
         }
       }
-    }
+    });
     
     return corpus;
   }
 
+  private void disambiguateDocument(Document<StoredToken> doc) {
+    for (Sentence<StoredToken> sent : doc) {
+        for (Toponym toponym : sent.getToponyms()) {
+            double min = Double.MAX_VALUE;
+            int minIdx = -1;
+            
+            int idx = 0;
+            for (Location candidate : toponym) {
+                Double candidateMin = this.checkCandidate(toponym, candidate, doc, min);
+                if (candidateMin != null) {
+                    min = candidateMin;
+                    minIdx = idx;
+                }
+                idx++;
+            }
+            
+            if (minIdx > -1) {
+                toponym.setSelectedIdx(minIdx);
+            }
+        }
+    }
+  }
+
   /* Returns the minimum total distance to all other locations in the document
    * for the candidate, or null if it's greater than the current minimum. */
   public Double checkCandidate(Toponym toponym, Location candidate, Document<StoredToken> doc, double currentMinTotal) {
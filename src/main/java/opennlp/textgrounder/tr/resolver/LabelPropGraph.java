@@ -0,0 +1,420 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.resolver;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An undirected weighted graph over nodes 0..n-1 with seed label scores,
+ * and modified adsorption (MAD) label propagation over it, as Junto's
+ * Adsorption.Run does it in "modified" mode, but on int node and label ids
+ * instead of string-keyed hash maps.
+ *
+ * Edges are added in any order and stored as CSR adjacency arrays; as with
+ * Junto's graph, adding an edge again replaces its weight. Seed scores for
+ * a (node, label) pair after the first are ignored. The estimated scores
+ * are kept as sparse vectors, and a label is only in a node's vector once
+ * it has reached the node (in Junto, once it is a key of the node's
+ * estimated label map), so that getBestLabel chooses among the same labels.
+ * Junto's dummy label is left out, since it doesn't change the scores of
+ * the others.
+ */
+public class LabelPropGraph {
+
+    public static final double BETA = 2.0;
+
+    private int nodeCount = 0;
+
+    private int edgeCount = 0;
+    private int[] edgeFrom = new int[1024];
+    private int[] edgeTo = new int[1024];
+    private double[] edgeWeights = new double[1024];
+
+    private int seedCount = 0;
+    private int[] seedNodes = new int[256];
+    private int[] seedLabels = new int[256];
+    private double[] seedScores = new double[256];
+
+    private int labelCount = 0;
+
+    /* The neighbors of node v are neighbors[i] for
+     * neighborStarts[v] <= i < neighborStarts[v + 1]. */
+    private int[] neighborStarts;
+    private int[] neighbors;
+    private double[] weights;
+
+    /* Likewise for the injected (seed) labels of each node, and for the
+     * estimated labels after propagation. */
+    private int[] injectedStarts;
+    private int[] injectedLabels;
+    private double[] injectedScores;
+
+    private int[] estimatedStarts;
+    private int[] estimatedLabels;
+    private double[] estimatedScores;
+
+    private double[] contProbs;
+    private double[] injProbs;
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public void addEdge(int from, int to, double weight) {
+        if (this.edgeCount == this.edgeFrom.length) {
+            this.edgeFrom = Arrays.copyOf(this.edgeFrom, this.edgeCount * 2);
+            this.edgeTo = Arrays.copyOf(this.edgeTo, this.edgeCount * 2);
+            this.edgeWeights = Arrays.copyOf(this.edgeWeights, this.edgeCount * 2);
+        }
+        this.edgeFrom[this.edgeCount] = from;
+        this.edgeTo[this.edgeCount] = to;
+        this.edgeWeights[this.edgeCount] = weight;
+        this.edgeCount++;
+        this.nodeCount = Math.max(this.nodeCount, Math.max(from, to) + 1);
+        this.neighborStarts = null;
+    }
+
+    /**
+     * Seed a node with a score for a label. The node must already have an
+     * edge; seeds for nodes outside the graph are ignored, as in Junto.
+     */
+    public void addSeed(int node, int label, double score) {
+        if (node < 0 || node >= this.nodeCount) {
+            return;
+        }
+        if (this.seedCount == this.seedNodes.length) {
+            this.seedNodes = Arrays.copyOf(this.seedNodes, this.seedCount * 2);
+            this.seedLabels = Arrays.copyOf(this.seedLabels, this.seedCount * 2);
+            this.seedScores = Arrays.copyOf(this.seedScores, this.seedCount * 2);
+        }
+        this.seedNodes[this.seedCount] = node;
+        this.seedLabels[this.seedCount] = label;
+        this.seedScores[this.seedCount] = score;
+        this.seedCount++;
+        this.labelCount = Math.max(this.labelCount, label + 1);
+        this.neighborStarts = null;
+    }
+
+    /**
+     * Sort the edges and seeds of each node into CSR arrays, keeping the
+     * last weight of a repeated edge and the first score of a repeated seed.
+     */
+    private void build() {
+        int n = this.nodeCount;
+
+        this.neighborStarts = new int[n + 1];
+        for (int i = 0; i < this.edgeCount; i++) {
+            this.neighborStarts[this.edgeFrom[i] + 1]++;
+            this.neighborStarts[this.edgeTo[i] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            this.neighborStarts[v + 1] += this.neighborStarts[v];
+        }
+        // Each half-edge as (neighbor << 32 | order added), so that sorting
+        // a node's entries groups repeats of an edge with the latest last.
+        long[] entries = new long[2 * this.edgeCount];
+        int[] next = Arrays.copyOf(this.neighborStarts, n);
+        for (int i = 0; i < this.edgeCount; i++) {
+            entries[next[this.edgeFrom[i]]++] = ((long) this.edgeTo[i] << 32) | (2 * i);
+            entries[next[this.edgeTo[i]]++] = ((long) this.edgeFrom[i] << 32) | (2 * i + 1);
+        }
+        int[] starts = new int[n + 1];
+        int[] targets = new int[entries.length];
+        double[] targetWeights = new double[entries.length];
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            starts[v] = count;
+            int end = this.neighborStarts[v + 1];
+            Arrays.sort(entries, this.neighborStarts[v], end);
+            for (int i = this.neighborStarts[v]; i < end; i++) {
+                int target = (int) (entries[i] >>> 32);
+                if (i + 1 < end && (int) (entries[i + 1] >>> 32) == target) {
+                    continue;
+                }
+                targets[count] = target;
+                targetWeights[count] = this.edgeWeights[(int) (entries[i] & 0xFFFFFFFFL) / 2];
+                count++;
+            }
+        }
+        starts[n] = count;
+        this.neighborStarts = starts;
+        this.neighbors = Arrays.copyOf(targets, count);
+        this.weights = Arrays.copyOf(targetWeights, count);
+
+        this.injectedStarts = new int[n + 1];
+        for (int i = 0; i < this.seedCount; i++) {
+            this.injectedStarts[this.seedNodes[i] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            this.injectedStarts[v + 1] += this.injectedStarts[v];
+        }
+        long[] seeds = new long[this.seedCount];
+        next = Arrays.copyOf(this.injectedStarts, n);
+        for (int i = 0; i < this.seedCount; i++) {
+            seeds[next[this.seedNodes[i]]++] = ((long) this.seedLabels[i] << 32) | i;
+        }
+        starts = new int[n + 1];
+        int[] labels = new int[this.seedCount];
+        double[] scores = new double[this.seedCount];
+        count = 0;
+        for (int v = 0; v < n; v++) {
+            starts[v] = count;
+            int begin = this.injectedStarts[v];
+            int end = this.injectedStarts[v + 1];
+            Arrays.sort(seeds, begin, end);
+            for (int i = begin; i < end; i++) {
+                int label = (int) (seeds[i] >>> 32);
+                if (i > begin && (int) (seeds[i - 1] >>> 32) == label) {
+                    continue;
+                }
+                labels[count] = label;
+                scores[count] = this.seedScores[(int) (seeds[i] & 0xFFFFFFFFL)];
+                count++;
+            }
+        }
+        starts[n] = count;
+        this.injectedStarts = starts;
+        this.injectedLabels = Arrays.copyOf(labels, count);
+        this.injectedScores = Arrays.copyOf(scores, count);
+
+        calculateRandomWalkProbabilities();
+    }
+
+    /**
+     * The continuation and injection probability of each node,
+     * from the entropy of its transition probabilities (Talukdar and
+     * Crammer, 2009), computed the way Junto does. (The abandonment
+     * probability only weights the dummy label, so it isn't needed.)
+     */
+    private void calculateRandomWalkProbabilities() {
+        int n = this.nodeCount;
+        this.contProbs = new double[n];
+        this.injProbs = new double[n];
+        for (int v = 0; v < n; v++) {
+            double total = 0.0;
+            for (int i = this.neighborStarts[v]; i < this.neighborStarts[v + 1]; i++) {
+                total += this.weights[i];
+            }
+            double entropy = 0.0;
+            for (int i = this.neighborStarts[v]; i < this.neighborStarts[v + 1]; i++) {
+                double p = this.weights[i] / total;
+                if (p > 0.0) {
+                    entropy -= p * Math.log(p) / Math.log(2);
+                }
+            }
+            double cv = Math.log(BETA) / Math.log(BETA + entropy);
+            double jv = 0.0;
+            if (this.injectedStarts[v + 1] > this.injectedStarts[v]) {
+                jv = (1 - cv) * Math.sqrt(entropy);
+                if (jv == 0.0) {
+                    jv = 0.99;
+                    cv = 0.01;
+                }
+            }
+            double z = Math.max(cv + jv, 1.0);
+            this.contProbs[v] = cv / z;
+            this.injProbs[v] = jv / z;
+        }
+    }
+
+    /**
+     * Run maxIter iterations of modified adsorption, with mu1, mu2 and mu3
+     * weighting the seed, neighbor and abandonment terms. Each iteration
+     * computes every node's new scores from its neighbors' previous ones,
+     * on numThreads threads.
+     */
+    public void propagate(double mu1, double mu2, double mu3, int maxIter, int numThreads)
+            throws InterruptedException, ExecutionException {
+        if (this.neighborStarts == null) {
+            build();
+        }
+        this.estimatedStarts = this.injectedStarts;
+        this.estimatedLabels = this.injectedLabels;
+        this.estimatedScores = this.injectedScores;
+
+        int n = this.nodeCount;
+        int threads = Math.max(1, Math.min(numThreads, n));
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            int chunkSize = (n + threads - 1) / threads;
+            for (int iter = 0; iter < maxIter; iter++) {
+                List<Chunk> chunks = new ArrayList<Chunk>();
+                for (int begin = 0; begin < n; begin += chunkSize) {
+                    chunks.add(new Chunk(begin, Math.min(begin + chunkSize, n), mu1, mu2, mu3));
+                }
+                if (executor == null) {
+                    for (Chunk chunk : chunks) {
+                        chunk.call();
+                    }
+                } else {
+                    for (Future<Chunk> future : executor.invokeAll(chunks)) {
+                        future.get();
+                    }
+                }
+
+                int[] starts = new int[n + 1];
+                int total = 0;
+                for (Chunk chunk : chunks) {
+                    total += chunk.count;
+                }
+                int[] labels = new int[total];
+                double[] scores = new double[total];
+                int offset = 0;
+                for (Chunk chunk : chunks) {
+                    for (int v = chunk.begin; v < chunk.end; v++) {
+                        starts[v] = offset + chunk.starts[v - chunk.begin];
+                    }
+                    System.arraycopy(chunk.labels, 0, labels, offset, chunk.count);
+                    System.arraycopy(chunk.scores, 0, scores, offset, chunk.count);
+                    offset += chunk.count;
+                }
+                starts[n] = total;
+                this.estimatedStarts = starts;
+                this.estimatedLabels = labels;
+                this.estimatedScores = scores;
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * One iteration's new scores for the nodes begin..end-1.
+     */
+    private class Chunk implements Callable<Chunk> {
+        final int begin;
+        final int end;
+        final double mu1;
+        final double mu2;
+        final double mu3;
+
+        int[] starts;
+        int[] labels;
+        double[] scores;
+        int count = 0;
+
+        Chunk(int begin, int end, double mu1, double mu2, double mu3) {
+            this.begin = begin;
+            this.end = end;
+            this.mu1 = mu1;
+            this.mu2 = mu2;
+            this.mu3 = mu3;
+        }
+
+        public Chunk call() {
+            int[] oldStarts = LabelPropGraph.this.estimatedStarts;
+            int[] oldLabels = LabelPropGraph.this.estimatedLabels;
+            double[] oldScores = LabelPropGraph.this.estimatedScores;
+
+            this.starts = new int[this.end - this.begin];
+            this.labels = new int[1024];
+            this.scores = new double[1024];
+            double[] sums = new double[labelCount];
+            boolean[] present = new boolean[labelCount];
+            int[] touched = new int[labelCount];
+
+            for (int v = this.begin; v < this.end; v++) {
+                int touchedCount = 0;
+                double contProb = contProbs[v];
+
+                double neighborSum = 0.0;
+                for (int i = neighborStarts[v]; i < neighborStarts[v + 1]; i++) {
+                    // The graph is undirected, so W_vu == W_uv.
+                    int u = neighbors[i];
+                    double mult = contProb * weights[i] + contProbs[u] * weights[i];
+                    neighborSum += mult;
+                    double factor = this.mu2 * mult;
+                    for (int j = oldStarts[u]; j < oldStarts[u + 1]; j++) {
+                        int label = oldLabels[j];
+                        if (!present[label]) {
+                            present[label] = true;
+                            touched[touchedCount++] = label;
+                        }
+                        sums[label] += factor * oldScores[j];
+                    }
+                }
+
+                double norm = this.mu1 * injProbs[v] + this.mu2 * neighborSum + this.mu3;
+                double factor = this.mu1 * injProbs[v];
+                for (int j = injectedStarts[v]; j < injectedStarts[v + 1]; j++) {
+                    int label = injectedLabels[j];
+                    if (!present[label]) {
+                        present[label] = true;
+                        touched[touchedCount++] = label;
+                    }
+                    sums[label] += factor * injectedScores[j];
+                }
+
+                this.starts[v - this.begin] = this.count;
+                if (this.count + touchedCount > this.labels.length) {
+                    int size = Math.max(this.labels.length * 2, this.count + touchedCount);
+                    this.labels = Arrays.copyOf(this.labels, size);
+                    this.scores = Arrays.copyOf(this.scores, size);
+                }
+                Arrays.sort(touched, 0, touchedCount);
+                for (int k = 0; k < touchedCount; k++) {
+                    int label = touched[k];
+                    this.labels[this.count] = label;
+                    this.scores[this.count] = sums[label] / norm;
+                    this.count++;
+                    sums[label] = 0.0;
+                    present[label] = false;
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * The label with the greatest estimated score at a node among those
+     * accepted by candidates (lowest label on ties), or -1 if no such label
+     * has reached the node.
+     */
+    public int getBestLabel(int node, BitSet candidates) {
+        int best = -1;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        if (this.estimatedStarts == null || node < 0 || node >= this.nodeCount) {
+            return best;
+        }
+        for (int j = this.estimatedStarts[node]; j < this.estimatedStarts[node + 1]; j++) {
+            int label = this.estimatedLabels[j];
+            if (candidates.get(label) && (best == -1 || this.estimatedScores[j] > bestScore)) {
+                best = label;
+                bestScore = this.estimatedScores[j];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The estimated score of a label at a node, or 0.0 if it hasn't reached
+     * the node.
+     */
+    public double getScore(int node, int label) {
+        if (this.estimatedStarts == null || node < 0 || node >= this.nodeCount) {
+            return 0.0;
+        }
+        for (int j = this.estimatedStarts[node]; j < this.estimatedStarts[node + 1]; j++) {
+            if (this.estimatedLabels[j] == label) {
+                return this.estimatedScores[j];
+            }
+        }
+        return 0.0;
+    }
+}
@@ -5,6 +5,8 @@
 package opennlp.textgrounder.tr.resolver;
 
 import opennlp.textgrounder.tr.text.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @param corpus
@@ -18,10 +20,81 @@ public abstract class Resolver {
     // (not implemented in all resolvers yet)
     public boolean overwriteSelecteds = true;
 
+    // Number of worker threads used by resolvers that disambiguate documents independently
+    // (not implemented in all resolvers yet); 1 means the plain serial path
+    protected int numThreads = 1;
+
     public void train(StoredCorpus corpus) {
         throw new UnsupportedOperationException("This type of resolver cannot be trained.");
     }
 
     public abstract StoredCorpus disambiguate(StoredCorpus corpus);
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /*
+     * Work done on a single document by forEachDocument. The worker index is in [0, numThreads) and is
+     * stable for the duration of one call to process, so it can be used to pick a per-thread buffer.
+     */
+    protected interface DocumentTask {
+        public void process(Document<StoredToken> doc, int worker);
+    }
+
+    /*
+     * Runs task on every document in corpus. With more than one thread the documents are handed out in
+     * small chunks from the corpus's own iterator, shared by all workers, so idle workers keep pulling
+     * documents until none remain and corpora that decode documents lazily never hold them all at once.
+     * Tasks must only modify the document they're given (or their own worker's buffers).
+     */
+    protected void forEachDocument(StoredCorpus corpus, final DocumentTask task) {
+        if(numThreads <= 1) {
+            for(Document<StoredToken> doc : corpus)
+                task.process(doc, 0);
+            return;
+        }
+
+        final Iterator<Document<StoredToken>> docs = corpus.iterator();
+        final int chunkSize = Math.max(1, Math.min(64, corpus.getDocumentCount() / (numThreads * 16)));
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> workers = new ArrayList<Future<?>>(numThreads);
+
+        for(int w = 0; w < numThreads; w++) {
+            final int worker = w;
+            workers.add(pool.submit(new Runnable() {
+                public void run() {
+                    List<Document<StoredToken>> chunk = new ArrayList<Document<StoredToken>>(chunkSize);
+                    while(true) {
+                        chunk.clear();
+                        synchronized(docs) {
+                            while(chunk.size() < chunkSize && docs.hasNext())
+                                chunk.add(docs.next());
+                        }
+                        if(chunk.isEmpty())
+                            return;
+                        for(Document<StoredToken> doc : chunk)
+                            task.process(doc, worker);
+                    }
+                }
+            }));
+        }
+
+        try {
+            for(Future<?> f : workers)
+                f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
     
 }
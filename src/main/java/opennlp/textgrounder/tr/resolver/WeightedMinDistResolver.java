@@ -9,41 +9,56 @@ import opennlp.textgrounder.tr.text.*;
 import opennlp.textgrounder.tr.topo.*;
 import opennlp.textgrounder.tr.util.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 public class WeightedMinDistResolver extends Resolver {
 
     // weights and toponym lexicon (for indexing into weights) are stored so that a different
     //   corpus/corpora can be used for training than for disambiguating
-    private List<List<Double> > weights = null;
+    //
+    // the weights of toponym type i's candidates are weights[typeOffsets[i]] through
+    //   weights[typeOffsets[i + 1] - 1]; counts share the same layout
+    private double[] weights = null;
+    private int[] typeOffsets = null;
     Lexicon<String> toponymLexicon = null;
 
     private int numIterations;
     //private Map<Long, Double> distanceCache = new HashMap<Long, Double>();
     //private int maxCoeff = Integer.MAX_VALUE;
     private DistanceTable distanceTable;
+    private StoredCorpus distanceTableCorpus; // toponym indices in the table are only valid for this corpus
+    private final long maxCachedDistances;
     private static final int PHANTOM_COUNT = 0; // phantom/imagined counts for smoothing
 
+    // 2^24 doubles, i.e. 128MB of cached distances
+    public static final long DEFAULT_MAX_CACHED_DISTANCES = 1L << 24;
+
     public WeightedMinDistResolver(int numIterations) {
+        this(numIterations, DEFAULT_MAX_CACHED_DISTANCES);
+    }
+
+    public WeightedMinDistResolver(int numIterations, long maxCachedDistances) {
         super();
         this.numIterations = numIterations;
+        this.maxCachedDistances = maxCachedDistances;
     }
 
     @Override
     public void train(StoredCorpus corpus) {
 
-        distanceTable = new DistanceTable(corpus.getToponymTypeCount());
+        useDistanceTableFor(corpus);
 
-        toponymLexicon = TopoUtil.buildLexicon(corpus);
-        List<List<Integer> > counts = new ArrayList<List<Integer> >(toponymLexicon.size());
-        for(int i = 0; i < toponymLexicon.size(); i++) counts.add(null);
-        weights = new ArrayList<List<Double> >(toponymLexicon.size());
-        for(int i = 0; i < toponymLexicon.size(); i++) weights.add(null);
+        toponymLexicon = new SimpleLexicon<String>();
+        typeOffsets = new int[] { 0 };
+        weights = new double[0];
+        expandWeightsArray(corpus);
 
-        initializeCountsAndWeights(counts, weights, corpus, toponymLexicon, PHANTOM_COUNT);
+        int[] counts = new int[weights.length];
+        int[] corpusOffsets = getCorpusOffsets(corpus);
 
         for(int i = 0; i < numIterations; i++) {
             System.out.println("Iteration: " + (i+1));
-            updateWeights(corpus, counts, PHANTOM_COUNT, weights, toponymLexicon);
+            updateWeights(corpus, corpusOffsets, counts, PHANTOM_COUNT);
         }
     }
 
@@ -53,119 +68,131 @@ public class WeightedMinDistResolver extends Resolver {
         if(weights == null)
             train(corpus);
 
-        TopoUtil.addToponymsToLexicon(toponymLexicon, corpus);
-        weights = expandWeightsArray(toponymLexicon, corpus, weights);
-        
-        return finalDisambiguationStep(corpus, weights, toponymLexicon);
-    }
+        expandWeightsArray(corpus);
 
-    // adds a weight of 1.0 to candidate locations of toponyms found in lexicon but not in oldWeights
-    private List<List<Double> > expandWeightsArray(Lexicon<String> lexicon, StoredCorpus corpus, List<List<Double> > oldWeights) {
-        if(oldWeights.size() >= lexicon.size())
-            return oldWeights;
+        useDistanceTableFor(corpus);
         
-        List<List<Double> > newWeights = new ArrayList<List<Double> >(lexicon.size());
-        for(int i = 0; i < lexicon.size(); i++) newWeights.add(null);
+        return finalDisambiguationStep(corpus, getCorpusOffsets(corpus));
+    }
 
-        for(int i = 0; i < oldWeights.size(); i++) {
-            newWeights.set(i, oldWeights.get(i));
+    // keeps the cached distances from training when disambiguating the same corpus, otherwise starts afresh
+    private void useDistanceTableFor(StoredCorpus corpus) {
+        if(distanceTable == null || distanceTableCorpus != corpus) {
+            distanceTable = new DistanceTable(maxCachedDistances, numThreads);
+            distanceTableCorpus = corpus;
         }
-
-        initializeWeights(newWeights, corpus, lexicon);
-
-        return newWeights;
     }
 
-    private void initializeCountsAndWeights(List<List<Integer> > counts, List<List<Double> > weights,
-            StoredCorpus corpus, Lexicon<String> lexicon, int initialCount) {
+    // adds toponyms in corpus that aren't in the lexicon yet, and widens the spans of those that have
+    //   more candidates here than before, giving each new candidate location a weight of 1.0
+    private void expandWeightsArray(StoredCorpus corpus) {
+        int oldTypes = toponymLexicon.size();
+        int[] ambiguities = new int[Math.max(16, oldTypes)];
+        for(int i = 0; i < oldTypes; i++)
+            ambiguities[i] = typeOffsets[i + 1] - typeOffsets[i];
 
         for(Document<StoredToken> doc : corpus) {
             for(Sentence<StoredToken> sent : doc) {
                 for(Toponym toponym : sent.getToponyms()) {
                     if(toponym.getAmbiguity() > 0) {
-                        int index = lexicon.get(toponym.getForm());
-                        if(counts.get(index) == null) {
-                            counts.set(index, new ArrayList<Integer>(toponym.getAmbiguity()));
-                            weights.set(index, new ArrayList<Double>(toponym.getAmbiguity()));
-                            for(int i = 0; i < toponym.getAmbiguity(); i++) {
-                                counts.get(index).add(initialCount);
-                                weights.get(index).add(1.0);
-                            }
-                        }
+                        int index = toponymLexicon.getOrAdd(toponym.getForm());
+                        if(index >= ambiguities.length)
+                            ambiguities = Arrays.copyOf(ambiguities, ambiguities.length * 2);
+                        ambiguities[index] = Math.max(ambiguities[index], toponym.getAmbiguity());
                     }
                 }
             }
         }
+
+        int newTypes = toponymLexicon.size();
+        boolean widened = false;
+        for(int i = 0; i < oldTypes && !widened; i++)
+            widened = ambiguities[i] > typeOffsets[i + 1] - typeOffsets[i];
+        if(newTypes == oldTypes && !widened)
+            return;
+
+        int[] newOffsets = new int[newTypes + 1];
+        for(int i = 0; i < newTypes; i++)
+            newOffsets[i + 1] = newOffsets[i] + ambiguities[i];
+
+        double[] newWeights = new double[newOffsets[newTypes]];
+        Arrays.fill(newWeights, 1.0);
+        for(int i = 0; i < oldTypes; i++)
+            System.arraycopy(weights, typeOffsets[i], newWeights, newOffsets[i], typeOffsets[i + 1] - typeOffsets[i]);
+
+        typeOffsets = newOffsets;
+        weights = newWeights;
     }
 
-    private void initializeWeights(List<List<Double> > weights, StoredCorpus corpus, Lexicon<String> lexicon) {
+    // maps the corpus's own toponym type indices (StoredToponym.getIdx) to offsets into weights, so that
+    //   the inner loops don't need to look forms up in the lexicon; the inner loops index a type's weights
+    //   by candidate index without a bound check, so every toponym's candidates must fit its type's span
+    private int[] getCorpusOffsets(StoredCorpus corpus) {
+        int[] corpusOffsets = new int[Math.max(corpus.getToponymTypeCount(), 1)];
+        Arrays.fill(corpusOffsets, -1);
+
         for(Document<StoredToken> doc : corpus) {
             for(Sentence<StoredToken> sent : doc) {
-                for(Toponym toponym : sent.getToponyms()) {
+                for(Toponym toponymTemp : sent.getToponyms()) {
+                    StoredToponym toponym = (StoredToponym) toponymTemp;
                     if(toponym.getAmbiguity() > 0) {
-                        int index = lexicon.get(toponym.getForm());
-                        if(weights.get(index) == null) {
-                            weights.set(index, new ArrayList<Double>(toponym.getAmbiguity()));
-                            for(int i = 0; i < toponym.getAmbiguity(); i++) {
-                                weights.get(index).add(1.0);
-                            }
+                        int idx = toponym.getIdx();
+                        if(idx >= corpusOffsets.length) {
+                            int oldLength = corpusOffsets.length;
+                            corpusOffsets = Arrays.copyOf(corpusOffsets, Math.max(idx + 1, oldLength * 2));
+                            Arrays.fill(corpusOffsets, oldLength, corpusOffsets.length, -1);
                         }
+                        int type = toponymLexicon.get(toponym.getForm());
+                        if(toponym.getAmbiguity() > typeOffsets[type + 1] - typeOffsets[type])
+                            throw new IllegalStateException("Toponym " + toponym.getForm() + " has " + toponym.getAmbiguity()
+                                + " candidates, but only " + (typeOffsets[type + 1] - typeOffsets[type])
+                                + " weights; its candidates changed after the weights were laid out.");
+                        if(corpusOffsets[idx] == -1)
+                            corpusOffsets[idx] = typeOffsets[type];
                     }
                 }
-            }       
+            }
         }
+
+        return corpusOffsets;
     }
 
-    private void updateWeights(StoredCorpus corpus, List<List<Integer> > counts, int initialCount, List<List<Double> > weights, Lexicon<String> lexicon) {
+    private void updateWeights(StoredCorpus corpus, final int[] corpusOffsets, int[] counts, int initialCount) {
         
-        for(int i = 0; i < counts.size(); i++)
-            for(int j = 0; j < counts.get(i).size(); j++)
-                counts.get(i).set(j, initialCount);
-
-        List<Integer> sums = new ArrayList<Integer>(counts.size());
-        for(int i = 0; i < counts.size(); i++) sums.add(initialCount * counts.get(i).size());
-
-        for (Document<StoredToken> doc : corpus) {
-            for (Sentence<StoredToken> sent : doc) {
-                for (Toponym toponym : sent.getToponyms()) {
-                    double min = Double.MAX_VALUE;
-                    int minIdx = -1;
-                    
-                    int idx = 0;
-                    for (Location candidate : toponym) {
-                        Double candidateMin = this.checkCandidate(toponym, candidate, idx, doc, min, weights, lexicon);
-                        if (candidateMin != null) {
-                            min = candidateMin;
-                            minIdx = idx;
-                        }
-                        idx++;
-                    }
-                    
+        Arrays.fill(counts, initialCount);
+
+        // each worker tallies into its own buffer; they're merged once the pass is done
+        final int[][] workerCounts = new int[numThreads][counts.length];
+
+        forEachDocument(corpus, new DocumentTask() {
+            public void process(Document<StoredToken> doc, int worker) {
+                int[] localCounts = workerCounts[worker];
+                StoredToponym[] docToponyms = getToponyms(doc);
+                DistanceMatrix[] otherMatrices = new DistanceMatrix[docToponyms.length];
+                for (StoredToponym toponym : docToponyms) {
+                    int minIdx = selectCandidate(toponym, docToponyms, otherMatrices, corpusOffsets);
+
                     if (minIdx > -1) {
-                        int countIndex = lexicon.get(toponym.getForm());
-                        /*System.out.println(toponym.getForm());
-                          System.out.println(countIndex);
-                          System.out.println(minIdx);
-                          System.out.println(counts.get(countIndex).size());
-                          System.out.println(toponym.getAmbiguity());*/
-                        int prevCount = counts.get(countIndex)
-                            .get(minIdx);
-                        counts.get(countIndex).set(minIdx, prevCount + 1);
-                        int prevSum = sums.get(countIndex);
-                        sums.set(countIndex, prevSum + 1);
-                        
+                        localCounts[corpusOffsets[toponym.getIdx()] + minIdx]++;
                     }
                 }
             }
+        });
+
+        for(int w = 0; w < numThreads; w++) {
+            int[] localCounts = workerCounts[w];
+            for(int j = 0; j < counts.length; j++)
+                counts[j] += localCounts[j];
         }
     
-    
-        for(int i = 0; i < weights.size(); i++) {
-            List<Double> curWeights = weights.get(i);
-            List<Integer> curCounts = counts.get(i);
-            int curSum = sums.get(i);
-            for(int j = 0; j < curWeights.size(); j++) {
-                curWeights.set(j, ((double)curCounts.get(j) / curSum) * curWeights.size());
+        for(int i = 0; i + 1 < typeOffsets.length; i++) {
+            int start = typeOffsets[i];
+            int end = typeOffsets[i + 1];
+            int curSum = 0;
+            for(int j = start; j < end; j++)
+                curSum += counts[j];
+            for(int j = start; j < end; j++) {
+                weights[j] = ((double)counts[j] / curSum) * (end - start);
             }
         }
     }
@@ -173,99 +200,108 @@ public class WeightedMinDistResolver extends Resolver {
 
   /* This implementation of disambiguate immediately stops computing distance
    * totals for candidates when it becomes clear that they aren't minimal. */
-  private StoredCorpus finalDisambiguationStep(StoredCorpus corpus, List<List<Double> > weights, Lexicon<String> lexicon) {
-    for (Document<StoredToken> doc : corpus) {
-        for (Sentence<StoredToken> sent : doc) {
-            for (Toponym toponym : sent.getToponyms()) {
-                double min = Double.MAX_VALUE;
-                int minIdx = -1;
-                
-                int idx = 0;
-                for (Location candidate : toponym) {
-                    Double candidateMin = this.checkCandidate(toponym, candidate, idx, doc, min, weights, lexicon);
-                    if (candidateMin != null) {
-                        min = candidateMin;
-                        minIdx = idx;
-                    }
-                    idx++;
-                }
-                
+  private StoredCorpus finalDisambiguationStep(StoredCorpus corpus, final int[] corpusOffsets) {
+    forEachDocument(corpus, new DocumentTask() {
+        public void process(Document<StoredToken> doc, int worker) {
+            StoredToponym[] docToponyms = getToponyms(doc);
+            DistanceMatrix[] otherMatrices = new DistanceMatrix[docToponyms.length];
+            for (StoredToponym toponym : docToponyms) {
+                int minIdx = selectCandidate(toponym, docToponyms, otherMatrices, corpusOffsets);
+
                 if (minIdx > -1) {
                     toponym.setSelectedIdx(minIdx);
                 }
             }
         }
-        
-    }
+    });
     
     return corpus;
   }
 
-  /* Returns the minimum total distance to all other locations in the document
-   * for the candidate, or null if it's greater than the current minimum. */
-  private Double checkCandidate(Toponym toponymTemp, Location candidate, int locationIndex, Document<StoredToken> doc,
-          double currentMinTotal, List<List<Double> > weights, Lexicon<String> lexicon) {
-    StoredToponym toponym = (StoredToponym) toponymTemp;
-    Double total = 0.0;
-    int seen = 0;
+  /* Returns the toponyms of a document, in order. */
+  private static StoredToponym[] getToponyms(Document<StoredToken> doc) {
+    List<StoredToponym> toponyms = new ArrayList<StoredToponym>();
+    for (Sentence<StoredToken> sent : doc) {
+      for (Toponym toponym : sent.getToponyms()) {
+        toponyms.add((StoredToponym) toponym);
+      }
+    }
+    return toponyms.toArray(new StoredToponym[toponyms.size()]);
+  }
 
-    for (Sentence<StoredToken> otherSent : doc) {
-      for (Toponym otherToponymTemp : otherSent.getToponyms()) {
-        StoredToponym otherToponym = (StoredToponym) otherToponymTemp;
-
-        /*Map<Location, Double> normalizationDenoms = new HashMap<Location, Double>();
-        for(Location tempOtherLoc : otherToponym) {//int i = 0; i < otherToponym.getAmbiguity(); i++) {
-            //Location tempOtherLoc = otherToponym.getCandidates().get(i);
-            double normalizationDenomTemp = 0.0;
-            for(Location tempLoc : toponym) { //int j = 0; j < toponym.getAmbiguity(); j++) {
-                //Location tempLoc = toponym.getCandidates().get(j);
-                normalizationDenomTemp += tempOtherLoc.distance(tempLoc);
-            }
-            normalizationDenoms.put(tempOtherLoc, normalizationDenomTemp);
-        }*/
+  /* Returns the index of the candidate with the minimum weighted total distance,
+   * or -1 if no candidate could be scored. otherMatrices is scratch space as long
+   * as docToponyms; it's filled with toponym's distance matrix against each of the
+   * other toponyms before any candidate is checked, so the candidate loop does no
+   * table lookups. */
+  private int selectCandidate(StoredToponym toponym, StoredToponym[] docToponyms,
+          DistanceMatrix[] otherMatrices, int[] corpusOffsets) {
+    double min = Double.MAX_VALUE;
+    int minIdx = -1;
+
+    int ambiguity = toponym.getAmbiguity();
+    if (ambiguity == 0)
+      return minIdx;
+
+    for (int k = 0; k < docToponyms.length; k++) {
+      StoredToponym otherToponym = docToponyms[k];
+      /* We don't want to compute distances if this other toponym is the
+       * same as the current one, or if it has no candidates. */
+      if (!otherToponym.equals(toponym) && otherToponym.getAmbiguity() > 0)
+        otherMatrices[k] = distanceTable.getMatrix(toponym, otherToponym);
+      else
+        otherMatrices[k] = null;
+    }
 
-        /* We don't want to compute distances if this other toponym is the
-         * same as the current one, or if it has no candidates. */
-        if (!otherToponym.equals(toponym) && otherToponym.getAmbiguity() > 0) {
-          double min = Double.MAX_VALUE;
-          //double sum = 0.0;
+    for (int idx = 0; idx < ambiguity; idx++) {
+        double candidateMin = this.checkCandidate(toponym, idx, docToponyms, otherMatrices, min, corpusOffsets);
+        if (!Double.isNaN(candidateMin)) {
+            min = candidateMin;
+            minIdx = idx;
+        }
+    }
 
-          int otherLocIndex = 0;
-          for (Location otherLoc : otherToponym) {
+    return minIdx;
+  }
 
-            /*double normalizationDenom = 0.0;
-            for(Location tempCand : toponym) {
-              normalizationDenom += tempCand.distance(otherLoc)  / weights.get(otherLoc) ;
-            }
-            */
-            //double normalizationDenom = normalizationDenoms.get(otherToponym);
+  /* Returns the minimum total distance to all other locations in the document
+   * for the candidate, or NaN if it's greater than the current minimum. */
+  private double checkCandidate(StoredToponym toponym, int locationIndex, StoredToponym[] docToponyms,
+          DistanceMatrix[] otherMatrices, double currentMinTotal, int[] corpusOffsets) {
+    double total = 0.0;
+    int seen = 0;
 
-            double weightedDist = distanceTable.getDistance(toponym, locationIndex, otherToponym, otherLocIndex);//candidate.distance(otherLoc) /* / weights.get(otherLoc) */ ;
-            double weight = weights.get(lexicon.get(otherToponym.getForm())).get(otherLocIndex);
+    for (int k = 0; k < docToponyms.length; k++) {
+        DistanceMatrix distances = otherMatrices[k];
+        if (distances == null)
+          continue;
+
+        StoredToponym otherToponym = docToponyms[k];
+        int otherAmbiguity = otherToponym.getAmbiguity();
+        double min = Double.MAX_VALUE;
+
+        int weightOffset = corpusOffsets[otherToponym.getIdx()];
+        for (int otherLocIndex = 0; otherLocIndex < otherAmbiguity; otherLocIndex++) {
+            double weightedDist = distances.getDistance(toponym, locationIndex, otherToponym, otherLocIndex);
+            double weight = weights[weightOffset + otherLocIndex];
             weightedDist /= weight; // weighting
-            //weightedDist /= normalizationDenoms.get(otherLoc); // normalization
             if (weightedDist < min) {
               min = weightedDist;
             }
-            //sum += weightedDist;
-            otherLocIndex++;
-          }
-
-          seen++;
-          total += min;
-          //total += sum;
-
-          /* If the running total is greater than the current minimum, we can
-           * stop. */
-          if (total >= currentMinTotal) {
-            return null;
-          }
         }
-      }
+
+        seen++;
+        total += min;
+
+        /* If the running total is greater than the current minimum, we can
+         * stop. */
+        if (total >= currentMinTotal) {
+          return Double.NaN;
+        }
     }
 
     /* Abstain if we haven't seen any other toponyms. */
-    return seen > 0 ? total : null;
+    return seen > 0 ? total : Double.NaN;
   }
 
     /*private double getDistance(StoredToponym t1, int i1, StoredToponym t2, int i2) {
@@ -286,38 +322,125 @@ public class WeightedMinDistResolver extends Resolver {
         return dist;
     }*/
 
-    private class DistanceTable {
-        private double[][][][] allDistances;
+    /*
+     * Bounded cache of candidate-to-candidate distances. For every pair of toponym types that co-occur in a
+     * document we keep one matrix (ambiguity(t1) x ambiguity(t2)) whose cells are filled the first time they're
+     * asked for, so the acos-heavy Region.distance calls happen at most once per pair across all EM iterations
+     * and the final disambiguation step. Matrices are keyed by the toponym's original-form index, since that's
+     * what candidate lists are stored under in CompactCorpus, and evicted least-recently-used first once more
+     * than maxCachedDistances cells are held.
+     *
+     * With several threads the table is split into independently locked segments so parallel workers rarely
+     * contend. The cap is shared, not divided between them: every segment reserves room for a matrix from one
+     * global budget, evicting its own least-recently-used matrices while the budget is short, and hands the
+     * matrix out uncached if that doesn't free enough. Only fetching a matrix takes a lock. Its cells are read and written without one: racing writers store the same value, and a
+     * matrix evicted while a worker still holds it just stops being shared.
+     */
+    private static class DistanceTable {
+        private final Segment[] segments;
+        private final long maxCachedDistances;
+        private final AtomicLong cachedDistances = new AtomicLong();
+
+        public DistanceTable(long maxCachedDistances, int numThreads) {
+            this.maxCachedDistances = maxCachedDistances;
+            int numSegments = 1;
+            if(numThreads > 1) {
+                while(numSegments < numThreads * 4)
+                    numSegments <<= 1;
+            }
+            segments = new Segment[numSegments];
+            for(int i = 0; i < numSegments; i++)
+                segments[i] = new Segment();
+        }
 
-        public DistanceTable(int numToponymTypes) {
-            allDistances = new double[numToponymTypes][numToponymTypes][][];
+        /* Returns the matrix of distances between the candidates of t1 and t2, creating it if need be. */
+        public DistanceMatrix getMatrix(StoredToponym t1, StoredToponym t2) {
+            int t1idx = t1.getOrigIdx();
+            int t2idx = t2.getOrigIdx();
+
+            // matrices are stored once per unordered pair, with the lower index on the rows
+            if(t1idx > t2idx) {
+                StoredToponym tempToponym = t1; t1 = t2; t2 = tempToponym;
+                int tempIdx = t1idx; t1idx = t2idx; t2idx = tempIdx;
+            }
+
+            long key = ((long) t1idx << 32) | t2idx;
+            Segment segment = segments[(t1idx * 31 + t2idx) & (segments.length - 1)];
+            return segment.getOrAddMatrix(key, t1idx, t1.getAmbiguity(), t2.getAmbiguity());
         }
 
-        public double getDistance(StoredToponym t1, int i1, StoredToponym t2, int i2) {
+        /* Takes size cells from the global budget, if that many are left. */
+        private boolean reserve(long size) {
+            while(true) {
+                long current = cachedDistances.get();
+                if(current + size > maxCachedDistances)
+                    return false;
+                if(cachedDistances.compareAndSet(current, current + size))
+                    return true;
+            }
+        }
 
-            return t1.getCandidates().get(i1).distance(t2.getCandidates().get(i2));
-            
-            /*int t1idx = t1.getIdx();
-            int t2idx = t2.getIdx();
+        private class Segment {
+            private final LinkedHashMap<Long, DistanceMatrix> matrices =
+                new LinkedHashMap<Long, DistanceMatrix>(256, 0.75f, true);
+
+            /* Returns the cached matrix for key, or makes room for a new NaN-filled one. A matrix there's no
+             * room for, even after evicting this segment's other matrices, is handed out without being cached. */
+            private synchronized DistanceMatrix getOrAddMatrix(long key, int rowIdx, int rows, int cols) {
+                DistanceMatrix distanceMatrix = matrices.get(key);
+                if(distanceMatrix != null) {
+                    if(distanceMatrix.rows != rows || distanceMatrix.cols != cols)
+                        throw new IllegalStateException("Cached distances for toponym pair " + key + " are "
+                            + distanceMatrix.rows + " x " + distanceMatrix.cols + ", but its toponyms now have "
+                            + rows + " x " + cols + " candidates.");
+                    return distanceMatrix;
+                }
 
-            double[][] distanceMatrix = allDistances[t1idx][t2idx];
-            if(distanceMatrix == null) {
-                distanceMatrix = new double[t1.getAmbiguity()][t2.getAmbiguity()];
-                for(int i = 0; i < distanceMatrix.length; i++) {
-                    for(int j = 0; j < distanceMatrix[i].length; j++) {
-                        distanceMatrix[i][j] = t1.getCandidates().get(i).distance(t2.getCandidates().get(j));
-                    }
+                long size = (long) rows * cols;
+                distanceMatrix = new DistanceMatrix(rowIdx, rows, cols);
+                if(size > maxCachedDistances)
+                    return distanceMatrix;
+
+                Iterator<DistanceMatrix> lru = matrices.values().iterator();
+                while(!reserve(size)) {
+                    if(!lru.hasNext())
+                        return distanceMatrix;
+                    cachedDistances.addAndGet(-lru.next().cells.length);
+                    lru.remove();
                 }
-            }*/
-            /*double distance = distanceMatrix[i1][i2];
-            if(distance == 0.0) {
-                distance = t1.getCandidates().get(i1).distance(t2.getCandidates().get(i2));
-                distanceMatrix[i1][i2] = distance;
-            }*/
-            //return distanceMatrix[i1][i2];
-            
+
+                matrices.put(key, distanceMatrix);
+                return distanceMatrix;
+            }
+        }
+    }
+
+    /*
+     * The distances between the candidates of one pair of toponym types, rows for the type with the lower
+     * original-form index. Missing cells are NaN.
+     */
+    private static class DistanceMatrix {
+        private final int rowIdx;
+        private final int rows;
+        private final int cols;
+        private final double[] cells;
+
+        private DistanceMatrix(int rowIdx, int rows, int cols) {
+            this.rowIdx = rowIdx;
+            this.rows = rows;
+            this.cols = cols;
+            this.cells = new double[rows * cols];
+            Arrays.fill(cells, Double.NaN);
         }
 
-        //public
+        private double getDistance(StoredToponym t1, int i1, StoredToponym t2, int i2) {
+            int cell = t1.getOrigIdx() == rowIdx ? i1 * cols + i2 : i2 * cols + i1;
+            double distance = cells[cell];
+            if(Double.isNaN(distance)) {
+                distance = t1.getCandidates().get(i1).distance(t2.getCandidates().get(i2));
+                cells[cell] = distance;
+            }
+            return distance;
+        }
     }
 }
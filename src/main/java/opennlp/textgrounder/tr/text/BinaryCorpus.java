@@ -0,0 +1,988 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import opennlp.textgrounder.tr.topo.*;
+import opennlp.textgrounder.tr.topo.gaz.MappedGazetteer;
+import opennlp.textgrounder.tr.util.SectionFile;
+import opennlp.textgrounder.tr.util.Span;
+
+/**
+ * A stored corpus read from a versioned binary file instead of being
+ * deserialized: opening it maps the lexicons and the document index, and
+ * each document is read from disk and decoded only when the iterator reaches
+ * it, so corpora larger than the heap can be resolved.
+ *
+ * Candidate lists are stored per toponym type as gazetteer ids when the
+ * corpus was written against a mapped gazetteer (whose path is recorded in
+ * the file), and as inline location records otherwise. Gold and selected
+ * indices and system coordinates set after loading are kept in memory, so
+ * they survive repeated passes over the corpus.
+ *
+ * Layout: magic and version, then the sections listed in Section order as
+ * described in SectionFile.
+ */
+public class BinaryCorpus extends StoredCorpus {
+
+  private static final long serialVersionUID = 42L;
+
+  public static final int MAGIC = 0x54474350; // "TGCP"
+  public static final int VERSION = 1;
+
+  private static final byte POINT_REGION = 0;
+  private static final byte POINT_SET_REGION = 1;
+
+  private static final int HAS_TITLE = 1;
+  private static final int HAS_TIMESTAMP = 2;
+  private static final int HAS_GOLD_COORD = 4;
+  private static final int HAS_SYSTEM_COORD = 8;
+  private static final int HAS_SECTION = 16;
+
+  /* Marks an override slot that hasn't been set. */
+  private static final int UNSET = Integer.MIN_VALUE;
+
+  private enum Section {
+    STATS, DOCUMENTS, DOCUMENT_OFFSETS,
+    TOKEN_ORIG_OFFSETS, TOKEN_ORIG_BYTES, TOKEN_ORIG_COUNTS, TOKEN_ORIG_MAP,
+    TOKEN_OFFSETS, TOKEN_BYTES, TOKEN_COUNTS,
+    TOPONYM_ORIG_OFFSETS, TOPONYM_ORIG_BYTES, TOPONYM_ORIG_COUNTS, TOPONYM_ORIG_MAP,
+    TOPONYM_OFFSETS, TOPONYM_BYTES, TOPONYM_COUNTS,
+    CANDIDATE_STARTS, CANDIDATES, LOCATION_OFFSETS, LOCATION_BYTES
+  }
+
+  private final String path;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long documentsOffset;
+
+  private final int documentCount;
+  private final int tokenTypeCount;
+  private final int tokenOrigTypeCount;
+  private final int toponymTypeCount;
+  private final int toponymOrigTypeCount;
+  private final int maxToponymAmbiguity;
+  private final double avgToponymAmbiguity;
+  private final int tokenCount;
+  private final int toponymTokenCount;
+  private final String gazetteerPath;
+  private final MappedGazetteer gazetteer;
+
+  private final LongBuffer documentOffsets;
+  private final IntBuffer tokenOrigOffsets;
+  private final ByteBuffer tokenOrigBytes;
+  private final IntBuffer tokenOrigCounts;
+  private final IntBuffer tokenOrigMap;
+  private final IntBuffer tokenOffsets;
+  private final ByteBuffer tokenBytes;
+  private final IntBuffer tokenCounts;
+  private final IntBuffer toponymOrigOffsets;
+  private final ByteBuffer toponymOrigBytes;
+  private final IntBuffer toponymOrigCounts;
+  private final IntBuffer toponymOrigMap;
+  private final IntBuffer toponymOffsets;
+  private final ByteBuffer toponymBytes;
+  private final IntBuffer toponymCounts;
+  private final IntBuffer candidateStarts;
+  private final IntBuffer candidates;
+  private final IntBuffer locationOffsets;
+  private final ByteBuffer locationBytes;
+
+  /* Decoded (or replaced) candidate lists, by toponym orig idx. */
+  private final Map<Integer, List<Location>> candidateLists;
+
+  /* Indexed by the toponym's position in the corpus; allocated on first set. */
+  private volatile int[] goldIdxs;
+  private volatile int[] selectedIdxs;
+  private final Map<Integer, Coordinate> systemCoords;
+
+  public BinaryCorpus(String path) throws IOException {
+    this(path, null);
+  }
+
+  /**
+   * Open a binary corpus, resolving gazetteer ids against the given
+   * gazetteer instead of the one recorded in the file. A recorded relative
+   * gazetteer path is resolved against the corpus file's directory.
+   */
+  public BinaryCorpus(String path, MappedGazetteer gazetteer) throws IOException {
+    this.path = path;
+    this.file = new RandomAccessFile(path, "r");
+    this.channel = this.file.getChannel();
+
+    ByteBuffer header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+    if (header.getInt() != MAGIC) {
+      throw new IOException(path + " is not a binary corpus file.");
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary corpus version " + version + " in " + path + ".");
+    }
+
+    SectionFile.Directory directory = new SectionFile.Directory(this.channel, Section.values().length);
+
+    ByteBuffer stats = directory.map(Section.STATS.ordinal());
+    this.documentCount = stats.getInt();
+    this.tokenTypeCount = stats.getInt();
+    this.tokenOrigTypeCount = stats.getInt();
+    this.toponymTypeCount = stats.getInt();
+    this.toponymOrigTypeCount = stats.getInt();
+    this.maxToponymAmbiguity = stats.getInt();
+    this.tokenCount = stats.getInt();
+    this.toponymTokenCount = stats.getInt();
+    this.avgToponymAmbiguity = stats.getDouble();
+    String recordedPath = readString(stats);
+    if (recordedPath != null && !new File(recordedPath).isAbsolute()) {
+      recordedPath = new File(new File(path).getAbsoluteFile().getParentFile(), recordedPath).getPath();
+    }
+    this.gazetteerPath = recordedPath;
+
+    // Documents can add up to more than a mapping can hold, so they are read on demand.
+    this.documentsOffset = directory.getOffset(Section.DOCUMENTS.ordinal());
+    this.documentOffsets = directory.map(Section.DOCUMENT_OFFSETS.ordinal()).asLongBuffer();
+
+    this.tokenOrigOffsets = directory.map(Section.TOKEN_ORIG_OFFSETS.ordinal()).asIntBuffer();
+    this.tokenOrigBytes = directory.map(Section.TOKEN_ORIG_BYTES.ordinal());
+    this.tokenOrigCounts = directory.map(Section.TOKEN_ORIG_COUNTS.ordinal()).asIntBuffer();
+    this.tokenOrigMap = directory.map(Section.TOKEN_ORIG_MAP.ordinal()).asIntBuffer();
+    this.tokenOffsets = directory.map(Section.TOKEN_OFFSETS.ordinal()).asIntBuffer();
+    this.tokenBytes = directory.map(Section.TOKEN_BYTES.ordinal());
+    this.tokenCounts = directory.map(Section.TOKEN_COUNTS.ordinal()).asIntBuffer();
+    this.toponymOrigOffsets = directory.map(Section.TOPONYM_ORIG_OFFSETS.ordinal()).asIntBuffer();
+    this.toponymOrigBytes = directory.map(Section.TOPONYM_ORIG_BYTES.ordinal());
+    this.toponymOrigCounts = directory.map(Section.TOPONYM_ORIG_COUNTS.ordinal()).asIntBuffer();
+    this.toponymOrigMap = directory.map(Section.TOPONYM_ORIG_MAP.ordinal()).asIntBuffer();
+    this.toponymOffsets = directory.map(Section.TOPONYM_OFFSETS.ordinal()).asIntBuffer();
+    this.toponymBytes = directory.map(Section.TOPONYM_BYTES.ordinal());
+    this.toponymCounts = directory.map(Section.TOPONYM_COUNTS.ordinal()).asIntBuffer();
+    this.candidateStarts = directory.map(Section.CANDIDATE_STARTS.ordinal()).asIntBuffer();
+    this.candidates = directory.map(Section.CANDIDATES.ordinal()).asIntBuffer();
+    this.locationOffsets = directory.map(Section.LOCATION_OFFSETS.ordinal()).asIntBuffer();
+    this.locationBytes = directory.map(Section.LOCATION_BYTES.ordinal());
+
+    // A moved or missing gazetteer is only an error once a candidate id needs it.
+    if (gazetteer == null && this.gazetteerPath != null && new File(this.gazetteerPath).isFile()) {
+      gazetteer = new MappedGazetteer(this.gazetteerPath);
+    }
+    this.gazetteer = gazetteer;
+
+    this.candidateLists = new ConcurrentHashMap<Integer, List<Location>>();
+    this.systemCoords = Collections.synchronizedMap(new HashMap<Integer, Coordinate>());
+  }
+
+  /**
+   * Checks the magic number, so callers can tell a binary corpus from a
+   * Java-serialized one.
+   */
+  public static boolean isBinaryCorpus(String path) {
+    return SectionFile.hasMagic(path, MAGIC);
+  }
+
+  /**
+   * The path of the mapped gazetteer that candidate ids refer to, or null if
+   * all candidates are stored inline.
+   */
+  public String getGazetteerPath() {
+    return this.gazetteerPath;
+  }
+
+  public int getDocumentCount() {
+    return this.documentCount;
+  }
+
+  public int getTokenTypeCount() {
+    return this.tokenTypeCount;
+  }
+
+  public int getTokenOrigTypeCount() {
+    return this.tokenOrigTypeCount;
+  }
+
+  public int getToponymTypeCount() {
+    return this.toponymTypeCount;
+  }
+
+  public int getToponymOrigTypeCount() {
+    return this.toponymOrigTypeCount;
+  }
+
+  public int getMaxToponymAmbiguity() {
+    return this.maxToponymAmbiguity;
+  }
+
+  public double getAvgToponymAmbiguity() {
+    return this.avgToponymAmbiguity;
+  }
+
+  public int getTokenCount() {
+    return this.tokenCount;
+  }
+
+  public int getToponymTokenCount() {
+    return this.toponymTokenCount;
+  }
+
+  /**
+   * Nothing to do: documents are decoded as they're iterated over.
+   */
+  public void load() {
+  }
+
+  public void addSource(DocumentSource source) {
+    throw new UnsupportedOperationException("Cannot add a source to a binary corpus.");
+  }
+
+  public Iterator<Document<StoredToken>> iterator() {
+    return new Iterator<Document<StoredToken>>() {
+      private int current = 0;
+
+      public boolean hasNext() {
+        return this.current < BinaryCorpus.this.documentCount;
+      }
+
+      public Document<StoredToken> next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return BinaryCorpus.this.getDocument(this.current++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Read and decode a single document.
+   */
+  public Document<StoredToken> getDocument(int idx) {
+    long start = this.documentOffsets.get(idx);
+    long end = this.documentOffsets.get(idx + 1);
+    ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+    try {
+      long position = this.documentsOffset + start;
+      while (buffer.hasRemaining()) {
+        int read = this.channel.read(buffer, position + buffer.position());
+        if (read < 0) {
+          throw new EOFException("Unexpected end of " + this.path + ".");
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading document " + idx + " from " + this.path + ".", e);
+    }
+    buffer.flip();
+    return this.decodeDocument(idx, buffer);
+  }
+
+  private Document<StoredToken> decodeDocument(int idx, ByteBuffer in) {
+    String id = readString(in);
+    int toponymIdx = in.getInt();
+    int flags = in.get();
+    String title = (flags & HAS_TITLE) != 0 ? readString(in) : null;
+    String timestamp = (flags & HAS_TIMESTAMP) != 0 ? readString(in) : null;
+    Coordinate goldCoord = (flags & HAS_GOLD_COORD) != 0
+      ? Coordinate.fromRadians(in.getDouble(), in.getDouble()) : null;
+    Coordinate systemCoord = (flags & HAS_SYSTEM_COORD) != 0
+      ? Coordinate.fromRadians(in.getDouble(), in.getDouble()) : null;
+    Enum<Document.SECTION> section = (flags & HAS_SECTION) != 0
+      ? Document.SECTION.values()[in.get()] : null;
+
+    synchronized (this.systemCoords) {
+      if (this.systemCoords.containsKey(idx)) {
+        systemCoord = this.systemCoords.get(idx);
+      }
+    }
+
+    int sentenceCount = in.getInt();
+    List<Sentence<StoredToken>> sentences = new ArrayList<Sentence<StoredToken>>(sentenceCount);
+    for (int i = 0; i < sentenceCount; i++) {
+      String sentenceId = readString(in);
+      int[] tokens = new int[in.getInt()];
+      for (int j = 0; j < tokens.length; j++) {
+        tokens[j] = in.getInt();
+      }
+
+      int toponymCount = in.getInt();
+      List<Span<StoredToken>> toponymSpans = new ArrayList<Span<StoredToken>>(toponymCount);
+      for (int j = 0; j < toponymCount; j++) {
+        int spanStart = in.getInt();
+        int spanEnd = in.getInt();
+        int origIdx = in.getInt();
+        int goldIdx = in.getInt();
+        int selectedIdx = in.getInt();
+        toponymSpans.add(new Span<StoredToken>(spanStart, spanEnd,
+          new BinaryToponym(toponymIdx++, origIdx, goldIdx, selectedIdx)));
+      }
+
+      sentences.add(new BinarySentence(sentenceId, tokens, toponymSpans));
+    }
+
+    return new BinaryDocument(idx, id, title, timestamp, goldCoord, systemCoord, section, sentences);
+  }
+
+  private List<Location> getCandidateList(int origIdx) {
+    List<Location> candidates = this.candidateLists.get(origIdx);
+    if (candidates == null) {
+      int start = this.candidateStarts.get(origIdx);
+      int end = this.candidateStarts.get(origIdx + 1);
+      candidates = new ArrayList<Location>(end - start);
+      for (int i = start; i < end; i++) {
+        int candidate = this.candidates.get(i);
+        if (candidate >= 0) {
+          candidates.add(this.getGazetteerLocation(candidate));
+        } else {
+          candidates.add(this.decodeLocation(-candidate - 1));
+        }
+      }
+      // Two threads may decode the same list; either copy will do.
+      this.candidateLists.put(origIdx, candidates);
+    }
+    return candidates;
+  }
+
+  private Location getGazetteerLocation(int id) {
+    if (this.gazetteer == null) {
+      throw new IllegalStateException(this.gazetteerPath == null
+        ? this.path + " refers to gazetteer ids but records no gazetteer; open it with a MappedGazetteer."
+        : this.path + " refers to gazetteer ids in " + this.gazetteerPath
+          + ", which does not exist; open it with a MappedGazetteer.");
+    }
+    Location location = this.gazetteer.getLocationById(id);
+    if (location == null) {
+      // Skipping it would shift the gold and selected indices of the list.
+      throw new IllegalStateException("Location id " + id + " in " + this.path
+        + " is not in the gazetteer; was the corpus written against a different one?");
+    }
+    return location;
+  }
+
+  private Location decodeLocation(int idx) {
+    ByteBuffer in = this.locationBytes.duplicate();
+    in.position(this.locationOffsets.get(idx));
+
+    int id = in.getInt();
+    String name = readString(in);
+    Location.Type type = Location.Type.values()[in.get()];
+    int population = in.getInt();
+    String admin1Code = readString(in);
+    byte kind = in.get();
+    Coordinate center = Coordinate.fromRadians(in.getDouble(), in.getDouble());
+
+    Region region;
+    if (kind == POINT_REGION) {
+      region = new PointRegion(center);
+    } else {
+      int pointCount = in.getInt();
+      List<Coordinate> coordinates = new ArrayList<Coordinate>(pointCount);
+      for (int i = 0; i < pointCount; i++) {
+        coordinates.add(Coordinate.fromRadians(in.getDouble(), in.getDouble()));
+      }
+      region = new PointSetRegion(coordinates);
+      region.setCenter(center);
+    }
+
+    return new Location(id, name, region, type, population, admin1Code);
+  }
+
+  private int getGoldIdx(int toponymIdx, int stored) {
+    int[] overrides = this.goldIdxs;
+    if (overrides == null || overrides[toponymIdx] == UNSET) {
+      return stored;
+    }
+    return overrides[toponymIdx];
+  }
+
+  private int getSelectedIdx(int toponymIdx, int stored) {
+    int[] overrides = this.selectedIdxs;
+    if (overrides == null || overrides[toponymIdx] == UNSET) {
+      return stored;
+    }
+    return overrides[toponymIdx];
+  }
+
+  private synchronized void setGoldIdx(int toponymIdx, int idx) {
+    if (this.goldIdxs == null) {
+      this.goldIdxs = this.newOverrides();
+    }
+    this.goldIdxs[toponymIdx] = idx;
+  }
+
+  private synchronized void setSelectedIdx(int toponymIdx, int idx) {
+    if (this.selectedIdxs == null) {
+      this.selectedIdxs = this.newOverrides();
+    }
+    this.selectedIdxs[toponymIdx] = idx;
+  }
+
+  private int[] newOverrides() {
+    int[] overrides = new int[this.toponymTokenCount];
+    Arrays.fill(overrides, UNSET);
+    return overrides;
+  }
+
+  private static String decode(IntBuffer offsets, ByteBuffer bytes, int idx) {
+    return SectionFile.decode(bytes, offsets.get(idx), offsets.get(idx + 1));
+  }
+
+  private class BinaryDocument extends Document<StoredToken> {
+
+    private static final long serialVersionUID = 42L;
+
+    private final int idx;
+    private final List<Sentence<StoredToken>> sentences;
+
+    private BinaryDocument(int idx, String id, String title, String timestamp,
+                           Coordinate goldCoord, Coordinate systemCoord,
+                           Enum<Document.SECTION> section, List<Sentence<StoredToken>> sentences) {
+      super(id, timestamp, goldCoord, systemCoord, section, title);
+      this.idx = idx;
+      this.sentences = sentences;
+    }
+
+    @Override
+    public void setSystemCoord(Coordinate systemCoord) {
+      super.setSystemCoord(systemCoord);
+      BinaryCorpus.this.systemCoords.put(this.idx, systemCoord);
+    }
+
+    @Override
+    public void setSystemCoord(double systemLat, double systemLon) {
+      this.setSystemCoord(Coordinate.fromDegrees(systemLat, systemLon));
+    }
+
+    public Iterator<Sentence<StoredToken>> iterator() {
+      return this.sentences.iterator();
+    }
+  }
+
+  private class BinarySentence extends Sentence<StoredToken> {
+
+    private static final long serialVersionUID = 42L;
+
+    private final int[] tokens;
+    private final List<Span<StoredToken>> toponymSpans;
+
+    private BinarySentence(String id, int[] tokens, List<Span<StoredToken>> toponymSpans) {
+      super(id);
+      this.tokens = tokens;
+      this.toponymSpans = toponymSpans;
+    }
+
+    public Iterator<StoredToken> tokens() {
+      return new Iterator<StoredToken>() {
+        private int current = 0;
+
+        public boolean hasNext() {
+          return this.current < BinarySentence.this.tokens.length;
+        }
+
+        public StoredToken next() {
+          return new BinaryToken(BinarySentence.this.tokens[this.current++]);
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public Iterator<Span<StoredToken>> toponymSpans() {
+      return this.toponymSpans.iterator();
+    }
+  }
+
+  private class BinaryToken implements StoredToken {
+
+    private static final long serialVersionUID = 42L;
+
+    private final int idx;
+
+    private BinaryToken(int idx) {
+      this.idx = idx;
+    }
+
+    public String getForm() {
+      return decode(BinaryCorpus.this.tokenOffsets, BinaryCorpus.this.tokenBytes, this.getIdx());
+    }
+
+    public String getOrigForm() {
+      return decode(BinaryCorpus.this.tokenOrigOffsets, BinaryCorpus.this.tokenOrigBytes, this.idx);
+    }
+
+    public boolean isToponym() {
+      return false;
+    }
+
+    public int getIdx() {
+      return BinaryCorpus.this.tokenOrigMap.get(this.idx);
+    }
+
+    public int getOrigIdx() {
+      return this.idx;
+    }
+
+    public int getTypeCount() {
+      return BinaryCorpus.this.tokenCounts.get(this.getIdx());
+    }
+
+    public int getOrigTypeCount() {
+      return BinaryCorpus.this.tokenOrigCounts.get(this.idx);
+    }
+  }
+
+  private class BinaryToponym implements StoredToponym {
+
+    private static final long serialVersionUID = 42L;
+
+    private final int toponymIdx;
+    private final int idx;
+    private final int storedGoldIdx;
+    private final int storedSelectedIdx;
+
+    private BinaryToponym(int toponymIdx, int idx, int goldIdx, int selectedIdx) {
+      this.toponymIdx = toponymIdx;
+      this.idx = idx;
+      this.storedGoldIdx = goldIdx;
+      this.storedSelectedIdx = selectedIdx;
+    }
+
+    public String getForm() {
+      return decode(BinaryCorpus.this.toponymOffsets, BinaryCorpus.this.toponymBytes, this.getIdx());
+    }
+
+    public String getOrigForm() {
+      return decode(BinaryCorpus.this.toponymOrigOffsets, BinaryCorpus.this.toponymOrigBytes, this.idx);
+    }
+
+    public boolean isToponym() {
+      return true;
+    }
+
+    public boolean hasGold() { return this.getGoldIdx() > -1; }
+    public Location getGold() {
+      int goldIdx = this.getGoldIdx();
+      return goldIdx == -1 ? null : this.getCandidates().get(goldIdx);
+    }
+    public int getGoldIdx() { return BinaryCorpus.this.getGoldIdx(this.toponymIdx, this.storedGoldIdx); }
+    public void setGoldIdx(int idx) { BinaryCorpus.this.setGoldIdx(this.toponymIdx, idx); }
+
+    public boolean hasSelected() { return this.getSelectedIdx() > -1; }
+    public Location getSelected() {
+      int selectedIdx = this.getSelectedIdx();
+      return selectedIdx == -1 ? null : this.getCandidates().get(selectedIdx);
+    }
+    public int getSelectedIdx() { return BinaryCorpus.this.getSelectedIdx(this.toponymIdx, this.storedSelectedIdx); }
+    public void setSelectedIdx(int idx) { BinaryCorpus.this.setSelectedIdx(this.toponymIdx, idx); }
+
+    public int getAmbiguity() { return this.getCandidates().size(); }
+    public List<Location> getCandidates() { return BinaryCorpus.this.getCandidateList(this.idx); }
+    public void setCandidates(List<Location> candidates) { BinaryCorpus.this.candidateLists.put(this.idx, candidates); }
+    public Iterator<Location> iterator() { return this.getCandidates().iterator(); }
+
+    public List<Token> getTokens() { throw new UnsupportedOperationException(); }
+
+    public int getIdx() {
+      return BinaryCorpus.this.toponymOrigMap.get(this.idx);
+    }
+
+    public int getOrigIdx() {
+      return this.idx;
+    }
+
+    public int getTypeCount() {
+      return BinaryCorpus.this.toponymCounts.get(this.getIdx());
+    }
+
+    public int getOrigTypeCount() {
+      return BinaryCorpus.this.toponymOrigCounts.get(this.idx);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other != null &&
+             other.getClass() == this.getClass() &&
+             ((StoredToponym) other).getIdx() == this.getIdx();
+    }
+  }
+
+  public void close() {
+    try {
+      this.file.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Error closing " + this.path + ".", e);
+    }
+  }
+
+  /**
+   * Java serialization can't carry the open file, so a binary corpus is
+   * serialized as an equivalent in-memory corpus.
+   */
+  private Object writeReplace() throws ObjectStreamException {
+    StoredCorpus copy = Corpus.createStoredCorpus();
+    copy.addSource(this.asSource());
+    copy.load();
+    return copy;
+  }
+
+  public static void write(StoredCorpus corpus, String path) throws IOException {
+    write(corpus, path, null);
+  }
+
+  /**
+   * Write any stored corpus in the binary format. Candidates that match the
+   * location with the same id in the given mapped gazetteer are stored as
+   * that id; the rest are stored inline. If the gazetteer path is null and
+   * the corpus was itself read from a binary file, that file's gazetteer is
+   * used. The path is recorded relative to the corpus file's directory, so
+   * the two can be moved together.
+   */
+  public static void write(StoredCorpus corpus, String path, String gazetteerPath) throws IOException {
+    if (gazetteerPath == null && corpus instanceof BinaryCorpus) {
+      gazetteerPath = ((BinaryCorpus) corpus).getGazetteerPath();
+    }
+
+    MappedGazetteer gazetteer = null;
+    if (gazetteerPath != null && MappedGazetteer.isMappedGazetteer(gazetteerPath)) {
+      gazetteer = new MappedGazetteer(gazetteerPath);
+      gazetteerPath = relativePath(new File(path).getAbsoluteFile().getParentFile(), new File(gazetteerPath));
+    } else {
+      gazetteerPath = null;
+    }
+
+    Iterator<Document<StoredToken>> documents = corpus.iterator();
+
+    Lexicon tokenOrigLexicon = new Lexicon(corpus.getTokenOrigTypeCount());
+    Lexicon tokenLexicon = new Lexicon(corpus.getTokenTypeCount());
+    Lexicon toponymOrigLexicon = new Lexicon(corpus.getToponymOrigTypeCount());
+    Lexicon toponymLexicon = new Lexicon(corpus.getToponymTypeCount());
+    List<List<Location>> candidateLists = new ArrayList<List<Location>>();
+
+    long[] documentOffsets = new long[corpus.getDocumentCount() + 1];
+    int documentCount = 0;
+    int toponymIdx = 0;
+
+    SectionFile.Writer out = new SectionFile.Writer(path, Section.values().length);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      out.startSection(Section.DOCUMENTS.ordinal());
+      long documentsStart = out.getPosition();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream document = new DataOutputStream(bytes);
+
+      while (documents.hasNext()) {
+        Document<StoredToken> doc = documents.next();
+        bytes.reset();
+
+        writeString(document, doc.getId());
+        document.writeInt(toponymIdx);
+
+        int flags = 0;
+        if (doc.title != null) flags |= HAS_TITLE;
+        if (doc.getTimestamp() != null) flags |= HAS_TIMESTAMP;
+        if (doc.getGoldCoord() != null) flags |= HAS_GOLD_COORD;
+        if (doc.getSystemCoord() != null) flags |= HAS_SYSTEM_COORD;
+        if (doc.getSection() != null) flags |= HAS_SECTION;
+        document.writeByte(flags);
+        if (doc.title != null) writeString(document, doc.title);
+        if (doc.getTimestamp() != null) writeString(document, doc.getTimestamp());
+        if (doc.getGoldCoord() != null) {
+          document.writeDouble(doc.getGoldCoord().getLat());
+          document.writeDouble(doc.getGoldCoord().getLng());
+        }
+        if (doc.getSystemCoord() != null) {
+          document.writeDouble(doc.getSystemCoord().getLat());
+          document.writeDouble(doc.getSystemCoord().getLng());
+        }
+        if (doc.getSection() != null) document.writeByte(doc.getSection().ordinal());
+
+        List<Sentence<StoredToken>> sentences = new ArrayList<Sentence<StoredToken>>();
+        for (Sentence<StoredToken> sentence : doc) {
+          sentences.add(sentence);
+        }
+        document.writeInt(sentences.size());
+
+        for (Sentence<StoredToken> sentence : sentences) {
+          writeString(document, sentence.getId());
+
+          List<StoredToken> tokens = new ArrayList<StoredToken>();
+          for (Iterator<StoredToken> it = sentence.tokens(); it.hasNext(); ) {
+            tokens.add(it.next());
+          }
+          document.writeInt(tokens.size());
+          for (StoredToken token : tokens) {
+            tokenOrigLexicon.put(token.getOrigIdx(), token.getOrigForm(), token.getOrigTypeCount(), token.getIdx());
+            tokenLexicon.put(token.getIdx(), token.getForm(), token.getTypeCount(), -1);
+            document.writeInt(token.getOrigIdx());
+          }
+
+          List<Span<StoredToken>> spans = new ArrayList<Span<StoredToken>>();
+          for (Iterator<Span<StoredToken>> it = sentence.toponymSpans(); it.hasNext(); ) {
+            spans.add(it.next());
+          }
+          document.writeInt(spans.size());
+          for (Span<StoredToken> span : spans) {
+            StoredToponym toponym = (StoredToponym) span.getItem();
+            int origIdx = toponym.getOrigIdx();
+            toponymOrigLexicon.put(origIdx, toponym.getOrigForm(), toponym.getOrigTypeCount(), toponym.getIdx());
+            toponymLexicon.put(toponym.getIdx(), toponym.getForm(), toponym.getTypeCount(), -1);
+            while (candidateLists.size() <= origIdx) {
+              candidateLists.add(null);
+            }
+            candidateLists.set(origIdx, toponym.getCandidates());
+
+            document.writeInt(span.getStart());
+            document.writeInt(span.getEnd());
+            document.writeInt(origIdx);
+            document.writeInt(toponym.getGoldIdx());
+            document.writeInt(toponym.getSelectedIdx());
+            toponymIdx++;
+          }
+        }
+
+        document.flush();
+        if (documentCount + 1 >= documentOffsets.length) {
+          documentOffsets = Arrays.copyOf(documentOffsets, documentOffsets.length * 2 + 2);
+        }
+        documentOffsets[documentCount++] = out.getPosition() - documentsStart;
+        out.write(bytes.toByteArray());
+      }
+      documentOffsets[documentCount] = out.getPosition() - documentsStart;
+
+      out.startSection(Section.DOCUMENT_OFFSETS.ordinal());
+      for (int i = 0; i <= documentCount; i++) {
+        out.writeLong(documentOffsets[i]);
+      }
+
+      tokenOrigLexicon.write(out, Section.TOKEN_ORIG_OFFSETS, Section.TOKEN_ORIG_BYTES,
+                             Section.TOKEN_ORIG_COUNTS, Section.TOKEN_ORIG_MAP);
+      tokenLexicon.write(out, Section.TOKEN_OFFSETS, Section.TOKEN_BYTES, Section.TOKEN_COUNTS, null);
+      toponymOrigLexicon.write(out, Section.TOPONYM_ORIG_OFFSETS, Section.TOPONYM_ORIG_BYTES,
+                               Section.TOPONYM_ORIG_COUNTS, Section.TOPONYM_ORIG_MAP);
+      toponymLexicon.write(out, Section.TOPONYM_OFFSETS, Section.TOPONYM_BYTES, Section.TOPONYM_COUNTS, null);
+
+      // Candidates are shared between lists, so each distinct location is resolved once.
+      Map<Location, Integer> encoded = new IdentityHashMap<Location, Integer>();
+      List<Location> inline = new ArrayList<Location>();
+
+      out.startSection(Section.CANDIDATE_STARTS.ordinal());
+      int candidateStart = 0;
+      for (int i = 0; i < toponymOrigLexicon.size(); i++) {
+        out.writeInt(candidateStart);
+        if (i < candidateLists.size() && candidateLists.get(i) != null) {
+          candidateStart += candidateLists.get(i).size();
+        }
+      }
+      out.writeInt(candidateStart);
+
+      out.startSection(Section.CANDIDATES.ordinal());
+      for (List<Location> candidates : candidateLists) {
+        if (candidates == null) {
+          continue;
+        }
+        for (Location location : candidates) {
+          Integer code = encoded.get(location);
+          if (code == null) {
+            if (gazetteer != null && location.getId() >= 0 &&
+                sameLocation(location, gazetteer.getLocationById(location.getId()))) {
+              code = location.getId();
+            } else {
+              code = -inline.size() - 1;
+              inline.add(location);
+            }
+            encoded.put(location, code);
+          }
+          out.writeInt(code);
+        }
+      }
+
+      ByteArrayOutputStream locationBytes = new ByteArrayOutputStream();
+      DataOutputStream locationOut = new DataOutputStream(locationBytes);
+      out.startSection(Section.LOCATION_OFFSETS.ordinal());
+      for (Location location : inline) {
+        out.writeInt(locationOut.size());
+        writeLocation(locationOut, location);
+      }
+      out.writeInt(locationOut.size());
+      locationOut.flush();
+
+      out.startSection(Section.LOCATION_BYTES.ordinal());
+      out.write(locationBytes.toByteArray());
+
+      out.startSection(Section.STATS.ordinal());
+      out.writeInt(documentCount);
+      out.writeInt(corpus.getTokenTypeCount());
+      out.writeInt(corpus.getTokenOrigTypeCount());
+      out.writeInt(corpus.getToponymTypeCount());
+      out.writeInt(corpus.getToponymOrigTypeCount());
+      out.writeInt(corpus.getMaxToponymAmbiguity());
+      out.writeInt(corpus.getTokenCount());
+      out.writeInt(toponymIdx);
+      out.writeDouble(corpus.getAvgToponymAmbiguity());
+      if (gazetteerPath == null) {
+        out.writeInt(-1);
+      } else {
+        byte[] pathBytes = gazetteerPath.getBytes(SectionFile.UTF8);
+        out.writeInt(pathBytes.length);
+        out.write(pathBytes);
+      }
+
+      out.finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static boolean sameLocation(Location location, Location other) {
+    return other != null &&
+           location.getName().equals(other.getName()) &&
+           location.getType() == other.getType() &&
+           location.getPopulation() == other.getPopulation() &&
+           location.getRegion().getClass() == other.getRegion().getClass() &&
+           location.getRegion().getRepresentatives().equals(other.getRegion().getRepresentatives());
+  }
+
+  private static void writeLocation(DataOutputStream out, Location location) throws IOException {
+    out.writeInt(location.getId());
+    writeString(out, location.getName());
+    out.writeByte(location.getType().ordinal());
+    out.writeInt(location.getPopulation());
+    writeString(out, location.getAdmin1Code());
+
+    Region region = location.getRegion();
+    out.writeByte(region instanceof PointRegion ? POINT_REGION : POINT_SET_REGION);
+    out.writeDouble(region.getCenter().getLat());
+    out.writeDouble(region.getCenter().getLng());
+    if (!(region instanceof PointRegion)) {
+      List<Coordinate> coordinates = region.getRepresentatives();
+      out.writeInt(coordinates.size());
+      for (Coordinate coordinate : coordinates) {
+        out.writeDouble(coordinate.getLat());
+        out.writeDouble(coordinate.getLng());
+      }
+    }
+  }
+
+  /* Strings are a byte count (-1 for null) followed by UTF-8 bytes. */
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = string.getBytes(SectionFile.UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, SectionFile.UTF8);
+  }
+
+  /* The path of the target relative to the directory, or its absolute path if they share no root. */
+  private static String relativePath(File dir, File target) throws IOException {
+    String[] from = dir.getCanonicalPath().split(Pattern.quote(File.separator));
+    String[] to = target.getCanonicalPath().split(Pattern.quote(File.separator));
+    int common = 0;
+    while (common < from.length && common < to.length && from[common].equals(to[common])) {
+      common++;
+    }
+    if (common == 0) {
+      return target.getAbsolutePath();
+    }
+
+    StringBuilder relative = new StringBuilder();
+    for (int i = common; i < from.length; i++) {
+      if (from[i].length() > 0) {
+        relative.append("..").append(File.separator);
+      }
+    }
+    for (int i = common; i < to.length; i++) {
+      relative.append(to[i]);
+      if (i < to.length - 1) {
+        relative.append(File.separator);
+      }
+    }
+    return relative.toString();
+  }
+
+  /* Rebuilds a lexicon's forms, counts and lower-case mapping from the tokens that use it. */
+  private static class Lexicon {
+    private String[] forms;
+    private int[] counts;
+    private int[] map;
+    private int size = 0;
+
+    private Lexicon(int capacity) {
+      this.forms = new String[Math.max(capacity, 16)];
+      this.counts = new int[this.forms.length];
+      this.map = new int[this.forms.length];
+    }
+
+    private void put(int idx, String form, int count, int mapped) {
+      if (idx >= this.forms.length) {
+        int capacity = Math.max(idx + 1, this.forms.length * 2);
+        this.forms = Arrays.copyOf(this.forms, capacity);
+        this.counts = Arrays.copyOf(this.counts, capacity);
+        this.map = Arrays.copyOf(this.map, capacity);
+      }
+      if (this.forms[idx] == null) {
+        this.forms[idx] = form;
+        this.counts[idx] = count;
+        this.map[idx] = mapped;
+        this.size = Math.max(this.size, idx + 1);
+      }
+    }
+
+    private int size() {
+      return this.size;
+    }
+
+    private void write(SectionFile.Writer out, Section offsetSection, Section byteSection,
+                       Section countSection, Section mapSection) throws IOException {
+      List<byte[]> strings = new ArrayList<byte[]>(this.size);
+      for (int i = 0; i < this.size; i++) {
+        strings.add(this.forms[i] == null ? new byte[0] : this.forms[i].getBytes(SectionFile.UTF8));
+      }
+      out.writeStringTable(offsetSection.ordinal(), byteSection.ordinal(), strings);
+
+      out.startSection(countSection.ordinal());
+      for (int i = 0; i < this.size; i++) {
+        out.writeInt(this.counts[i]);
+      }
+
+      if (mapSection != null) {
+        out.startSection(mapSection.ordinal());
+        for (int i = 0; i < this.size; i++) {
+          out.writeInt(this.map[i]);
+        }
+      }
+    }
+  }
+}
@@ -5,50 +5,46 @@ package opennlp.textgrounder.tr.text.prep;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import opennlp.textgrounder.tr.topo.gaz.GeoNamesGazetteer;
+import opennlp.textgrounder.tr.topo.gaz.ToponymTrie;
 import opennlp.textgrounder.tr.util.Constants;
 import opennlp.textgrounder.tr.util.Span;
+import opennlp.textgrounder.tr.util.TopoUtil;
 import opennlp.tools.namefind.NameFinderME;
 import opennlp.tools.namefind.TokenNameFinder;
 import opennlp.tools.namefind.TokenNameFinderModel;
-import opennlp.tools.util.HashList;
 import opennlp.tools.util.InvalidFormatException;
-import scala.actors.threadpool.Arrays;
 
 /**
+ * Recognizes as toponyms, besides what the OpenNLP location finder finds,
+ * every run of capitalized tokens that makes up a gazetteer name, taking
+ * the longest name at each position (see ToponymTrie). Tokens found by the
+ * person and organization finders are never part of one.
+ *
  * @author abhimanu kumar
  *
  */
 public class HighRecallToponymRecognizer extends OpenNLPRecognizer {
-	private HashMap<String, Integer[]> nameHashMap;
-	private HashMap<String, Integer> stringInternHashMap;
+	private final ToponymTrie toponymTrie;
 	private TokenNameFinder personFinder;
 	private TokenNameFinder orgFinder;
-	private Pattern splitPattern;
-	private Pattern historicalPattern;
-	private static final String spaceRegEx = " ";
-	private static final String historyRegEx = "(historical)";
+	private static final String MASKED_TOKEN = " ";
 	private boolean flagStart = false;
-	private int stringCount=Integer.MIN_VALUE;
 	private int lineCount=0;
 
 	public HighRecallToponymRecognizer(GeoNamesGazetteer gnGz) throws IOException, InvalidFormatException {
+		this(gnGz.getToponymTrie());
+	}
+
+	public HighRecallToponymRecognizer(ToponymTrie toponymTrie) throws IOException, InvalidFormatException {
 		super();
-		getCleanedNameSet(gnGz.getUniqueLocationNameSet());
+		this.toponymTrie = toponymTrie;
 		getNLPModels();
-		
 	}
 
 
@@ -62,62 +58,12 @@ public class HighRecallToponymRecognizer extends OpenNLPRecognizer {
 
 
 
-	private void getCleanedNameSet(Set<String> keySet) {
-//		System.out.println("Formatting Locations...");
-		this.nameHashMap = new HashMap<String,Integer[]>(500000);
-		this.stringInternHashMap = new HashMap<String, Integer>(100000);
-		compilePatterns();
-		for (Iterator iterator = keySet.iterator(); iterator.hasNext();) {
-			String toponym = (String) iterator.next();
-			toponym = historicalPattern.matcher(toponym).replaceAll("");
-			
-			
-			if(!nameHashMap.containsKey(toponym)){
-				String[] toponymTokens = splitPattern.split(toponym);
-				int xorNum = 0;
-				ArrayList<Integer> tokenIntList = new ArrayList<Integer>();
-				for (int i = 0; i < toponymTokens.length; i++) {
-					String token = toponymTokens[i];//.trim();
-					if(stringInternHashMap.containsKey(token)){
-						tokenIntList.add(stringInternHashMap.get(token));
-					}else{
-						stringInternHashMap.put(token, stringCount);
-						tokenIntList.add(stringCount);
-						stringCount++;
-					}
-				}
-				nameHashMap.put(toponym,tokenIntList.toArray(new Integer[0]));
-			}
-		}
-//		System.out.println(nameHashMap.size());
-//		System.out.println(stringInternHashMap.size());
-	}
-
-
-
-	private void compilePatterns() {
-		splitPattern = Pattern.compile(spaceRegEx); 
-		historicalPattern = Pattern.compile(historyRegEx);		
-	}
-
-
-
 	public HighRecallToponymRecognizer(String gazPath) throws Exception{
-		super();
-		GZIPInputStream gis;
-		ObjectInputStream ois;
-		GeoNamesGazetteer gnGaz = null;
-		gis = new GZIPInputStream(new FileInputStream(gazPath));
-		ois = new ObjectInputStream(gis);
-		gnGaz = (GeoNamesGazetteer) ois.readObject();
-		getCleanedNameSet(gnGaz.getUniqueLocationNameSet());
-		getNLPModels();
+		this(TopoUtil.getToponymTrie(TopoUtil.readGazetteer(gazPath)));
 	}
 
 	public HighRecallToponymRecognizer(Set<String> uniqueLocationNameSet) throws IOException, InvalidFormatException {
-		super();
-		getCleanedNameSet(uniqueLocationNameSet);
-		getNLPModels();
+		this(new ToponymTrie(uniqueLocationNameSet));
 	}
 
 
@@ -133,99 +79,68 @@ public class HighRecallToponymRecognizer extends OpenNLPRecognizer {
 		}
 		lineCount++;
 		List<Span<NamedEntityType>> spans = new ArrayList<Span<NamedEntityType>>();
-		String[] tokensToBeLookedArray = (String[]) Arrays.copyOf(tokens.toArray(),tokens.toArray().length,String[].class);
-		for (opennlp.tools.util.Span span : this.finder.find(tokens.toArray(new String[0]))) {
+		String[] tokenArray = tokens.toArray(new String[0]);
+		String[] tokensToBeLookedArray = tokens.toArray(new String[0]);
+		for (opennlp.tools.util.Span span : this.finder.find(tokenArray)) {
 			spans.add(new Span<NamedEntityType>(span.getStart(), span.getEnd(), this.type));
 
 			for (int i = span.getStart(); i < span.getEnd(); i++) {
-				tokensToBeLookedArray[i]=" ";
+				tokensToBeLookedArray[i]=MASKED_TOKEN;
 			}
 		}
 
-		for (opennlp.tools.util.Span span : this.personFinder.find(tokens.toArray(new String[0]))) {
+		for (opennlp.tools.util.Span span : this.personFinder.find(tokenArray)) {
 			for (int i = span.getStart(); i < span.getEnd(); i++) {
-//				System.out.println("PERSON "+tokensToBeLookedArray[i]);
-				tokensToBeLookedArray[i]=" ";
+				tokensToBeLookedArray[i]=MASKED_TOKEN;
 			}
 		}
 
-		for (opennlp.tools.util.Span span : this.orgFinder.find(tokens.toArray(new String[0]))) {
+		for (opennlp.tools.util.Span span : this.orgFinder.find(tokenArray)) {
 			for (int i = span.getStart(); i < span.getEnd(); i++) {
-//				System.out.println("ORG "+tokensToBeLookedArray[i]);
-				tokensToBeLookedArray[i]=" ";
+				tokensToBeLookedArray[i]=MASKED_TOKEN;
 			}
 		}
 
 		for (int i = 0; i < tokensToBeLookedArray.length; i++) {
 			String token = tokensToBeLookedArray[i];
-			if(token.length()==1)
-				continue;;
-				if(startsWithCaps(token)){
-					boolean matched=true; 
-					int k=0;
-					for (Iterator iterator = nameHashMap.keySet().iterator(); iterator.hasNext();) {
-						String toponymTokens = ((String) iterator.next());
-							
-						int toponymLength=nameHashMap.get(toponymTokens).length;
-						if(toponymLength>tokensToBeLookedArray.length-i)
-							continue;
-						
-						matched=true;
-							
-						ArrayList<Integer> suspectedTokenSet = new ArrayList<Integer>();
-						for (int j = 0; j < toponymLength; j++) {
-							if(!startsWithCaps(tokensToBeLookedArray[j+i])){
-								matched=false;
-								break;
-							}
-							suspectedTokenSet.add(stringInternHashMap.get(tokensToBeLookedArray[j+i].toLowerCase()));
-							
-						}
-						if(!stringMatch(suspectedTokenSet.toArray(new Integer[0]),nameHashMap.get(toponymTokens))){
-							matched=false;
-							continue;
-						}
-						if(matched){
-							k=i+toponymLength-1;
-							break;
-						}
-					}
-					if(matched){
-//						String startToken = tokensToBeLookedArray[i];
-//						String endToken = tokensToBeLookedArray[k];
-						spans.add(new Span<NamedEntityType>(i, k+1, this.type));
-						i=k;
-//						System.out.println(startToken+endToken);
-					}
-				}
+			if(token.length()==1 || !startsWithCaps(token))
+				continue;
+			int end = longestMatch(tokensToBeLookedArray, i);
+			if(end > i){
+				spans.add(new Span<NamedEntityType>(i, end, this.type));
+				i=end-1;
+			}
 		}
 		return spans;
 	}
 
-
-	private boolean stringMatch(Integer[] suspectedSet,Integer[] toponymSet) {
-		for (int i = 0; i < suspectedSet.length; i++) {
-			if(suspectedSet[i]!=toponymSet[i])
-				return false;
-		}
-		return true;
-	}
-	
-	private boolean stringMatch(StringBuilder tokenCombined,
-			StringBuilder toponymCombined) {
-		if(tokenCombined.length()!=toponymCombined.length())
-			return false;
-		for (int i = 0; i < tokenCombined.length(); i++) {
-			if(tokenCombined.charAt(i)!=toponymCombined.charAt(i))
-				return false;
+	/* End (exclusive) of the longest gazetteer name made up of the capitalized
+	 * tokens starting at start, or start if there's none. Masked tokens aren't
+	 * capitalized, so a name never runs into one. */
+	private int longestMatch(String[] tokensToBeLookedArray, int start) {
+		int node = ToponymTrie.ROOT;
+		int end = start;
+		for (int j = start; j < tokensToBeLookedArray.length; j++) {
+			String token = tokensToBeLookedArray[j];
+			if(!startsWithCaps(token))
+				break;
+			int tokenId = toponymTrie.getTokenId(token.toLowerCase());
+			if(tokenId < 0)
+				break;
+			node = toponymTrie.getChild(node, tokenId);
+			if(node < 0)
+				break;
+			if(toponymTrie.isNameEnd(node))
+				end = j+1;
 		}
-		return true;
+		return end;
 	}
 
 
 
 	private boolean startsWithCaps(String tobeLooked) {
-		return new Integer('A')<=new Integer(tobeLooked.charAt(0)) && new Integer(tobeLooked.charAt(0))<=new Integer('Z');
+		char first = tobeLooked.charAt(0);
+		return 'A'<=first && first<='Z';
 	}
 	
 	
@@ -0,0 +1,239 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.text.prep;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import opennlp.textgrounder.tr.text.*;
+import opennlp.textgrounder.tr.topo.*;
+import opennlp.textgrounder.tr.topo.gaz.*;
+
+/**
+ * A ToponymAnnotator that annotates several documents at once, for importing
+ * large corpora. A reader thread, started when the first document is asked
+ * for, pulls documents from the wrapped source (which is where sentence
+ * splitting and tokenizing happen, since sources do them lazily and must be
+ * read in order) and hands each one to a pool of
+ * worker threads for named entity recognition and candidate lookup. Each
+ * worker has its own recognizer from the factory, since OpenNLP's name
+ * finders aren't thread-safe. Documents come out in the same order as from
+ * the wrapped source, and at most queueSize of them are read ahead.
+ */
+public class ParallelToponymAnnotator extends ToponymAnnotator {
+  public static final int DEFAULT_QUEUE_SIZE = 256;
+
+  /* Marks the end of the documents in the queue. */
+  private static final Future<Document<Token>> END = new FutureEnd();
+
+  private final ExecutorService workers;
+  private final BlockingQueue<Future<Document<Token>>> annotated;
+  private final ThreadLocal<NamedEntityRecognizer> recognizers;
+  private final Thread reader;
+  private Future<Document<Token>> nextDocument = null;
+
+  public ParallelToponymAnnotator(DocumentSource source,
+                                  NamedEntityRecognizerFactory recognizerFactory,
+                                  Gazetteer gazetteer,
+                                  Region boundingBox,
+                                  int numThreads) {
+    this(source, recognizerFactory, gazetteer, boundingBox, numThreads, DEFAULT_QUEUE_SIZE);
+  }
+
+  public ParallelToponymAnnotator(DocumentSource source,
+                                  final NamedEntityRecognizerFactory recognizerFactory,
+                                  Gazetteer gazetteer,
+                                  Region boundingBox,
+                                  int numThreads,
+                                  int queueSize) {
+    super(source, null, gazetteer, boundingBox);
+    this.recognizers = new ThreadLocal<NamedEntityRecognizer>() {
+      protected NamedEntityRecognizer initialValue() {
+        try {
+          return recognizerFactory.create();
+        } catch (Exception e) {
+          throw new RuntimeException("Couldn't create a named entity recognizer", e);
+        }
+      }
+    };
+    this.workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "toponym-annotator");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.annotated = new ArrayBlockingQueue<Future<Document<Token>>>(queueSize);
+    this.reader = new Thread("toponym-annotator-reader") {
+      public void run() {
+        ParallelToponymAnnotator.this.readDocuments();
+      }
+    };
+    this.reader.setDaemon(true);
+  }
+
+  /* Runs on the reader thread: reads each document in full and queues its
+   * annotation, then queues END. If reading fails, the failure is queued in
+   * place of the next document, still followed by END. */
+  private void readDocuments() {
+    try {
+      DocumentSource source = this.getSource();
+      while (source.hasNext()) {
+        final Document<Token> document = source.next();
+        final List<Sentence<Token>> sentences = new ArrayList<Sentence<Token>>();
+        for (Sentence<Token> sentence : document) {
+          sentences.add(new SimpleSentence<Token>(sentence.getId(), sentence.getTokens()));
+        }
+        this.annotated.put(this.workers.submit(new Callable<Document<Token>>() {
+          public Document<Token> call() {
+            return ParallelToponymAnnotator.this.annotateDocument(document, sentences);
+          }
+        }));
+      }
+      this.annotated.put(END);
+    } catch (InterruptedException e) {
+    } catch (final Throwable e) {
+      try {
+        this.annotated.put(new FutureFailure(e));
+        this.annotated.put(END);
+      } catch (InterruptedException ie) {
+      }
+    }
+  }
+
+  /* Runs on a worker thread. */
+  private Document<Token> annotateDocument(Document<Token> document, List<Sentence<Token>> sentences) {
+    NamedEntityRecognizer recognizer = this.recognizers.get();
+    final List<Sentence<Token>> annotatedSentences = new ArrayList<Sentence<Token>>(sentences.size());
+    for (Sentence<Token> sentence : sentences) {
+      annotatedSentences.add(this.annotate(sentence, recognizer));
+    }
+    return new Document<Token>(document.getId(), document.getTimestamp(), document.getGoldCoord(), document.getSystemCoord(), document.getSection(), document.title) {
+      private static final long serialVersionUID = 42L;
+      public Iterator<Sentence<Token>> iterator() {
+        return annotatedSentences.iterator();
+      }
+    };
+  }
+
+  private Future<Document<Token>> peek() {
+    if (this.reader.getState() == Thread.State.NEW) {
+      this.reader.start();
+    }
+    if (this.nextDocument == null) {
+      try {
+        this.nextDocument = this.annotated.take();
+        if (this.nextDocument == END) {
+          this.workers.shutdown();
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while waiting for a document", e);
+      }
+    }
+    return this.nextDocument;
+  }
+
+  public boolean hasNext() {
+    return this.peek() != END;
+  }
+
+  public Document<Token> next() {
+    Future<Document<Token>> document = this.peek();
+    if (document == END) {
+      throw new java.util.NoSuchElementException();
+    }
+    this.nextDocument = null;
+    try {
+      return document.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while waiting for a document", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Stops the reader and worker threads and closes the underlying source.
+   */
+  public void close() {
+    this.reader.interrupt();
+    this.workers.shutdownNow();
+    super.close();
+  }
+
+  /* A failure of the reader, handed to the consumer in place of the next document. */
+  private static class FutureFailure implements Future<Document<Token>> {
+    private final Throwable cause;
+
+    public FutureFailure(Throwable cause) {
+      this.cause = cause;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public Document<Token> get() throws ExecutionException {
+      throw new ExecutionException(this.cause);
+    }
+
+    public Document<Token> get(long timeout, java.util.concurrent.TimeUnit unit) throws ExecutionException {
+      return this.get();
+    }
+  }
+
+  private static class FutureEnd implements Future<Document<Token>> {
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public Document<Token> get() {
+      return null;
+    }
+
+    public Document<Token> get(long timeout, java.util.concurrent.TimeUnit unit) {
+      return null;
+    }
+  }
+}
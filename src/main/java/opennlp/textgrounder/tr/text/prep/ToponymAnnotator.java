@@ -16,6 +16,7 @@
 package opennlp.textgrounder.tr.text.prep;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -35,6 +36,7 @@ public class ToponymAnnotator extends DocumentSourceWrapper {
   private final NamedEntityRecognizer recognizer;
   private final Gazetteer gazetteer;
   private final Region boundingBox;
+  private final BitSet idsInBox;
 
   public ToponymAnnotator(DocumentSource source,
                           NamedEntityRecognizer recognizer,
@@ -50,6 +52,8 @@ public class ToponymAnnotator extends DocumentSourceWrapper {
     this.recognizer = recognizer;
     this.gazetteer = gazetteer;
     this.boundingBox = boundingBox;
+    // Ask the gazetteer's spatial index once, rather than checking every candidate's points.
+    this.idsInBox = TopoUtil.getIdsInBox(gazetteer, boundingBox);
   }
 
   public Document<Token> next() {
@@ -65,57 +69,66 @@ public class ToponymAnnotator extends DocumentSourceWrapper {
           }
 
           public Sentence<Token> next() {
-            Sentence<Token> sentence = sentences.next();
-            List<String> forms = new ArrayList<String>();
-            List<Token> tokens = sentence.getTokens();
+            return ToponymAnnotator.this.annotate(sentences.next(), ToponymAnnotator.this.recognizer);
+          }
+        };
+      }
+    };
+  }
 
-            for (Token token : tokens) {
-              forms.add(token.getOrigForm());
-            }
+  /**
+   * Identifies the toponyms of a sentence using the given recognizer, which
+   * replace any toponym spans it had.
+   */
+  protected Sentence<Token> annotate(Sentence<Token> sentence, NamedEntityRecognizer recognizer) {
+    List<String> forms = new ArrayList<String>();
+    List<Token> tokens = sentence.getTokens();
 
-            List<Span<NamedEntityType>> spans = ToponymAnnotator.this.recognizer.recognize(forms);
-            List<Span<Toponym>> toponymSpans = new ArrayList<Span<Toponym>>();
+    for (Token token : tokens) {
+      forms.add(token.getOrigForm());
+    }
 
-            for (Span<NamedEntityType> span : spans) {
-              if (span.getItem() == NamedEntityType.LOCATION) {
-                StringBuilder builder = new StringBuilder();
-                for (int i = span.getStart(); i < span.getEnd(); i++) {
-                  builder.append(forms.get(i));
-                  if (i < span.getEnd() - 1) {
-                    builder.append(" ");
-                  }
-                }
+    List<Span<NamedEntityType>> spans = recognizer.recognize(forms);
+    List<Span<Toponym>> toponymSpans = new ArrayList<Span<Toponym>>();
 
-                String form = builder.toString();
-                //List<Location> candidates = ToponymAnnotator.this.gazetteer.lookup(form.toLowerCase());
-                List<Location> candidates = TopoUtil.filter(
-                    ToponymAnnotator.this.gazetteer.lookup(form.toLowerCase()), boundingBox);
-                if(candidates != null) {
-                    for(Location loc : candidates) {
-                        List<Coordinate> reps = loc.getRegion().getRepresentatives();
-                        int prevSize = reps.size();
-                        Coordinate.removeNaNs(reps);
-                        if(reps.size() < prevSize)
-                            loc.getRegion().setCenter(Coordinate.centroid(reps));
-                    }
-                }
-                //if(form.equalsIgnoreCase("united states"))
-                //    for(Location loc : ToponymAnnotator.this.gazetteer.lookup("united states"))
-                //        System.out.println(loc.getRegion().getCenter());
-                if (candidates != null) {
-                  Toponym toponym = new SimpleToponym(form, candidates);
-                  //if(form.equalsIgnoreCase("united states"))
-                  //    System.out.println(toponym.getCandidates().get(0).getRegion().getCenter());
-                  toponymSpans.add(new Span<Toponym>(span.getStart(), span.getEnd(), toponym));
+    for (Span<NamedEntityType> span : spans) {
+      if (span.getItem() == NamedEntityType.LOCATION) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = span.getStart(); i < span.getEnd(); i++) {
+          builder.append(forms.get(i));
+          if (i < span.getEnd() - 1) {
+            builder.append(" ");
+          }
+        }
+
+        String form = builder.toString();
+        List<Location> candidates = this.gazetteer.lookup(form.toLowerCase());
+        candidates = TopoUtil.filter(candidates, this.idsInBox, boundingBox);
+        if(candidates != null) {
+            for(Location loc : candidates) {
+                // Locations are shared by all sentences (see ParallelToponymAnnotator).
+                synchronized(loc) {
+                    List<Coordinate> reps = loc.getRegion().getRepresentatives();
+                    int prevSize = reps.size();
+                    Coordinate.removeNaNs(reps);
+                    if(reps.size() < prevSize)
+                        loc.getRegion().setCenter(Coordinate.centroid(reps));
                 }
-              }
             }
-
-            return new SimpleSentence(sentence.getId(), tokens, toponymSpans);
-          }
-        };
+        }
+        //if(form.equalsIgnoreCase("united states"))
+        //    for(Location loc : this.gazetteer.lookup("united states"))
+        //        System.out.println(loc.getRegion().getCenter());
+        if (candidates != null) {
+          Toponym toponym = new SimpleToponym(form, candidates);
+          //if(form.equalsIgnoreCase("united states"))
+          //    System.out.println(toponym.getCandidates().get(0).getRegion().getCenter());
+          toponymSpans.add(new Span<Toponym>(span.getStart(), span.getEnd(), toponym));
+        }
       }
-    };
+    }
+
+    return new SimpleSentence(sentence.getId(), tokens, toponymSpans);
   }
 }
 
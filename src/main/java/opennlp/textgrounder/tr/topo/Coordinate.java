@@ -17,6 +17,8 @@ package opennlp.textgrounder.tr.topo;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import opennlp.textgrounder.tr.util.FastTrig;
@@ -27,10 +29,28 @@ public class Coordinate implements Serializable {
 
     private final double lng;
     private final double lat;
+
+    /* The point as a 3-D unit vector, so distances only need a dot product. */
+    private transient double x;
+    private transient double y;
+    private transient double z;
     
     public Coordinate(double lat, double lng) {
       this.lng = lng;
       this.lat = lat;
+      this.computeVector();
+    }
+
+    private void computeVector() {
+      double cosLat = Math.cos(this.lat);
+      this.x = cosLat * Math.cos(this.lng);
+      this.y = cosLat * Math.sin(this.lng);
+      this.z = Math.sin(this.lat);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      this.computeVector();
     }
 
     public static Coordinate fromRadians(double lat, double lng) {
@@ -49,6 +69,18 @@ public class Coordinate implements Serializable {
       return this.lng;
     }
 
+    public double getX() {
+      return this.x;
+    }
+
+    public double getY() {
+      return this.y;
+    }
+
+    public double getZ() {
+      return this.z;
+    }
+
     public double getLatDegrees() {
       return this.lat * 180.0 / Math.PI;
     }
@@ -102,11 +134,38 @@ public class Coordinate implements Serializable {
       return String.format("%.02f,%.02f", this.getLatDegrees(), this.getLngDegrees());
     }
 
+    /**
+     * The cosine of the great-circle distance to another coordinate: larger
+     * is closer, so candidates can be compared without taking any arc
+     * cosines. Exactly 1 for equal coordinates.
+     */
+    public double dot(Coordinate other) {
+      if(this.lat == other.lat && this.lng == other.lng)
+        return 1.0;
+      return this.x * other.x + this.y * other.y + this.z * other.z;
+    }
+
+    /**
+     * Convert the cosine from dot (or Region.maxDot) into a distance in
+     * radians. Rounding can push the cosine of two nearby points just past 1,
+     * so it is clamped rather than letting acos return NaN.
+     */
+    public static double distanceFromDot(double dot) {
+      return Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+    }
+
+    /**
+     * Same as distanceFromDot, but with FastTrig.acosApprox, whose error is
+     * under 3e-8 radians.
+     */
+    public static double approxDistanceFromDot(double dot) {
+      return FastTrig.acosApprox(dot);
+    }
+
     public double distance(Coordinate other) {
       if(this.lat == other.lat && this.lng == other.lng)
         return 0;
-      return Math.acos(Math.sin(this.lat) * Math.sin(other.lat)
-                                + Math.cos(this.lat) * Math.cos(other.lat) * Math.cos(other.lng - this.lng));
+      return distanceFromDot(this.dot(other));
     }
 
     public double distanceInKm(Coordinate other) {
@@ -89,19 +89,4 @@ public class PointSetRegion extends Region {
         this.coordinates = representatives;
         this.center = Coordinate.centroid(representatives);
     }
-
-  @Override
-  public double distance(Coordinate coordinate) {
-    double minDistance = Double.POSITIVE_INFINITY;
-
-    for (Coordinate representative : this.coordinates) {
-      double distance = representative.distance(coordinate);
-      if (distance < minDistance) {
-        minDistance = distance;
-      }
-    }
-
-    return minDistance;
-  }
 }
-
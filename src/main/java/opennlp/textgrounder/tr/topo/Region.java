@@ -53,28 +53,58 @@ public abstract class Region implements Serializable {
     return this.getMaxLng() * Math.PI / 180.0;
   }
 
-  public double distance(Region other) {
-    //return this.distance(other.getCenter());
-    double minDist = Double.POSITIVE_INFINITY;
+  /**
+   * The largest cosine of the distance between any pair of representatives,
+   * or negative infinity if either region has none. The nearest pair is the one with the
+   * largest dot product, so only one arc cosine is needed per region pair.
+   */
+  public double maxDot(Region other) {
+    double maxDot = Double.NEGATIVE_INFINITY;
     for(Coordinate coord : this.getRepresentatives()) {
         for(Coordinate otherCoord : other.getRepresentatives()) {
-            double curDist = coord.distance(otherCoord);
-            if(curDist < minDist)
-                minDist = curDist;
+            double curDot = coord.dot(otherCoord);
+            if(curDot > maxDot)
+                maxDot = curDot;
         }
     }
-    return minDist;
+    return maxDot;
   }
 
-  public double distance(Coordinate coordinate) {
-    //return this.getCenter().distance(coordinate);
-    double minDist = Double.POSITIVE_INFINITY;
+  public double maxDot(Coordinate coordinate) {
+    double maxDot = Double.NEGATIVE_INFINITY;
     for(Coordinate coord : this.getRepresentatives()) {
-        double curDist = coord.distance(coordinate);
-        if(curDist < minDist)
-            minDist = curDist;
+        double curDot = coord.dot(coordinate);
+        if(curDot > maxDot)
+            maxDot = curDot;
     }
-    return minDist;
+    return maxDot;
+  }
+
+  public double distance(Region other) {
+    //return this.distance(other.getCenter());
+    return toDistance(this.maxDot(other));
+  }
+
+  public double distance(Coordinate coordinate) {
+    //return this.getCenter().distance(coordinate);
+    return toDistance(this.maxDot(coordinate));
+  }
+
+  /**
+   * Like distance(Region), but using the approximate arc cosine in FastTrig
+   * (within 3e-8 radians of the exact distance).
+   */
+  public double approxDistance(Region other) {
+    double maxDot = this.maxDot(other);
+    if(maxDot == Double.NEGATIVE_INFINITY)
+        return Double.POSITIVE_INFINITY;
+    return Coordinate.approxDistanceFromDot(maxDot);
+  }
+
+  protected static double toDistance(double maxDot) {
+    if(maxDot == Double.NEGATIVE_INFINITY)
+        return Double.POSITIVE_INFINITY;
+    return Coordinate.distanceFromDot(maxDot);
   }
 
   public double distanceInKm(Region other) {
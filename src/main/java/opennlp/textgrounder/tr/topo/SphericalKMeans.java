@@ -0,0 +1,152 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.topo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * K-means over coordinates, following util.cluster.KMeans with
+ * SphericalGeometry but working on primitive arrays: every point is turned
+ * into a 3-D unit vector once, the nearest centroid is the one with the
+ * largest dot product (the same as the smallest great-circle distance, with
+ * no acos), and centroids are computed the way Coordinate.centroid does it.
+ * Initial centroids are drawn from the given Random, so runs are
+ * reproducible. The Scala version draws them from the unseeded global
+ * scala.util.Random instead, so the two don't in general end up with the
+ * same centroids.
+ */
+public class SphericalKMeans {
+
+  /* The spherical centroid isn't a true mean, so guard against assignments that cycle. */
+  private static final int MAX_ITERATIONS = 1000;
+
+  private final Random random;
+
+  public SphericalKMeans(Random random) {
+    this.random = random;
+  }
+
+  public List<Coordinate> cluster(List<Coordinate> points, int k) {
+    int n = points.size();
+    double[] sinLat = new double[n];
+    double[] cosLat = new double[n];
+    double[] sinLng = new double[n];
+    double[] cosLng = new double[n];
+    double[] x = new double[n];
+    double[] y = new double[n];
+    double[] z = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      Coordinate point = points.get(i);
+      sinLat[i] = Math.sin(point.getLat());
+      cosLat[i] = Math.cos(point.getLat());
+      sinLng[i] = Math.sin(point.getLng());
+      cosLng[i] = Math.cos(point.getLng());
+      x[i] = cosLat[i] * cosLng[i];
+      y[i] = cosLat[i] * sinLng[i];
+      z[i] = sinLat[i];
+    }
+
+    double[] cLat = new double[k];
+    double[] cLng = new double[k];
+    double[] cx = new double[k];
+    double[] cy = new double[k];
+    double[] cz = new double[k];
+
+    for (int c = 0; c < k; c++) {
+      int i = this.random.nextInt(n);
+      cLat[c] = points.get(i).getLat();
+      cLng[c] = points.get(i).getLng();
+      cx[c] = x[i];
+      cy[c] = y[i];
+      cz[c] = z[i];
+    }
+
+    int[] assignments = new int[n];
+    int[] next = new int[n];
+    assign(x, y, z, cx, cy, cz, assignments);
+
+    double[] latSins = new double[k];
+    double[] latCoss = new double[k];
+    double[] lngSins = new double[k];
+    double[] lngCoss = new double[k];
+    int[] sizes = new int[k];
+
+    for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+      Arrays.fill(latSins, 0.0);
+      Arrays.fill(latCoss, 0.0);
+      Arrays.fill(lngSins, 0.0);
+      Arrays.fill(lngCoss, 0.0);
+      Arrays.fill(sizes, 0);
+
+      for (int i = 0; i < n; i++) {
+        int c = assignments[i];
+        latSins[c] += sinLat[i];
+        latCoss[c] += cosLat[i];
+        lngSins[c] += sinLng[i];
+        lngCoss[c] += cosLng[i];
+        sizes[c]++;
+      }
+
+      for (int c = 0; c < k; c++) {
+        // An empty cluster gets a NaN centroid, as with Coordinate.centroid;
+        // callers drop those with Coordinate.removeNaNs.
+        cLat[c] = Math.atan2(latSins[c] / sizes[c], latCoss[c] / sizes[c]);
+        cLng[c] = Math.atan2(lngSins[c] / sizes[c], lngCoss[c] / sizes[c]);
+        double cosCLat = Math.cos(cLat[c]);
+        cx[c] = cosCLat * Math.cos(cLng[c]);
+        cy[c] = cosCLat * Math.sin(cLng[c]);
+        cz[c] = Math.sin(cLat[c]);
+      }
+
+      assign(x, y, z, cx, cy, cz, next);
+      boolean done = Arrays.equals(assignments, next);
+      int[] temp = assignments;
+      assignments = next;
+      next = temp;
+      if (done) {
+        break;
+      }
+    }
+
+    List<Coordinate> centroids = new ArrayList<Coordinate>(k);
+    for (int c = 0; c < k; c++) {
+      centroids.add(Coordinate.fromRadians(cLat[c], cLng[c]));
+    }
+    return centroids;
+  }
+
+  /* Nearest centroid by dot product; NaN centroids never win, ties go to the lower index. */
+  private static void assign(double[] x, double[] y, double[] z,
+                             double[] cx, double[] cy, double[] cz, int[] assignments) {
+    int k = cx.length;
+    for (int i = 0; i < x.length; i++) {
+      double best = Double.NEGATIVE_INFINITY;
+      int bestIdx = 0;
+      for (int c = 0; c < k; c++) {
+        double dot = x[i] * cx[c] + y[i] * cy[c] + z[i] * cz[c];
+        if (dot > best) {
+          best = dot;
+          bestIdx = c;
+        }
+      }
+      assignments[i] = bestIdx;
+    }
+  }
+}
@@ -17,15 +17,14 @@ package opennlp.textgrounder.tr.topo.gaz;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import opennlp.textgrounder.tr.topo.Coordinate;
 import opennlp.textgrounder.tr.topo.Location;
 import opennlp.textgrounder.tr.topo.PointRegion;
 import opennlp.textgrounder.tr.topo.PointSetRegion;
 import opennlp.textgrounder.tr.topo.Region;
-import opennlp.textgrounder.tr.topo.SphericalGeometry;
-import opennlp.textgrounder.tr.util.cluster.Clusterer;
-import opennlp.textgrounder.tr.util.cluster.KMeans;
+import opennlp.textgrounder.tr.topo.SphericalKMeans;
 
 public class GeoNamesGazetteer implements Gazetteer, Serializable {
   /**
@@ -37,20 +36,32 @@ private final boolean expandRegions;
   private final int minPoints;
   private final int maxPoints;
   private final int maxConsidered;
+  private final int numThreads;
+
+  // Defaults for the representative points of IPE regions
+  public static final double DEFAULT_POINT_RATIO = 0.005;
+  public static final int DEFAULT_MIN_POINTS = 5;
+  public static final int DEFAULT_MAX_POINTS = 30;
+  public static final int DEFAULT_MAX_CONSIDERED = 2000;
+
+  private static final int LINES_PER_BLOCK = 20000;
+  private static final long KMEANS_SEED = 42L;
 
   private final List<Location> locations;
   private final Map<String, List<Location>> names;
   private final Map<String, Integer> ipes;
   //private final Map<String, Integer> adms;
   private Map<String, List<Coordinate>> ipePoints; // made mutable so can assign to null when done for faster GC
+  private transient SpatialIndex spatialIndex = null; // built on first use, not serialized
+  private ToponymTrie toponymTrie = null; // built on first use, serialized once built
   //private final Map<String, List<Coordinate>> admPoints;
 
   public GeoNamesGazetteer(BufferedReader reader) throws IOException {
-    this(reader, true, 0.005);
+    this(reader, true, DEFAULT_POINT_RATIO);
   }
 
   public GeoNamesGazetteer(BufferedReader reader, boolean expandRegions) throws IOException {
-    this(reader, expandRegions, 0.005);
+    this(reader, expandRegions, DEFAULT_POINT_RATIO);
   }
 
   public GeoNamesGazetteer(BufferedReader reader, boolean expandRegions, int kPoints)
@@ -60,21 +71,27 @@ private final boolean expandRegions;
 
   public GeoNamesGazetteer(BufferedReader reader, boolean expandRegions, double pointRatio)
     throws IOException {
-    this(reader, expandRegions, pointRatio, 5, 30);
+    this(reader, expandRegions, pointRatio, DEFAULT_MIN_POINTS, DEFAULT_MAX_POINTS);
   }
 
   public GeoNamesGazetteer(BufferedReader reader, boolean expandRegions, double pointRatio, int minPoints, int maxPoints)
     throws IOException {
-    this(reader, expandRegions, pointRatio, minPoints, maxPoints, 2000);
+    this(reader, expandRegions, pointRatio, minPoints, maxPoints, DEFAULT_MAX_CONSIDERED);
   }
 
   public GeoNamesGazetteer(BufferedReader reader, boolean expandRegions, double pointRatio, int minPoints, int maxPoints, int maxConsidered)
+    throws IOException {
+    this(reader, expandRegions, pointRatio, minPoints, maxPoints, maxConsidered, Runtime.getRuntime().availableProcessors());
+  }
+
+  public GeoNamesGazetteer(BufferedReader reader, boolean expandRegions, double pointRatio, int minPoints, int maxPoints, int maxConsidered, int numThreads)
     throws IOException {
     this.expandRegions = expandRegions;
     this.pointRatio = pointRatio;
     this.minPoints = minPoints;
     this.maxPoints = maxPoints;
     this.maxConsidered = maxConsidered;
+    this.numThreads = Math.max(1, numThreads);
 
     this.locations = new ArrayList<Location>();
     this.names = new HashMap<String, List<Location>>();
@@ -103,44 +120,67 @@ private final boolean expandRegions;
     return true;
   }
 
+  /**
+   * Replaces the point region of every independent political entity with a
+   * set of representative points found by clustering the locations inside it.
+   * Entities are clustered in parallel; each one draws its sample and its
+   * initial centroids from a Random seeded by KMEANS_SEED and its country
+   * code, so the result doesn't depend on scheduling.
+   */
   private void expandIPE() {
-    Clusterer clusterer = new KMeans();
-
     System.out.println("Selecting points for " + this.ipes.size() + " independent political entities.");
-    for (String ipe : this.ipes.keySet()) {
-      Location location = this.locations.get(this.ipes.get(ipe));
-      List<Coordinate> contained = this.ipePoints.get(ipe);// ALL points in e.g. USA
 
-      int k = (int) Math.floor(contained.size() * this.pointRatio);
-      if (k < this.minPoints) {
-        k = this.minPoints;
+    ExecutorService pool = Executors.newFixedThreadPool(this.numThreads);
+    try {
+      List<Future<?>> tasks = new ArrayList<Future<?>>(this.ipes.size());
+      for (final String ipe : this.ipes.keySet()) {
+        tasks.add(pool.submit(new Runnable() {
+          public void run() {
+            GeoNamesGazetteer.this.expandIPE(ipe);
+          }
+        }));
       }
-      if (k > this.maxPoints) {
-        k = this.maxPoints;
+      for (Future<?> task : tasks) {
+        task.get();
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    //this.ipePoints.clear();
+    //this.ipePoints = null;
+  }
 
-      //System.err.format("Clustering: %d points for %s.\n", k, location.getName());
+  private void expandIPE(String ipe) {
+    Random random = new Random(KMEANS_SEED * 31 + ipe.hashCode());
+    Location location = this.locations.get(this.ipes.get(ipe));
+    List<Coordinate> contained = this.ipePoints.get(ipe);// ALL points in e.g. USA
 
-      if (contained.size() > this.maxConsidered) {
-        Collections.shuffle(contained);
-        contained = contained.subList(0, this.maxConsidered);
-      }
+    int k = (int) Math.floor(contained.size() * this.pointRatio);
+    if (k < this.minPoints) {
+      k = this.minPoints;
+    }
+    if (k > this.maxPoints) {
+      k = this.maxPoints;
+    }
 
-      if (contained.size() > 0) {
-        List<Coordinate> representatives = clusterer.clusterList(contained, k, SphericalGeometry.g());
-        representatives = Coordinate.removeNaNs(representatives);
-        //if(location.getName().equalsIgnoreCase("united states"))
-        //    System.out.println(location.getRegion().getCenter());
-        location.setRegion(new PointSetRegion(representatives));
-        //if(location.getName().equalsIgnoreCase("united states"))
-        //    System.out.println(location.getRegion().getCenter());
-        //contained.clear();
-        //contained = null;
-      }
-      //this.ipePoints.get(ipe).clear();
+    //System.err.format("Clustering: %d points for %s.\n", k, location.getName());
+
+    if (contained.size() > this.maxConsidered) {
+      Collections.shuffle(contained, random);
+      contained = contained.subList(0, this.maxConsidered);
     }
-    //this.ipePoints.clear();
-    //this.ipePoints = null;
+
+    if (contained.size() > 0) {
+      List<Coordinate> representatives = new SphericalKMeans(random).cluster(contained, k);
+      representatives = Coordinate.removeNaNs(representatives);
+      location.setRegion(new PointSetRegion(representatives));
+    }
+    //this.ipePoints.get(ipe).clear();
   }
 
   /*private void expandADM() {
@@ -185,120 +225,244 @@ private final boolean expandRegions;
     return name.toLowerCase().replace("’", "'");
   }
 
+  /**
+   * Reads the GeoNames dump in blocks of lines on the calling thread and
+   * parses the blocks on a pool of worker threads. Parsed blocks are merged
+   * back in file order, so location indices, candidate list order and the
+   * points collected for each IPE are the same as with a serial read.
+   */
   private int load(BufferedReader reader) {
     int index = 0;
     int count = 0;
+    ExecutorService pool = Executors.newFixedThreadPool(this.numThreads);
     try {
       System.out.print("[");
-      for (String line = reader.readLine();
-           line != null; line = reader.readLine()) {   
-        String[] fields = line.split("\t");
-        if (fields.length > 14) {
-          String primaryName = fields[1];
-          count++;
-          if(count % 750000 == 0) {
-            System.out.print(".");
+      LinkedList<Future<ParsedBlock>> pending = new LinkedList<Future<ParsedBlock>>();
+      List<String> lines = new ArrayList<String>(LINES_PER_BLOCK);
+      for (String line = reader.readLine(); ; line = reader.readLine()) {
+        if (line != null) {
+          lines.add(line);
+        }
+        if (lines.size() == LINES_PER_BLOCK || (line == null && lines.size() > 0)) {
+          final List<String> block = lines;
+          pending.add(pool.submit(new Callable<ParsedBlock>() {
+            public ParsedBlock call() {
+              return GeoNamesGazetteer.this.parseBlock(block);
+            }
+          }));
+          lines = new ArrayList<String>(LINES_PER_BLOCK);
+        }
+        // Keep a bounded number of blocks in flight, merging the oldest first.
+        while (pending.size() > 2 * this.numThreads || (line == null && pending.size() > 0)) {
+          ParsedBlock parsed = pending.removeFirst().get();
+          for (int i = 0; i < parsed.count; i++) {
+            count++;
+            if(count % 750000 == 0) {
+              System.out.print(".");
+            }
           }
-          Set<String> nameSet = new HashSet<String>();
-          nameSet.add(this.standardize(primaryName));
+          index = this.merge(parsed, index);
+        }
+        if (line == null) {
+          break;
+        }
+      }
+      System.out.println("]");
+      reader.close();
+    } catch (IOException e) {
+      System.err.format("Error while reading GeoNames file: %s\n", e);
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
 
-          String[] names = fields[3].split(",");
-          for (int i = 0; i < names.length; i++) {
-            nameSet.add(this.standardize(names[i]));
-          }
+    return index;
+  }
 
-          String cat = fields[6];
-          String type = fields[7];
+  /* Appends a parsed block's locations, IPE points and names to the gazetteer. */
+  private int merge(ParsedBlock parsed, int index) {
+    int firstIndex = index;
+    for (ParsedLine entry : parsed.entries) {
+      if (!this.ipePoints.containsKey(entry.ipe)) {
+        this.ipePoints.put(entry.ipe, new ArrayList<Coordinate>());
+      }
+      this.ipePoints.get(entry.ipe).add(entry.coordinate);
 
-          if (this.ignore(cat, type)) {
-            continue;
-          }
+      if (entry.type.equals("PCLI")) {
+        this.ipes.put(entry.ipe, index);
+      }
 
-          String ipe = fields[8];
-          String adm = ipe + fields[10];
+      if (this.store(entry.cat, entry.type)) {
+        Region region = new PointRegion(entry.coordinate);
+        Location location = new Location(index, entry.primaryName, region, this.getLocationType(entry.cat), entry.population, entry.admin1code);
+        this.locations.add(location);
+        index += 1;
+      }
+    }
 
-          String admin1code = ipe + "." + fields[10];
+    for (Map.Entry<String, List<Integer>> name : parsed.names.entrySet()) {
+      List<Location> candidates = this.names.get(name.getKey());
+      if (candidates == null) {
+        candidates = new ArrayList<Location>(name.getValue().size());
+        this.names.put(name.getKey(), candidates);
+      }
+      for (int offset : name.getValue()) {
+        candidates.add(this.locations.get(firstIndex + offset));
+      }
+    }
 
-          double lat = 0.0;
-          double lng = 0.0;
-          try {      
-            lat = Double.parseDouble(fields[4]);
-            lng = Double.parseDouble(fields[5]);
-          } catch (NumberFormatException e) {
-            System.err.format("Invalid coordinates: %s\n", primaryName);
-          }
+    return index;
+  }
 
-          //if(primaryName.equalsIgnoreCase("united states"))
-          //    System.out.println(lat + ", " + lng);
-
-          // try to get coordinates from right side in the case of weird characters in names messing up tabs between fields:
-          if((lat == Double.NaN || lng == Double.NaN) && fields.length > 19) {
-              try {
-                  lat = Double.parseDouble(fields[fields.length-15]);
-                  lng = Double.parseDouble(fields[fields.length-14]);
-              } catch (NumberFormatException e) {
-                  System.err.format("Invalid coordinates: %s\n", primaryName);
-              }
-          }
+  /*
+   * Parses one block of lines. Names are mapped to offsets relative to the
+   * first location stored from this block, which merge() turns into indices.
+   */
+  private ParsedBlock parseBlock(List<String> lines) {
+    ParsedBlock parsed = new ParsedBlock();
+    String[] fields = new String[20];
+    Set<String> nameSet = new HashSet<String>();
+    List<String> alternates = new ArrayList<String>();
+    int stored = 0;
+
+    for (String line : lines) {
+      int fieldCount = splitFields(line, fields);
+      if (fieldCount > 14) {
+        String primaryName = fields[1];
+        parsed.count++;
+        nameSet.clear();
+        nameSet.add(this.standardize(primaryName));
+
+        splitNames(fields[3], alternates);
+        for (String name : alternates) {
+          nameSet.add(this.standardize(name));
+        }
 
-          //if(primaryName.equalsIgnoreCase("united states"))
-          //    System.out.println(lat + ", " + lng);
+        String cat = fields[6];
+        String type = fields[7];
 
-          // give up on trying to get coordinates:
-          if(lat == Double.NaN || lng == Double.NaN)
-              continue;
+        if (this.ignore(cat, type)) {
+          continue;
+        }
 
-          Coordinate coordinate = Coordinate.fromDegrees(lat, lng);
+        String ipe = fields[8];
 
-          int population = 0;
-          if (fields[14].length() > 0) {
-            try {
-              population = Integer.parseInt(fields[14]);
-            } catch (NumberFormatException e) {
-              System.err.format("Invalid population: %s\n", primaryName);
-            }
-          }
+        double lat = 0.0;
+        double lng = 0.0;
+        try {      
+          lat = Double.parseDouble(fields[4]);
+          lng = Double.parseDouble(fields[5]);
+        } catch (NumberFormatException e) {
+          System.err.format("Invalid coordinates: %s\n", primaryName);
+        }
 
-          if (!this.ipePoints.containsKey(ipe)) {
-            this.ipePoints.put(ipe, new ArrayList<Coordinate>());
-          }
-          this.ipePoints.get(ipe).add(coordinate);
+        // (The serial loader also tried to recover coordinates from the right-hand fields
+        // when they came out as NaN, but compared with == Double.NaN, so that never happened.)
 
-          /*if (!this.admPoints.containsKey(adm)) {
-            this.admPoints.put(adm, new ArrayList<Coordinate>());
+        int population = 0;
+        if (fields[14].length() > 0) {
+          try {
+            population = Integer.parseInt(fields[14]);
+          } catch (NumberFormatException e) {
+            System.err.format("Invalid population: %s\n", primaryName);
           }
-          this.admPoints.get(adm).add(coordinate);*/
-
-          if (type.equals("PCLI")) {
-            this.ipes.put(ipe, index);
-          } /*else if (type.equals("ADM1")) {
-            this.adms.put(adm, index);
-          }*/
-
-          if (this.store(cat, type)) {
-            Region region = new PointRegion(coordinate);
-            Location location = new Location(index, primaryName, region, this.getLocationType(cat), population, admin1code);
-            this.locations.add(location);
-
-            for (String name : nameSet) {
-              if (!this.names.containsKey(name)) {
-                this.names.put(name, new ArrayList<Location>());
-              }
-              this.names.get(name).add(location);
-            }
+        }
 
-            index += 1;
+        ParsedLine entry = new ParsedLine();
+        entry.primaryName = primaryName;
+        entry.cat = cat;
+        entry.type = type;
+        entry.ipe = ipe;
+        entry.admin1code = ipe + "." + fields[10];
+        entry.coordinate = Coordinate.fromDegrees(lat, lng);
+        entry.population = population;
+        parsed.entries.add(entry);
+
+        if (this.store(cat, type)) {
+          for (String name : nameSet) {
+            List<Integer> offsets = parsed.names.get(name);
+            if (offsets == null) {
+              offsets = new ArrayList<Integer>(2);
+              parsed.names.put(name, offsets);
+            }
+            offsets.add(stored);
           }
+          stored++;
         }
       }
-      System.out.println("]");
-      reader.close();
-    } catch (IOException e) {
-      System.err.format("Error while reading GeoNames file: %s\n", e);
-      e.printStackTrace();
     }
 
-    return index;
+    return parsed;
+  }
+
+  /*
+   * Tab-splits line into fields (only the first fields.length are kept) and
+   * returns the number of fields String.split("\t") would have produced,
+   * i.e. with trailing empty fields dropped.
+   */
+  private static int splitFields(String line, String[] fields) {
+    int count = 0;
+    int nonEmpty = 0;
+    int start = 0;
+    while (true) {
+      int end = line.indexOf('\t', start);
+      if (end < 0) {
+        end = line.length();
+      }
+      if (count < fields.length) {
+        fields[count] = line.substring(start, end);
+      }
+      count++;
+      if (end > start) {
+        nonEmpty = count;
+      }
+      if (end == line.length()) {
+        break;
+      }
+      start = end + 1;
+    }
+    // A line without tabs comes back whole from split, even when empty.
+    return count == 1 ? 1 : nonEmpty;
+  }
+
+  /* Comma-splits the alternate names field the way String.split(",") does. */
+  private static void splitNames(String field, List<String> names) {
+    names.clear();
+    int start = 0;
+    int end;
+    while ((end = field.indexOf(',', start)) >= 0) {
+      names.add(field.substring(start, end));
+      start = end + 1;
+    }
+    if (start == 0) {
+      names.add(field);
+      return;
+    }
+    names.add(field.substring(start));
+    while (names.size() > 0 && names.get(names.size() - 1).length() == 0) {
+      names.remove(names.size() - 1);
+    }
+  }
+
+  private static class ParsedLine {
+    String primaryName;
+    String cat;
+    String type;
+    String ipe;
+    String admin1code;
+    Coordinate coordinate;
+    int population;
+  }
+
+  private static class ParsedBlock {
+    int count = 0;
+    final List<ParsedLine> entries = new ArrayList<ParsedLine>();
+    final Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
   }
 
   private Location.Type getLocationType(String cat) {
@@ -338,4 +502,34 @@ private final boolean expandRegions;
   public Set<String> getUniqueLocationNameSet(){
 	  return names.keySet();
   }
+
+  /**
+   * A spatial index over all locations, built the first time it's asked for.
+   */
+  public synchronized SpatialIndex getSpatialIndex() {
+    if (this.spatialIndex == null) {
+      this.spatialIndex = new SpatialIndex(this.locations);
+    }
+    return this.spatialIndex;
+  }
+
+  /**
+   * A token trie over all location names, for the high-recall toponym
+   * recognizer, built the first time it's asked for. Once built, it's
+   * serialized along with the gazetteer.
+   */
+  public synchronized ToponymTrie getToponymTrie() {
+    if (this.toponymTrie == null) {
+      this.toponymTrie = new ToponymTrie(this.names.keySet());
+    }
+    return this.toponymTrie;
+  }
+
+  List<Location> getLocations() {
+    return this.locations;
+  }
+
+  Map<String, List<Location>> getNames() {
+    return this.names;
+  }
 }
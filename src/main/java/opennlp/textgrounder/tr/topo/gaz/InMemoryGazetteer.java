@@ -17,6 +17,7 @@ package opennlp.textgrounder.tr.topo.gaz;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +25,7 @@ import opennlp.textgrounder.tr.topo.Location;
 
 public class InMemoryGazetteer extends LoadableGazetteer {
   private final Map<String, List<Location>> map;
+  private SpatialIndex spatialIndex = null;
 
   public InMemoryGazetteer() {
     this.map = new HashMap<String, List<Location>>();
@@ -37,10 +39,31 @@ public class InMemoryGazetteer extends LoadableGazetteer {
     }
     locations.add(location);
     this.map.put(name, locations);
+    this.spatialIndex = null;
   }
 
   public List<Location> lookup(String query) {
     return this.map.get(query.toLowerCase());
   }
+
+  /**
+   * A spatial index over every location added so far, built the first time
+   * it's asked for after a change.
+   */
+  public synchronized SpatialIndex getSpatialIndex() {
+    if (this.spatialIndex == null) {
+      Map<Location, Boolean> seen = new IdentityHashMap<Location, Boolean>();
+      List<Location> locations = new ArrayList<Location>();
+      for (List<Location> named : this.map.values()) {
+        for (Location location : named) {
+          if (seen.put(location, Boolean.TRUE) == null) {
+            locations.add(location);
+          }
+        }
+      }
+      this.spatialIndex = new SpatialIndex(locations);
+    }
+    return this.spatialIndex;
+  }
 }
 
@@ -0,0 +1,440 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.topo.gaz;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import opennlp.textgrounder.tr.topo.Coordinate;
+import opennlp.textgrounder.tr.topo.Location;
+import opennlp.textgrounder.tr.topo.PointRegion;
+import opennlp.textgrounder.tr.topo.PointSetRegion;
+import opennlp.textgrounder.tr.topo.Region;
+import opennlp.textgrounder.tr.util.SectionFile;
+
+/**
+ * A read-only gazetteer backed by a memory-mapped binary file, so that
+ * opening it costs a handful of mmap calls rather than deserializing every
+ * location, and several processes on one machine share the same pages.
+ *
+ * The file stores each location attribute as its own column (ids, types,
+ * populations, admin1 codes, representative points) plus a name index
+ * sorted by UTF-8 bytes, mapping each name to the indices of its locations.
+ * Locations are only materialized when a lookup returns them.
+ *
+ * Layout: magic, version, location count, name count, point count, then the
+ * sections listed in Section order (each padded to 8 bytes), then a
+ * directory of (offset, length) pairs, then the directory's offset.
+ */
+public class MappedGazetteer implements Gazetteer {
+
+  public static final int MAGIC = 0x54474752; // "TGGR"
+  public static final int VERSION = 1;
+
+  private static final Charset UTF8 = SectionFile.UTF8;
+
+  private static final byte POINT_REGION = 0;
+  private static final byte POINT_SET_REGION = 1;
+
+  private enum Section {
+    IDS, TYPES, POPULATIONS, ADMIN1_IDXS, ADMIN1_OFFSETS, ADMIN1_BYTES,
+    REGION_KINDS, POINT_STARTS, LATS, LNGS, LOC_NAME_OFFSETS, LOC_NAME_BYTES,
+    NAME_OFFSETS, NAME_BYTES, POSTING_STARTS, POSTINGS
+  }
+
+  private final int locationCount;
+  private final int nameCount;
+
+  private final IntBuffer ids;
+  private final ByteBuffer types;
+  private final IntBuffer populations;
+  private final IntBuffer admin1Idxs;
+  private final String[] admin1Codes;
+  private final ByteBuffer regionKinds;
+  private final IntBuffer pointStarts;
+  private final DoubleBuffer lats;
+  private final DoubleBuffer lngs;
+  private final IntBuffer locNameOffsets;
+  private final ByteBuffer locNameBytes;
+  private final IntBuffer nameOffsets;
+  private final ByteBuffer nameBytes;
+  private final IntBuffer postingStarts;
+  private final IntBuffer postings;
+
+  /* Sorted by id; each entry packs an id into the high word and its index into the low word. */
+  private long[] idIndex = null;
+
+  private SpatialIndex spatialIndex = null;
+
+  public MappedGazetteer(String path) throws IOException {
+    this(new File(path));
+  }
+
+  public MappedGazetteer(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 20);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(file + " is not a mapped gazetteer file.");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported mapped gazetteer version " + version + " in " + file + ".");
+      }
+      this.locationCount = header.getInt();
+      this.nameCount = header.getInt();
+
+      SectionFile.Directory directory = new SectionFile.Directory(channel, Section.values().length);
+      ByteBuffer[] sections = new ByteBuffer[Section.values().length];
+      for (int i = 0; i < sections.length; i++) {
+        sections[i] = directory.map(i);
+      }
+
+      this.ids = sections[Section.IDS.ordinal()].asIntBuffer();
+      this.types = sections[Section.TYPES.ordinal()];
+      this.populations = sections[Section.POPULATIONS.ordinal()].asIntBuffer();
+      this.admin1Idxs = sections[Section.ADMIN1_IDXS.ordinal()].asIntBuffer();
+      this.regionKinds = sections[Section.REGION_KINDS.ordinal()];
+      this.pointStarts = sections[Section.POINT_STARTS.ordinal()].asIntBuffer();
+      this.lats = sections[Section.LATS.ordinal()].asDoubleBuffer();
+      this.lngs = sections[Section.LNGS.ordinal()].asDoubleBuffer();
+      this.locNameOffsets = sections[Section.LOC_NAME_OFFSETS.ordinal()].asIntBuffer();
+      this.locNameBytes = sections[Section.LOC_NAME_BYTES.ordinal()];
+      this.nameOffsets = sections[Section.NAME_OFFSETS.ordinal()].asIntBuffer();
+      this.nameBytes = sections[Section.NAME_BYTES.ordinal()];
+      this.postingStarts = sections[Section.POSTING_STARTS.ordinal()].asIntBuffer();
+      this.postings = sections[Section.POSTINGS.ordinal()].asIntBuffer();
+
+      // There are only a few thousand distinct admin1 codes, so decode them up front.
+      IntBuffer admin1Offsets = sections[Section.ADMIN1_OFFSETS.ordinal()].asIntBuffer();
+      ByteBuffer admin1Bytes = sections[Section.ADMIN1_BYTES.ordinal()];
+      this.admin1Codes = new String[admin1Offsets.limit() - 1];
+      for (int i = 0; i < this.admin1Codes.length; i++) {
+        this.admin1Codes[i] = SectionFile.decode(admin1Bytes, admin1Offsets.get(i), admin1Offsets.get(i + 1));
+      }
+    } finally {
+      // The mappings remain valid after the channel is closed.
+      raf.close();
+    }
+  }
+
+  /**
+   * Checks the magic number, so callers can tell a mapped gazetteer from a
+   * Java-serialized one.
+   */
+  public static boolean isMappedGazetteer(String path) {
+    return SectionFile.hasMagic(path, MAGIC);
+  }
+
+  public int size() {
+    return this.locationCount;
+  }
+
+  public int getNameCount() {
+    return this.nameCount;
+  }
+
+  /**
+   * Lookup a toponym in the gazetteer, returning null if no candidate list is
+   * found.
+   */
+  public List<Location> lookup(String query) {
+    int nameIdx = this.findName(query.toLowerCase().getBytes(UTF8));
+    if (nameIdx < 0) {
+      return null;
+    }
+
+    int start = this.postingStarts.get(nameIdx);
+    int end = this.postingStarts.get(nameIdx + 1);
+    List<Location> candidates = new ArrayList<Location>(end - start);
+    for (int i = start; i < end; i++) {
+      candidates.add(this.getLocation(this.postings.get(i)));
+    }
+    return candidates;
+  }
+
+  /**
+   * Materialize the location stored at the given index.
+   */
+  public Location getLocation(int idx) {
+    int start = this.pointStarts.get(idx);
+    int end = this.pointStarts.get(idx + 1);
+
+    Region region;
+    if (this.regionKinds.get(idx) == POINT_REGION) {
+      region = new PointRegion(Coordinate.fromRadians(this.lats.get(start), this.lngs.get(start)));
+    } else {
+      List<Coordinate> coordinates = new ArrayList<Coordinate>(end - start);
+      for (int i = start; i < end; i++) {
+        coordinates.add(Coordinate.fromRadians(this.lats.get(i), this.lngs.get(i)));
+      }
+      region = new PointSetRegion(coordinates);
+    }
+
+    String name = SectionFile.decode(this.locNameBytes, this.locNameOffsets.get(idx), this.locNameOffsets.get(idx + 1));
+
+    return new Location(this.ids.get(idx), name, region,
+                        Location.Type.values()[this.types.get(idx)],
+                        this.populations.get(idx),
+                        this.admin1Codes[this.admin1Idxs.get(idx)]);
+  }
+
+  /**
+   * Materialize the location with the given id, or return null if there is
+   * none. GeoNames ids are the locations' indices, so this is usually a
+   * single check; otherwise an index sorted by id is built on first use.
+   */
+  public Location getLocationById(int id) {
+    if (id >= 0 && id < this.locationCount && this.ids.get(id) == id) {
+      return this.getLocation(id);
+    }
+
+    long[] byId = this.getIdIndex();
+    int lo = 0;
+    int hi = byId.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midId = (int) (byId[mid] >> 32);
+      if (midId < id) {
+        lo = mid + 1;
+      } else if (midId > id) {
+        hi = mid - 1;
+      } else {
+        return this.getLocation((int) byId[mid]);
+      }
+    }
+    return null;
+  }
+
+  private synchronized long[] getIdIndex() {
+    if (this.idIndex == null) {
+      long[] byId = new long[this.locationCount];
+      for (int i = 0; i < this.locationCount; i++) {
+        byId[i] = ((long) this.ids.get(i) << 32) | i;
+      }
+      Arrays.sort(byId);
+      this.idIndex = byId;
+    }
+    return this.idIndex;
+  }
+
+  /**
+   * A spatial index over all locations, built the first time it's asked
+   * for. Locations are materialized once to build it, and afterwards only
+   * when a query returns them.
+   */
+  public synchronized SpatialIndex getSpatialIndex() {
+    if (this.spatialIndex == null) {
+      this.spatialIndex = new SpatialIndex(new AbstractList<Location>() {
+        public Location get(int idx) {
+          return MappedGazetteer.this.getLocation(idx);
+        }
+
+        public int size() {
+          return MappedGazetteer.this.locationCount;
+        }
+      });
+    }
+    return this.spatialIndex;
+  }
+
+  /**
+   * Decodes every name in the index; only meant for the few callers (like
+   * the high-recall recognizer) that need the full name set.
+   */
+  public Set<String> getUniqueLocationNameSet() {
+    Set<String> names = new HashSet<String>(this.nameCount * 2);
+    for (int i = 0; i < this.nameCount; i++) {
+      names.add(SectionFile.decode(this.nameBytes, this.nameOffsets.get(i), this.nameOffsets.get(i + 1)));
+    }
+    return names;
+  }
+
+  /* Binary search over the sorted name index, comparing raw UTF-8 bytes. */
+  private int findName(byte[] query) {
+    int lo = 0;
+    int hi = this.nameCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compare(this.nameBytes, this.nameOffsets.get(mid), this.nameOffsets.get(mid + 1), query);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private static int compare(ByteBuffer bytes, int start, int end, byte[] query) {
+    int len = end - start;
+    int n = Math.min(len, query.length);
+    for (int i = 0; i < n; i++) {
+      int a = bytes.get(start + i) & 0xff;
+      int b = query[i] & 0xff;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return len - query.length;
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int x = a[i] & 0xff;
+      int y = b[i] & 0xff;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Write the locations and name index of a GeoNames gazetteer in the mapped
+   * format.
+   */
+  public static void write(GeoNamesGazetteer gazetteer, String path) throws IOException {
+    write(gazetteer.getLocations(), gazetteer.getNames(), path);
+  }
+
+  public static void write(List<Location> locations, Map<String, List<Location>> names, String path)
+    throws IOException {
+    int locationCount = locations.size();
+
+    Map<Location, Integer> positions = new IdentityHashMap<Location, Integer>(locationCount * 2);
+    Map<String, Integer> admin1Lexicon = new HashMap<String, Integer>();
+    List<String> admin1Codes = new ArrayList<String>();
+    int pointCount = 0;
+    for (int i = 0; i < locationCount; i++) {
+      Location location = locations.get(i);
+      positions.put(location, i);
+      pointCount += location.getRegion().getRepresentatives().size();
+      if (!admin1Lexicon.containsKey(location.getAdmin1Code())) {
+        admin1Lexicon.put(location.getAdmin1Code(), admin1Codes.size());
+        admin1Codes.add(location.getAdmin1Code());
+      }
+    }
+
+    List<byte[]> sortedNames = new ArrayList<byte[]>(names.size());
+    for (String name : names.keySet()) {
+      sortedNames.add(name.getBytes(UTF8));
+    }
+    Collections.sort(sortedNames, new Comparator<byte[]>() {
+      public int compare(byte[] a, byte[] b) {
+        return MappedGazetteer.compare(a, b);
+      }
+    });
+
+    SectionFile.Writer out = new SectionFile.Writer(path, Section.values().length);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(locationCount);
+      out.writeInt(sortedNames.size());
+      out.writeInt(pointCount);
+
+      out.startSection(Section.IDS.ordinal());
+      for (Location location : locations) {
+        out.writeInt(location.getId());
+      }
+
+      out.startSection(Section.TYPES.ordinal());
+      for (Location location : locations) {
+        out.writeByte(location.getType().ordinal());
+      }
+
+      out.startSection(Section.POPULATIONS.ordinal());
+      for (Location location : locations) {
+        out.writeInt(location.getPopulation());
+      }
+
+      out.startSection(Section.ADMIN1_IDXS.ordinal());
+      for (Location location : locations) {
+        out.writeInt(admin1Lexicon.get(location.getAdmin1Code()));
+      }
+
+      List<byte[]> admin1Bytes = new ArrayList<byte[]>(admin1Codes.size());
+      for (String code : admin1Codes) {
+        admin1Bytes.add(code.getBytes(UTF8));
+      }
+      out.writeStringTable(Section.ADMIN1_OFFSETS.ordinal(), Section.ADMIN1_BYTES.ordinal(), admin1Bytes);
+
+      out.startSection(Section.REGION_KINDS.ordinal());
+      for (Location location : locations) {
+        out.writeByte(location.getRegion() instanceof PointRegion ? POINT_REGION : POINT_SET_REGION);
+      }
+
+      out.startSection(Section.POINT_STARTS.ordinal());
+      int pointStart = 0;
+      for (Location location : locations) {
+        out.writeInt(pointStart);
+        pointStart += location.getRegion().getRepresentatives().size();
+      }
+      out.writeInt(pointStart);
+
+      out.startSection(Section.LATS.ordinal());
+      for (Location location : locations) {
+        for (Coordinate coordinate : location.getRegion().getRepresentatives()) {
+          out.writeDouble(coordinate.getLat());
+        }
+      }
+
+      out.startSection(Section.LNGS.ordinal());
+      for (Location location : locations) {
+        for (Coordinate coordinate : location.getRegion().getRepresentatives()) {
+          out.writeDouble(coordinate.getLng());
+        }
+      }
+
+      List<byte[]> locNames = new ArrayList<byte[]>(locationCount);
+      for (Location location : locations) {
+        locNames.add(location.getName().getBytes(UTF8));
+      }
+      out.writeStringTable(Section.LOC_NAME_OFFSETS.ordinal(), Section.LOC_NAME_BYTES.ordinal(), locNames);
+      locNames = null;
+
+      out.writeStringTable(Section.NAME_OFFSETS.ordinal(), Section.NAME_BYTES.ordinal(), sortedNames);
+
+      out.startSection(Section.POSTING_STARTS.ordinal());
+      int postingStart = 0;
+      for (byte[] name : sortedNames) {
+        out.writeInt(postingStart);
+        postingStart += names.get(new String(name, UTF8)).size();
+      }
+      out.writeInt(postingStart);
+
+      out.startSection(Section.POSTINGS.ordinal());
+      for (byte[] name : sortedNames) {
+        for (Location location : names.get(new String(name, UTF8))) {
+          out.writeInt(positions.get(location));
+        }
+      }
+
+      out.finish();
+    } finally {
+      out.close();
+    }
+  }
+}
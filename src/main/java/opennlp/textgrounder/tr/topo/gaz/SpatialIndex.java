@@ -0,0 +1,376 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.topo.gaz;
+
+import java.util.*;
+
+import opennlp.textgrounder.tr.topo.Coordinate;
+import opennlp.textgrounder.tr.topo.Location;
+import opennlp.textgrounder.tr.topo.Region;
+
+/**
+ * A spatial index over the representative points of a list of locations.
+ * Points are bucketed into a fixed grid of latitude/longitude cells, each
+ * holding the indices of the locations with a point in it, so box, radius
+ * and nearest-neighbor queries only look at the locations in nearby cells.
+ * Locations are only materialized (via the list) when a query returns them.
+ */
+public class SpatialIndex {
+
+  public static final double DEFAULT_DEGREES_PER_CELL = 1.0;
+
+  private static final double EARTH_RADIUS_KM = 6372.8;
+
+  private final List<Location> locations;
+  private final double degreesPerCell;
+  private final int latCells;
+  private final int lngCells;
+
+  /* Representative points (radians) of location i are at pointStarts[i] until pointStarts[i + 1]. */
+  private final int[] pointStarts;
+  private final double[] lats;
+  private final double[] lngs;
+  private final int[] ids;
+  /* Locations with a NaN point, which no box contains. */
+  private final BitSet withNaNs = new BitSet();
+  /* Locations with no points at all, which every box contains (as in TopoUtil.filter). */
+  private final BitSet withoutPoints = new BitSet();
+
+  /* Indices of the locations with a point in cell c are at cellStarts[c] until cellStarts[c + 1]. */
+  private final int[] cellStarts;
+  private final int[] cellEntries;
+
+  public SpatialIndex(List<Location> locations) {
+    this(locations, DEFAULT_DEGREES_PER_CELL);
+  }
+
+  public SpatialIndex(List<Location> locations, double degreesPerCell) {
+    this.locations = locations;
+    this.degreesPerCell = degreesPerCell;
+    this.latCells = (int) Math.ceil(180.0 / degreesPerCell);
+    this.lngCells = (int) Math.ceil(360.0 / degreesPerCell);
+
+    int n = locations.size();
+    this.pointStarts = new int[n + 1];
+    this.ids = new int[n];
+    double[] lats = new double[n];
+    double[] lngs = new double[n];
+    int pointCount = 0;
+    for (int i = 0; i < n; i++) {
+      this.pointStarts[i] = pointCount;
+      this.ids[i] = locations.get(i).getId();
+      for (Coordinate coordinate : locations.get(i).getRegion().getRepresentatives()) {
+        if (Double.isNaN(coordinate.getLat()) || Double.isNaN(coordinate.getLng())) {
+          this.withNaNs.set(i);
+          continue;
+        }
+        if (pointCount == lats.length) {
+          lats = Arrays.copyOf(lats, lats.length * 2 + 1);
+          lngs = Arrays.copyOf(lngs, lngs.length * 2 + 1);
+        }
+        lats[pointCount] = coordinate.getLat();
+        lngs[pointCount] = coordinate.getLng();
+        pointCount++;
+      }
+      if (pointCount == this.pointStarts[i] && !this.withNaNs.get(i)) {
+        this.withoutPoints.set(i);
+      }
+    }
+    this.pointStarts[n] = pointCount;
+    this.lats = Arrays.copyOf(lats, pointCount);
+    this.lngs = Arrays.copyOf(lngs, pointCount);
+
+    // A location with several points in one cell is only listed there once.
+    int[] cellCounts = new int[this.latCells * this.lngCells + 1];
+    int[] cells = new int[16];
+    for (int i = 0; i < n; i++) {
+      if (this.pointStarts[i + 1] - this.pointStarts[i] > cells.length) {
+        cells = new int[this.pointStarts[i + 1] - this.pointStarts[i]];
+      }
+      int count = this.getCells(i, cells);
+      for (int j = 0; j < count; j++) {
+        cellCounts[cells[j]]++;
+      }
+    }
+
+    this.cellStarts = new int[cellCounts.length];
+    int entryCount = 0;
+    for (int c = 0; c < cellCounts.length - 1; c++) {
+      this.cellStarts[c] = entryCount;
+      entryCount += cellCounts[c];
+    }
+    this.cellStarts[cellCounts.length - 1] = entryCount;
+
+    this.cellEntries = new int[entryCount];
+    int[] next = Arrays.copyOf(this.cellStarts, this.cellStarts.length);
+    for (int i = 0; i < n; i++) {
+      int count = this.getCells(i, cells);
+      for (int j = 0; j < count; j++) {
+        this.cellEntries[next[cells[j]]++] = i;
+      }
+    }
+  }
+
+  /* Writes the distinct cells of a location's points into cells, which must have
+   * room for all of its points, and returns how many there are. */
+  private int getCells(int idx, int[] cells) {
+    int count = 0;
+    for (int p = this.pointStarts[idx]; p < this.pointStarts[idx + 1]; p++) {
+      int cell = this.getCell(this.lats[p], this.lngs[p]);
+      boolean seen = false;
+      for (int j = 0; j < count && !seen; j++) {
+        seen = cells[j] == cell;
+      }
+      if (!seen) {
+        cells[count++] = cell;
+      }
+    }
+    return count;
+  }
+
+  private int getLatCell(double lat) {
+    int cell = (int) Math.floor((Math.toDegrees(lat) + 90.0) / this.degreesPerCell);
+    return Math.max(0, Math.min(this.latCells - 1, cell));
+  }
+
+  private int getLngCell(double lng) {
+    int cell = (int) Math.floor((Math.toDegrees(lng) + 180.0) / this.degreesPerCell) % this.lngCells;
+    return cell < 0 ? cell + this.lngCells : cell;
+  }
+
+  private int getCell(double lat, double lng) {
+    return this.getLatCell(lat) * this.lngCells + this.getLngCell(lng);
+  }
+
+  public int size() {
+    return this.locations.size();
+  }
+
+  public double getDegreesPerCell() {
+    return this.degreesPerCell;
+  }
+
+  /**
+   * All locations with a representative point in the same grid cell as the
+   * given coordinate.
+   */
+  public List<Location> getLocationsInCell(Coordinate coordinate) {
+    int cell = this.getCell(coordinate.getLat(), coordinate.getLng());
+    List<Location> result = new ArrayList<Location>(this.cellStarts[cell + 1] - this.cellStarts[cell]);
+    for (int e = this.cellStarts[cell]; e < this.cellStarts[cell + 1]; e++) {
+      result.add(this.locations.get(this.cellEntries[e]));
+    }
+    return result;
+  }
+
+  /**
+   * All locations whose representative points all lie inside the given
+   * region's bounding box, checked with the region's contains (the same test
+   * as TopoUtil.filter). Like TopoUtil.filter, this includes locations with
+   * no representative points.
+   */
+  public List<Location> getLocationsInBox(Region box) {
+    int[] idxs = this.getIdxsInBox(box);
+    List<Location> result = new ArrayList<Location>(idxs.length);
+    for (int idx : idxs) {
+      result.add(this.locations.get(idx));
+    }
+    return result;
+  }
+
+  /**
+   * The ids of the locations that getLocationsInBox would return, so that
+   * candidate lists from name lookups can be filtered without checking
+   * their points again.
+   */
+  public BitSet getIdsInBox(Region box) {
+    BitSet ids = new BitSet();
+    for (int idx : this.getIdxsInBox(box)) {
+      if (this.ids[idx] >= 0) {
+        ids.set(this.ids[idx]);
+      }
+    }
+    return ids;
+  }
+
+  private int[] getIdxsInBox(Region box) {
+    int minLatCell = this.getLatCell(box.getMinLat());
+    int maxLatCell = this.getLatCell(box.getMaxLat());
+    int minLngCell = this.getLngCell(box.getMinLng());
+    int maxLngCell = this.getLngCell(box.getMaxLng());
+    if (box.getMinLng() > box.getMaxLng() || box.getMaxLng() - box.getMinLng() >= 2 * Math.PI) {
+      minLngCell = 0;
+      maxLngCell = this.lngCells - 1;
+    }
+
+    int[] candidates = this.collect(minLatCell, maxLatCell, minLngCell, maxLngCell);
+    int count = 0;
+    for (int idx : candidates) {
+      boolean inside = !this.withNaNs.get(idx);
+      for (int p = this.pointStarts[idx]; p < this.pointStarts[idx + 1] && inside; p++) {
+        inside = box.contains(this.lats[p], this.lngs[p]);
+      }
+      if (inside) {
+        candidates[count++] = idx;
+      }
+    }
+
+    // Locations without points are in no cell, so they're added separately.
+    if (this.withoutPoints.isEmpty()) {
+      return Arrays.copyOf(candidates, count);
+    }
+    int[] idxs = Arrays.copyOf(candidates, count + this.withoutPoints.cardinality());
+    for (int idx = this.withoutPoints.nextSetBit(0); idx >= 0; idx = this.withoutPoints.nextSetBit(idx + 1)) {
+      idxs[count++] = idx;
+    }
+    Arrays.sort(idxs);
+    return idxs;
+  }
+
+  /**
+   * All locations with a representative point within the given distance of
+   * a coordinate (the same distance as Region.distance), in index order.
+   */
+  public List<Location> getLocationsWithin(Coordinate center, double radiusKm) {
+    Hits hits = this.getHitsWithin(center, radiusKm / EARTH_RADIUS_KM);
+    List<Location> result = new ArrayList<Location>(hits.count);
+    for (int i = 0; i < hits.count; i++) {
+      result.add(this.locations.get(hits.idxs[i]));
+    }
+    return result;
+  }
+
+  /**
+   * The k locations whose nearest representative point is closest to the
+   * given coordinate, nearest first. The search radius starts at one cell
+   * and doubles until it holds k locations (or covers the globe), and
+   * everything outside the radius is farther than everything inside it.
+   */
+  public List<Location> getNearest(Coordinate center, int k) {
+    double radius = Math.toRadians(this.degreesPerCell);
+    Hits hits = this.getHitsWithin(center, radius);
+    while (hits.count < k && radius < Math.PI) {
+      radius *= 2;
+      hits = this.getHitsWithin(center, radius);
+    }
+
+    final Hits found = hits;
+    Integer[] order = new Integer[found.count];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int cmp = Double.compare(found.distances[a], found.distances[b]);
+        return cmp != 0 ? cmp : found.idxs[a] - found.idxs[b];
+      }
+    });
+
+    List<Location> result = new ArrayList<Location>(Math.min(k, order.length));
+    for (int i = 0; i < k && i < order.length; i++) {
+      result.add(this.locations.get(found.idxs[order[i]]));
+    }
+    return result;
+  }
+
+  /* Locations within a radius, with the distance (radians) to their nearest point. */
+  private static class Hits {
+    private final int[] idxs;
+    private final double[] distances;
+    private int count = 0;
+
+    private Hits(int capacity) {
+      this.idxs = new int[capacity];
+      this.distances = new double[capacity];
+    }
+  }
+
+  /* Compares cosines, so only the locations that are returned need an acos. */
+  private Hits getHitsWithin(Coordinate center, double radius) {
+    double lat = center.getLat();
+    double lng = center.getLng();
+    int minLatCell = this.getLatCell(lat - radius);
+    int maxLatCell = this.getLatCell(lat + radius);
+    int minLngCell = 0;
+    int maxLngCell = this.lngCells - 1;
+
+    // Unless the circle reaches a pole, it spans asin(sin r / cos lat) of longitude either way.
+    if (lat - radius > -Math.PI / 2 && lat + radius < Math.PI / 2 && radius < Math.PI / 2) {
+      double lngRadius = Math.asin(Math.min(1.0, Math.sin(radius) / Math.cos(lat)));
+      if (lngRadius < Math.PI - Math.toRadians(this.degreesPerCell)) {
+        minLngCell = this.getLngCell(lng - lngRadius);
+        maxLngCell = this.getLngCell(lng + lngRadius);
+      }
+    }
+
+    double sinLat = Math.sin(lat);
+    double cosLat = Math.cos(lat);
+    double minCos = Math.cos(Math.min(radius, Math.PI));
+
+    int[] candidates = this.collect(minLatCell, maxLatCell, minLngCell, maxLngCell);
+    Hits hits = new Hits(candidates.length);
+    for (int idx : candidates) {
+      double best = Double.NEGATIVE_INFINITY;
+      for (int p = this.pointStarts[idx]; p < this.pointStarts[idx + 1]; p++) {
+        double cos = sinLat * Math.sin(this.lats[p])
+          + cosLat * Math.cos(this.lats[p]) * Math.cos(this.lngs[p] - lng);
+        if (cos > best) {
+          best = cos;
+        }
+      }
+      if (best >= minCos) {
+        hits.idxs[hits.count] = idx;
+        hits.distances[hits.count] = Math.acos(Math.min(1.0, best));
+        hits.count++;
+      }
+    }
+    return hits;
+  }
+
+  /* Distinct, sorted indices of the locations in a range of cells; the longitude
+   * range wraps around when minLngCell > maxLngCell. */
+  private int[] collect(int minLatCell, int maxLatCell, int minLngCell, int maxLngCell) {
+    int count = 0;
+    int[] idxs = new int[16];
+    for (int latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+      int lngCell = minLngCell;
+      while (true) {
+        int cell = latCell * this.lngCells + lngCell;
+        int start = this.cellStarts[cell];
+        int end = this.cellStarts[cell + 1];
+        if (count + end - start > idxs.length) {
+          idxs = Arrays.copyOf(idxs, Math.max(idxs.length * 2, count + end - start));
+        }
+        System.arraycopy(this.cellEntries, start, idxs, count, end - start);
+        count += end - start;
+
+        if (lngCell == maxLngCell) {
+          break;
+        }
+        lngCell = (lngCell + 1) % this.lngCells;
+      }
+    }
+
+    Arrays.sort(idxs, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || idxs[distinct - 1] != idxs[i]) {
+        idxs[distinct++] = idxs[i];
+      }
+    }
+    return Arrays.copyOf(idxs, distinct);
+  }
+}
@@ -0,0 +1,148 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.topo.gaz;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A trie over the tokens of a set of gazetteer names, for finding the
+ * longest name starting at a given token of a sentence by walking down one
+ * node per token. Names are split into tokens at spaces (after removing
+ * "historical"), and each distinct token is interned as an int id; node 0
+ * is the root, and the nodes where a name ends are marked.
+ *
+ * Edges are kept in a single open-addressing hash table keyed by (node,
+ * token id), so a trie over millions of names stays compact and serializes
+ * as a few primitive arrays.
+ */
+public class ToponymTrie implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final int ROOT = 0;
+
+  private static final Pattern SPLIT_PATTERN = Pattern.compile(" ");
+  private static final Pattern HISTORICAL_PATTERN = Pattern.compile("(historical)");
+
+  private static final long EMPTY = -1L;
+
+  private final Map<String, Integer> tokenIds = new HashMap<String, Integer>();
+  private final BitSet nameEnds = new BitSet();
+  private int nodeCount = 1;
+
+  /* The child of node n for token t is edgeChildren[i], where
+   * edgeKeys[i] == edgeKey(n, t); free slots hold EMPTY. */
+  private long[] edgeKeys;
+  private int[] edgeChildren;
+  private int edgeCount = 0;
+
+  public ToponymTrie(Collection<String> names) {
+    this.edgeKeys = new long[1024];
+    this.edgeChildren = new int[1024];
+    Arrays.fill(this.edgeKeys, EMPTY);
+    for (String name : names) {
+      add(HISTORICAL_PATTERN.matcher(name).replaceAll(""));
+    }
+  }
+
+  private void add(String name) {
+    int node = ROOT;
+    for (String token : SPLIT_PATTERN.split(name)) {
+      Integer tokenId = this.tokenIds.get(token);
+      if (tokenId == null) {
+        tokenId = this.tokenIds.size();
+        this.tokenIds.put(token, tokenId);
+      }
+      int child = getChild(node, tokenId);
+      if (child < 0) {
+        child = this.nodeCount++;
+        putChild(node, tokenId, child);
+      }
+      node = child;
+    }
+    this.nameEnds.set(node);
+  }
+
+  private static long edgeKey(int node, int tokenId) {
+    return ((long) node << 32) | tokenId;
+  }
+
+  private int slot(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 33) & (this.edgeKeys.length - 1);
+  }
+
+  private void putChild(int node, int tokenId, int child) {
+    if (2 * (this.edgeCount + 1) > this.edgeKeys.length) {
+      long[] oldKeys = this.edgeKeys;
+      int[] oldChildren = this.edgeChildren;
+      this.edgeKeys = new long[oldKeys.length * 2];
+      this.edgeChildren = new int[oldKeys.length * 2];
+      Arrays.fill(this.edgeKeys, EMPTY);
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) {
+          insert(oldKeys[i], oldChildren[i]);
+        }
+      }
+    }
+    insert(edgeKey(node, tokenId), child);
+    this.edgeCount++;
+  }
+
+  private void insert(long key, int child) {
+    int i = slot(key);
+    while (this.edgeKeys[i] != EMPTY) {
+      i = (i + 1) & (this.edgeKeys.length - 1);
+    }
+    this.edgeKeys[i] = key;
+    this.edgeChildren[i] = child;
+  }
+
+  /**
+   * The id of a name token, or -1 if no name contains it.
+   */
+  public int getTokenId(String token) {
+    Integer tokenId = this.tokenIds.get(token);
+    return tokenId == null ? -1 : tokenId;
+  }
+
+  /**
+   * The child of a node for a token id, or -1 if there's none.
+   */
+  public int getChild(int node, int tokenId) {
+    long key = edgeKey(node, tokenId);
+    int i = slot(key);
+    while (this.edgeKeys[i] != EMPTY) {
+      if (this.edgeKeys[i] == key) {
+        return this.edgeChildren[i];
+      }
+      i = (i + 1) & (this.edgeKeys.length - 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Whether some name ends at a node.
+   */
+  public boolean isNameEnd(int node) {
+    return this.nameEnds.get(node);
+  }
+
+  public int getNodeCount() {
+    return this.nodeCount;
+  }
+}
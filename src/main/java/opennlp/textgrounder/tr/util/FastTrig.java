@@ -51,6 +51,28 @@ public final class FastTrig {
     }
   }
 
+  /**
+   * Returns an approximation of the arc cosine, in the range of 0.0 through
+   * <code>Math.PI</code>, using the polynomial of Abramowitz and Stegun
+   * (4.4.46), whose absolute error is under 3e-8 (about 20 cm on the
+   * Earth's surface). Arguments are clamped to [-1, 1], so the cosines of
+   * great-circle distances can be passed in without checking for rounding.
+   *
+   * @param a - the value whose arc cosine is to be returned.
+   * @return the approximate arc cosine of the argument.
+   */
+  public static double acosApprox(double a) {
+    if (Double.isNaN(a)) {
+      return Double.NaN;
+    }
+    boolean negative = a < 0.0;
+    double x = Math.min(Math.abs(a), 1.0);
+    double arcCosine = Math.sqrt(1.0 - x) *
+      (1.5707963050 + x * (-0.2145988016 + x * (0.0889789874 + x * (-0.0501743046 +
+       x * (0.0308918810 + x * (-0.0170881256 + x * (0.0066700901 + x * -0.0012624911)))))));
+    return negative ? Math.PI - arcCosine : arcCosine;
+  }
+
   /**
    * Returns the arc sine of an angle, in the range of <code>-Math.PI/2</code> through
    * <code>Math.PI/2</code>.  Special cases:
@@ -0,0 +1,200 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Shared layout for the binary files that are read by memory-mapping
+ * (the mapped gazetteer and the binary corpus): a small header, then a
+ * fixed number of sections (each padded to 8 bytes so that it can be viewed
+ * as an int, long or double buffer), then a directory of (offset, length)
+ * pairs, then the directory's offset in the last 8 bytes.
+ */
+public class SectionFile {
+
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Reads the directory at the end of a section file.
+   */
+  public static class Directory {
+    private final FileChannel channel;
+    private final long[] offsets;
+    private final long[] lengths;
+
+    public Directory(FileChannel channel, int sectionCount) throws IOException {
+      this.channel = channel;
+      this.offsets = new long[sectionCount];
+      this.lengths = new long[sectionCount];
+
+      long size = channel.size();
+      long directoryOffset = channel.map(FileChannel.MapMode.READ_ONLY, size - 8, 8).getLong();
+      ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, sectionCount * 16);
+      for (int i = 0; i < sectionCount; i++) {
+        this.offsets[i] = directory.getLong();
+        this.lengths[i] = directory.getLong();
+      }
+    }
+
+    public long getOffset(int section) {
+      return this.offsets[section];
+    }
+
+    public long getLength(int section) {
+      return this.lengths[section];
+    }
+
+    /**
+     * Map a section read-only; the mapping stays valid after the channel is
+     * closed.
+     */
+    public ByteBuffer map(int section) throws IOException {
+      return this.channel.map(FileChannel.MapMode.READ_ONLY, this.offsets[section], this.lengths[section]);
+    }
+  }
+
+  /**
+   * Sequential writer that remembers where each section starts and ends.
+   */
+  public static class Writer {
+    private final DataOutputStream out;
+    private final long[] offsets;
+    private final long[] lengths;
+    private int current = -1;
+    private long position = 0;
+
+    public Writer(String path, int sectionCount) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+      this.offsets = new long[sectionCount];
+      this.lengths = new long[sectionCount];
+    }
+
+    public long getPosition() {
+      return this.position;
+    }
+
+    public void startSection(int section) throws IOException {
+      this.endSection();
+      while (this.position % 8 != 0) {
+        this.writeByte(0);
+      }
+      this.current = section;
+      this.offsets[section] = this.position;
+    }
+
+    private void endSection() {
+      if (this.current != -1) {
+        this.lengths[this.current] = this.position - this.offsets[this.current];
+        this.current = -1;
+      }
+    }
+
+    /**
+     * Write strings as two sections: n + 1 int offsets, then the
+     * concatenated bytes.
+     */
+    public void writeStringTable(int offsetSection, int byteSection, List<byte[]> strings)
+      throws IOException {
+      this.startSection(offsetSection);
+      int offset = 0;
+      for (byte[] string : strings) {
+        this.writeInt(offset);
+        offset += string.length;
+      }
+      this.writeInt(offset);
+
+      this.startSection(byteSection);
+      for (byte[] string : strings) {
+        this.write(string);
+      }
+    }
+
+    public void write(byte[] bytes) throws IOException {
+      this.write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      this.out.write(bytes, offset, length);
+      this.position += length;
+    }
+
+    public void writeByte(int value) throws IOException {
+      this.out.writeByte(value);
+      this.position += 1;
+    }
+
+    public void writeInt(int value) throws IOException {
+      this.out.writeInt(value);
+      this.position += 4;
+    }
+
+    public void writeLong(long value) throws IOException {
+      this.out.writeLong(value);
+      this.position += 8;
+    }
+
+    public void writeDouble(double value) throws IOException {
+      this.out.writeDouble(value);
+      this.position += 8;
+    }
+
+    public void finish() throws IOException {
+      this.endSection();
+      long directoryOffset = this.position;
+      for (int i = 0; i < this.offsets.length; i++) {
+        this.out.writeLong(this.offsets[i]);
+        this.out.writeLong(this.lengths[i]);
+      }
+      this.out.writeLong(directoryOffset);
+    }
+
+    public void close() throws IOException {
+      this.out.close();
+    }
+  }
+
+  /**
+   * Decode the UTF-8 bytes between start and end of a mapped section.
+   */
+  public static String decode(ByteBuffer bytes, int start, int end) {
+    byte[] buffer = new byte[end - start];
+    for (int i = 0; i < buffer.length; i++) {
+      buffer[i] = bytes.get(start + i);
+    }
+    return new String(buffer, UTF8);
+  }
+
+  /**
+   * Checks the magic number at the start of a file.
+   */
+  public static boolean hasMagic(String path, int magic) {
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(path));
+      try {
+        return in.readInt() == magic;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
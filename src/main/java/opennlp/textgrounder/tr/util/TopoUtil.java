@@ -140,6 +140,8 @@ public class TopoUtil {
     }
 
     public static Corpus readCorpusFromSerialized(String serializedCorpusInputPath) throws Exception {
+        if(BinaryCorpus.isBinaryCorpus(serializedCorpusInputPath))
+            return new BinaryCorpus(serializedCorpusInputPath);
 
         Corpus corpus;
         ObjectInputStream ois = null;
@@ -158,6 +160,16 @@ public class TopoUtil {
 
 
     public static StoredCorpus readStoredCorpusFromSerialized(String serializedCorpusInputPath) throws Exception {
+        return readStoredCorpusFromSerialized(serializedCorpusInputPath, null);
+    }
+
+    /* A binary corpus resolves its gazetteer ids against the given mapped gazetteer, if any, instead of the one it records. */
+    public static StoredCorpus readStoredCorpusFromSerialized(String serializedCorpusInputPath, String gazetteerPath) throws Exception {
+        if(BinaryCorpus.isBinaryCorpus(serializedCorpusInputPath)) {
+            if(gazetteerPath != null && MappedGazetteer.isMappedGazetteer(gazetteerPath))
+                return new BinaryCorpus(serializedCorpusInputPath, new MappedGazetteer(gazetteerPath));
+            return new BinaryCorpus(serializedCorpusInputPath);
+        }
 
         StoredCorpus corpus;
         ObjectInputStream ois = null;
@@ -174,23 +186,86 @@ public class TopoUtil {
         return corpus;
     }
 
+    /* Opens a gazetteer written by ImportGazetteer, either memory-mapping it or, for
+     * files in the older Java-serialized format, deserializing it. */
+    public static Gazetteer readGazetteer(String gazetteerInputPath) throws Exception {
+        if(MappedGazetteer.isMappedGazetteer(gazetteerInputPath))
+            return new MappedGazetteer(gazetteerInputPath);
+
+        ObjectInputStream ois = null;
+        if(gazetteerInputPath.toLowerCase().endsWith(".gz")) {
+            GZIPInputStream gis = new GZIPInputStream(new FileInputStream(gazetteerInputPath));
+            ois = new ObjectInputStream(gis);
+        }
+        else {
+            FileInputStream fis = new FileInputStream(gazetteerInputPath);
+            ois = new ObjectInputStream(fis);
+        }
+        Gazetteer gazetteer = (Gazetteer) ois.readObject();
+        ois.close();
+
+        return gazetteer;
+    }
+
+    public static Set<String> getUniqueLocationNameSet(Gazetteer gazetteer) {
+        if(gazetteer instanceof MappedGazetteer)
+            return ((MappedGazetteer) gazetteer).getUniqueLocationNameSet();
+        return ((GeoNamesGazetteer) gazetteer).getUniqueLocationNameSet();
+    }
+
+    /* The serialized gazetteer's own toponym trie (built if it wasn't saved with one);
+     * for a mapped gazetteer, one built from its name set. */
+    public static ToponymTrie getToponymTrie(Gazetteer gazetteer) {
+        if(gazetteer instanceof GeoNamesGazetteer)
+            return ((GeoNamesGazetteer) gazetteer).getToponymTrie();
+        return new ToponymTrie(getUniqueLocationNameSet(gazetteer));
+    }
+
+    /* Uses the gazetteer's spatial index to find the ids of all its locations inside the
+     * bounding box, or returns null for gazetteers whose ids aren't unique (or that have
+     * no index), which have to be filtered point by point instead. */
+    public static BitSet getIdsInBox(Gazetteer gazetteer, Region boundingBox) {
+        if(boundingBox == null)
+            return null;
+        if(gazetteer instanceof MappedGazetteer)
+            return ((MappedGazetteer) gazetteer).getSpatialIndex().getIdsInBox(boundingBox);
+        if(gazetteer instanceof GeoNamesGazetteer)
+            return ((GeoNamesGazetteer) gazetteer).getSpatialIndex().getIdsInBox(boundingBox);
+        return null;
+    }
+
+    /* Same as filter(locs, boundingBox), given the ids that getIdsInBox found for it;
+     * locations without an id are checked point by point. */
+    public static List<Location> filter(List<Location> locs, BitSet idsInBox, Region boundingBox) {
+        if(idsInBox == null || locs == null) return filter(locs, boundingBox);
+
+        List<Location> toReturn = new ArrayList<Location>();
+        for(Location loc : locs) {
+            if(loc.getId() >= 0 ? idsInBox.get(loc.getId()) : containsAllPoints(boundingBox, loc))
+                toReturn.add(loc);
+        }
+
+        return toReturn;
+    }
+
     public static List<Location> filter(List<Location> locs, Region boundingBox) {
         if(boundingBox == null || locs == null) return locs;
 
         List<Location> toReturn = new ArrayList<Location>();
         
         for(Location loc : locs) {
-            boolean containsAllPoints = true;
-            for(Coordinate coord : loc.getRegion().getRepresentatives()) {
-                if(!boundingBox.contains(coord)) {
-                    containsAllPoints = false;
-                    break;
-                }
-            }
-            if(containsAllPoints)
+            if(containsAllPoints(boundingBox, loc))
                 toReturn.add(loc);
         }
 
         return toReturn;
     }
+
+    private static boolean containsAllPoints(Region boundingBox, Location loc) {
+        for(Coordinate coord : loc.getRegion().getRepresentatives()) {
+            if(!boundingBox.contains(coord))
+                return false;
+        }
+        return true;
+    }
 }
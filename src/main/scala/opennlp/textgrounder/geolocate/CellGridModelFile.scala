@@ -0,0 +1,464 @@
+///////////////////////////////////////////////////////////////////////////////
+//  CellGridModelFile.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.geolocate
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+import opennlp.textgrounder.{util => tgutil}
+import tgutil.distances.SphereCoord
+import tgutil.experiment._
+import tgutil.ioutil.FileFormatException
+import tgutil.printutil.errprint
+import tgutil.textdbutil.Schema
+
+import opennlp.textgrounder.worddist._
+import WordDist.memoizer._
+
+/**
+ * Saving and loading of trained cell grids (--save-model and --load-model),
+ * so that evaluation runs can skip reading the training documents.
+ *
+ * A model file holds everything about a finished `MultiRegularCellGrid`
+ * that evaluation looks at: the grid size, the global statistics of the
+ * word-distribution factory (including the overall word probabilities),
+ * and for each cell its index, its document and link counts, the title,
+ * coordinate and link count of its most popular document, and its finished
+ * word distribution.  The settings that decide which words end up in the
+ * distributions are stored too, and must match when loading.  Words are
+ * written as strings once, in a vocabulary table, and referred to by their
+ * position in it elsewhere; on loading they are memoized again, so the IDs
+ * need not match those of the saving run.
+ *
+ * All values are big-endian, as written by `DataOutputStream`.  Strings
+ * are an int byte count followed by the UTF-8 bytes; word maps are an int
+ * count followed by that many vocabulary positions, then that many doubles;
+ * string lists are an int count followed by that many strings, sorted.
+ * The layout is:
+ *
+ * {{{
+ * int magic, int version
+ * string word-dist, boolean interpolate, boolean tf-idf
+ * boolean preserve-case-words, int minimum-word-count,
+ *   string list stopwords, string list whitelist
+ * double degrees-per-cell, int width-of-multi-cell
+ * int num-words, then num-words strings (in increasing order of word ID)
+ * int total-num-word-types, int total-num-word-tokens,
+ *   int total-num-unseen-word-types, int num-documents,
+ *   double global-normalization-factor,
+ *   word map overall-word-probs, word map document-freq
+ * int total-num-cells, int num-non-empty-cells,
+ *   int total-num-docs-for-word-dist, int total-num-docs-for-links
+ * int num-cells, then for each cell:
+ *   int latind, int longind,
+ *   int num-docs-for-links, int incoming-links, int num-docs-for-word-dist,
+ *   boolean has-most-popular-document, and if so string title,
+ *     boolean has-coord, double lat, double long, int links,
+ *   double unseen-mass, double overall-unseen-mass,
+ *   double normalization-factor, double num-tokens,
+ *   word map counts
+ * }}}
+ */
+object CellGridModelFile {
+  /** "TGCM" */
+  val magic = 0x5447434d
+  /** Increase whenever the layout changes. */
+  val version = 2
+
+  protected def discounted_factory(factory: WordDistFactory) = {
+    factory match {
+      case x: DiscountedUnigramWordDistFactory => x
+      case _ => throw new IllegalArgumentException("Saved models need a discounted unigram word distribution (e.g. pseudo-good-turing)")
+    }
+  }
+
+  protected def write_string(out: DataOutputStream, str: String) {
+    val bytes = str.getBytes("UTF-8")
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  protected def write_string_list(out: DataOutputStream,
+      strs: Iterable[String]) {
+    val sorted = strs.toArray.sorted
+    out.writeInt(sorted.length)
+    for (str <- sorted)
+      write_string(out, str)
+  }
+
+  /**
+   * The words left out of the document distributions and the words they're
+   * limited to, as the word-dist constructor was given them.
+   */
+  protected def vocabulary_settings(driver: GeolocateDriver) = {
+    val params = driver.params
+    val stopwords =
+      if (params.include_stopwords_in_document_dists) Set[String]()
+      else driver.stopwords
+    (stopwords, driver.whitelist)
+  }
+
+  protected def write_word_map(out: DataOutputStream,
+      items: Iterable[(Word, Double)], vocab_index: WordIntMap) {
+    val sorted = items.toArray.sortBy(_._1)
+    out.writeInt(sorted.length)
+    for ((word, _) <- sorted)
+      out.writeInt(vocab_index(word))
+    for ((_, value) <- sorted)
+      out.writeDouble(value)
+  }
+
+  /**
+   * Write the finished cell grid `grid` to `filename`.
+   */
+  def save(grid: MultiRegularCellGrid, filename: String) {
+    assert(grid.all_cells_computed)
+    val params = grid.table.driver.params
+    val factory = discounted_factory(grid.table.word_dist_factory)
+    val cells = grid.corner_to_multi_cell.values.toSeq
+    val dists = cells.map(_.combined_dist.word_dist.
+      asInstanceOf[DiscountedUnigramWordDist])
+
+    // The vocabulary is every word seen globally or in any cell, in
+    // increasing order of ID, so that loading it into an unused memoizer
+    // keeps the order and the cells' words needn't be re-sorted.
+    val vocab_index = create_word_int_map()
+    for (word <- factory.overall_word_probs.keys)
+      vocab_index(word) = 0
+    for (dist <- dists; word <- dist.model.iter_keys)
+      vocab_index(word) = 0
+    val vocab = vocab_index.keys.toArray
+    java.util.Arrays.sort(vocab)
+    for (i <- 0 until vocab.length)
+      vocab_index(vocab(i)) = i
+
+    errprint("Writing model for %s cells and %s words to %s ...",
+      cells.size, vocab.length, filename)
+    val out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(filename), 1 << 16))
+    try {
+      out.writeInt(magic)
+      out.writeInt(version)
+      write_string(out, params.word_dist)
+      out.writeBoolean(factory.interpolate)
+      out.writeBoolean(params.tf_idf)
+      out.writeBoolean(params.preserve_case_words)
+      out.writeInt(params.minimum_word_count)
+      val (stopwords, whitelist) = vocabulary_settings(grid.table.driver)
+      write_string_list(out, stopwords)
+      write_string_list(out, whitelist)
+      out.writeDouble(grid.degrees_per_cell)
+      out.writeInt(grid.width_of_multi_cell)
+
+      out.writeInt(vocab.length)
+      for (word <- vocab)
+        write_string(out, unmemoize_string(word))
+
+      out.writeInt(factory.total_num_word_types)
+      out.writeInt(factory.total_num_word_tokens)
+      out.writeInt(factory.total_num_unseen_word_types)
+      out.writeInt(factory.num_documents)
+      out.writeDouble(factory.global_normalization_factor)
+      write_word_map(out, factory.overall_word_probs, vocab_index)
+      write_word_map(out, factory.document_freq, vocab_index)
+
+      out.writeInt(grid.total_num_cells)
+      out.writeInt(grid.num_non_empty_cells)
+      out.writeInt(grid.total_num_docs_for_word_dist)
+      out.writeInt(grid.total_num_docs_for_links)
+      out.writeInt(cells.size)
+      val task = new ExperimentMeteredTask(grid.table.driver, "cell", "saving")
+      for ((cell, dist) <- cells zip dists) {
+        assert(dist.finished)
+        val combined = cell.combined_dist
+        out.writeInt(cell.index.latind)
+        out.writeInt(cell.index.longind)
+        out.writeInt(combined.num_docs_for_links)
+        out.writeInt(combined.incoming_links)
+        out.writeInt(combined.num_docs_for_word_dist)
+        val mostpop = cell.most_popular_document
+        out.writeBoolean(mostpop != null)
+        if (mostpop != null) {
+          write_string(out, if (mostpop.title == null) "" else mostpop.title)
+          out.writeBoolean(mostpop.has_coord)
+          out.writeDouble(if (mostpop.has_coord) mostpop.coord.lat else 0.0)
+          out.writeDouble(if (mostpop.has_coord) mostpop.coord.long else 0.0)
+          out.writeInt(cell.mostpopdoc_links)
+        }
+        out.writeDouble(dist.unseen_mass)
+        out.writeDouble(dist.overall_unseen_mass)
+        out.writeDouble(dist.normalization_factor)
+        out.writeDouble(dist.model.num_tokens)
+        write_word_map(out, dist.model.iter_items, vocab_index)
+        task.item_processed()
+      }
+      task.finish()
+    } finally {
+      out.close()
+    }
+  }
+
+  protected def check_setting(filename: String, option: String,
+      saved: Any, current: Any) {
+    if (saved != current)
+      throw new FileFormatException(
+        "Model file %s was saved with %s %s, but the current value is %s"
+        format (filename, option, saved, current))
+  }
+
+  protected def read_string_list(in: MappedModelReader) =
+    (for (i <- 0 until in.get_int()) yield in.get_string()).toSet
+
+  protected def check_words(filename: String, what: String,
+      saved: Set[String], current: Set[String]) {
+    if (saved != current) {
+      val missing = (saved -- current).size
+      val extra = (current -- saved).size
+      throw new FileFormatException(
+        "Model file %s was saved with different %s: %s of its words aren't in the current list, and %s words of the current list aren't in it"
+        format (filename, what, missing, extra))
+    }
+  }
+
+  /**
+   * Read a word map, translating vocabulary positions to the words in
+   * `word_ids`.  Returns the words and values in increasing order of word.
+   */
+  protected def read_word_map(in: MappedModelReader, word_ids: Array[Word]) = {
+    val size = in.get_int()
+    val words = in.get_int_array(size)
+    val values = in.get_double_array(size)
+    var sorted = true
+    for (i <- 0 until size) {
+      words(i) = word_ids(words(i))
+      if (i > 0 && words(i) <= words(i - 1))
+        sorted = false
+    }
+    if (sorted)
+      (words, values)
+    else {
+      val order = (0 until size).sortBy(words(_))
+      (order.map(words(_)).toArray, order.map(values(_)).toArray)
+    }
+  }
+
+  protected def to_word_map(items: (Array[Word], Array[Double])) = {
+    val (words, values) = items
+    val map = create_word_double_map()
+    for (i <- 0 until words.length)
+      map(words(i)) = values(i)
+    map
+  }
+
+  /**
+   * Create a finished cell grid over `table` from the model file
+   * `filename`, and set the global statistics of the table's word-dist
+   * factory, which must not have seen any documents yet.
+   */
+  def load(table: SphereDocumentTable, filename: String) = {
+    val driver = table.driver
+    val params = driver.params
+    val factory = discounted_factory(table.word_dist_factory)
+    assert(!factory.owp_adjusted)
+
+    errprint("Loading model from %s ...", filename)
+    val in = new MappedModelReader(filename)
+    try {
+      if (in.get_int() != magic)
+        throw new FileFormatException(
+          "%s is not a saved model file" format filename)
+      val file_version = in.get_int()
+      if (file_version != version)
+        throw new FileFormatException(
+          "Model file %s has version %s, but only version %s can be read"
+          format (filename, file_version, version))
+      check_setting(filename, "--word-dist", in.get_string(), params.word_dist)
+      check_setting(filename, "--interpolate", in.get_boolean(),
+        factory.interpolate)
+      check_setting(filename, "--tf-idf", in.get_boolean(), params.tf_idf)
+      check_setting(filename, "--preserve-case-words", in.get_boolean(),
+        params.preserve_case_words)
+      check_setting(filename, "--minimum-word-count", in.get_int(),
+        params.minimum_word_count)
+      val (stopwords, whitelist) = vocabulary_settings(driver)
+      check_words(filename, "stopwords", read_string_list(in), stopwords)
+      check_words(filename, "whitelist", read_string_list(in), whitelist)
+      check_setting(filename, "degrees per cell", in.get_double(),
+        driver.degrees_per_cell)
+      check_setting(filename, "--width-of-multi-cell", in.get_int(),
+        params.width_of_multi_cell)
+      val degrees_per_cell = driver.degrees_per_cell
+      val width_of_multi_cell = params.width_of_multi_cell
+
+      val word_ids = new Array[Word](in.get_int())
+      for (i <- 0 until word_ids.length)
+        word_ids(i) = memoize_string(in.get_string())
+
+      factory.total_num_word_types = in.get_int()
+      factory.total_num_word_tokens = in.get_int()
+      factory.total_num_unseen_word_types = in.get_int()
+      factory.num_documents = in.get_int()
+      factory.global_normalization_factor = in.get_double()
+      factory.overall_word_probs = to_word_map(read_word_map(in, word_ids))
+      factory.document_freq = to_word_map(read_word_map(in, word_ids))
+      factory.owp_adjusted = true
+
+      val grid = new MultiRegularCellGrid(degrees_per_cell,
+        width_of_multi_cell, table,
+        coarse_levels = params.coarse_grid_levels,
+        coarse_factor = params.coarse_grid_factor)
+      val total_num_cells = in.get_int()
+      val num_non_empty_cells = in.get_int()
+      val total_num_docs_for_word_dist = in.get_int()
+      val total_num_docs_for_links = in.get_int()
+      val num_cells = in.get_int()
+      val freeze = !params.no_freeze_cell_dists
+      // The most popular documents only keep their title and coordinate,
+      // as stand-in generic documents.
+      val generic_subtable = table.find_subtable("generic").
+        asInstanceOf[GenericSphereDocumentSubtable]
+      val mostpop_schema = new Schema(Seq("title", "coord"),
+        Map("split" -> "training", "corpus-type" -> "generic"))
+      val task = new ExperimentMeteredTask(driver, "cell", "loading")
+      for (i <- 0 until num_cells) {
+        val latind = in.get_int()
+        val longind = in.get_int()
+        val cell = new MultiRegularCell(grid, RegularCellIndex(latind, longind))
+        val combined = cell.combined_dist
+        combined.num_docs_for_links = in.get_int()
+        combined.incoming_links = in.get_int()
+        combined.num_docs_for_word_dist = in.get_int()
+        if (in.get_boolean()) {
+          val mostpop = generic_subtable.create_document(mostpop_schema)
+          mostpop.title = in.get_string()
+          val has_coord = in.get_boolean()
+          val lat = in.get_double()
+          val long = in.get_double()
+          if (has_coord)
+            mostpop.coord = SphereCoord(lat, long)
+          cell.most_popular_document = mostpop
+          cell.mostpopdoc_links = in.get_int()
+        }
+        val dist =
+          combined.word_dist.asInstanceOf[DiscountedUnigramWordDist]
+        dist.unseen_mass = in.get_double()
+        dist.overall_unseen_mass = in.get_double()
+        dist.normalization_factor = in.get_double()
+        val num_tokens = in.get_double()
+        val (words, counts) = read_word_map(in, word_ids)
+        if (freeze)
+          dist.model.set_frozen(words, counts, num_tokens)
+        else {
+          for (j <- 0 until words.length)
+            dist.model.set_item(words(j), counts(j))
+          dist.model.num_tokens_val = num_tokens
+          dist.model.tokens_accurate = true
+        }
+        dist.finished_before_global = true
+        dist.finished = true
+        grid.corner_to_multi_cell(cell.index) = cell
+        task.item_processed()
+      }
+      task.finish()
+
+      grid.total_num_cells = total_num_cells
+      grid.num_non_empty_cells = num_non_empty_cells
+      grid.total_num_docs_for_word_dist = total_num_docs_for_word_dist
+      grid.total_num_docs_for_links = total_num_docs_for_links
+      grid.all_cells_computed = true
+      errprint("Number of non-empty cells: %s", num_non_empty_cells)
+      errprint("Total number of cells: %s", total_num_cells)
+      grid
+    } finally {
+      in.close()
+    }
+  }
+}
+
+/**
+ * Sequential reader of the big-endian values in a model file, through a
+ * memory mapping of the file.  The file is mapped a window at a time
+ * (a mapping is limited to 2GB), remapping whenever a value would cross
+ * the end of the current window.
+ *
+ * @param window Size in bytes of the mapped windows; a single value or
+ *   array larger than this gets a window of its own.
+ */
+class MappedModelReader(filename: String, window: Int = 1 << 28) {
+  protected val file = new RandomAccessFile(filename, "r")
+  protected val channel = file.getChannel
+  /** File offset of the start of `buffer`. */
+  protected var buffer_start = 0L
+  protected var buffer = ByteBuffer.allocate(0)
+
+  protected def need(bytes: Long) {
+    if (buffer.remaining < bytes) {
+      buffer_start += buffer.position
+      val size = (channel.size - buffer_start) min (bytes max window)
+      if (size < bytes)
+        throw new FileFormatException(
+          "Model file %s is truncated" format filename)
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, buffer_start, size)
+    }
+  }
+
+  def get_int() = {
+    need(4)
+    buffer.getInt()
+  }
+
+  def get_double() = {
+    need(8)
+    buffer.getDouble()
+  }
+
+  def get_boolean() = {
+    need(1)
+    buffer.get() != 0
+  }
+
+  def get_string() = {
+    val bytes = new Array[Byte](get_int())
+    need(bytes.length)
+    buffer.get(bytes)
+    new String(bytes, "UTF-8")
+  }
+
+  def get_int_array(size: Int) = {
+    val array = new Array[Int](size)
+    need(4L * size)
+    buffer.asIntBuffer.get(array)
+    buffer.position(buffer.position + 4 * size)
+    array
+  }
+
+  def get_double_array(size: Int) = {
+    val array = new Array[Double](size)
+    need(8L * size)
+    buffer.asDoubleBuffer.get(array)
+    buffer.position(buffer.position + 8 * size)
+    array
+  }
+
+  def close() {
+    channel.close()
+    file.close()
+  }
+}
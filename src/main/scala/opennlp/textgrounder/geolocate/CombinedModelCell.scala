@@ -59,6 +59,11 @@ class CombinedModelCellGrid(override val table: SphereDocumentTable,
     }
   }
 
+  override def add_document_to_grid(document: SphereDocument) = {
+    models.filter(current_training_pass <= _.num_training_passes).
+      flatMap(_.add_document_to_grid(document))
+  }
+
   def initialize_cells() {
   }
 
@@ -242,6 +242,22 @@ NOTE: It's unlikely you want to change this.  It may be removed entirely in
 later versions.  In normal circumstances, the value is 1, i.e. use a single
 tiling cell to compute each multi cell.  If the value is more than
 1, the multi cells overlap.""")
+  var coarse_grid_levels =
+    ap.option[Int]("coarse-grid-levels", metavar = "NUM", default = 0,
+      help = """Number of successively coarser grids to build on top of
+the grid of tiling cells, each --coarse-grid-factor times as large on a
+side as the one below it, with each coarse cell combining the distributions
+of the cells inside it.  If non-zero, cells are ranked by coarse-to-fine
+search: the document is scored against all cells of the coarsest grid, and
+then only against the cells inside the --beam-width best cells of each
+level, rather than against every non-empty cell.  For example, with
+--degrees-per-cell 0.5, 2 coarse levels and a factor of 4, the levels have
+cells of 8, 2 and 0.5 degrees.  Only for regular grids.  Default %default,
+i.e. score all cells.""")
+  var coarse_grid_factor =
+    ap.option[Int]("coarse-grid-factor", metavar = "NUM", default = 4,
+      help = """Ratio of the size of the cells of a coarse grid to those of
+the grid below it; see --coarse-grid-levels.  Default %default.""")
 
   //// Options for using KD trees, and related parameters
   var kd_tree =
@@ -312,6 +328,19 @@ trait GeolocateDriver extends GridLocateDriver[SphereCoord] {
         params.degrees_per_cell
     if (params.width_of_multi_cell <= 0)
       param_error("Width of multi cell must be positive")
+    if (params.coarse_grid_levels < 0)
+      param_error("Number of coarse grid levels must be non-negative")
+    if (params.coarse_grid_factor < 2)
+      param_error("Coarse grid factor must be at least 2")
+    if (params.coarse_grid_levels > 0 &&
+        (params.kd_tree || params.combined_kd_grid))
+      param_error("--coarse-grid-levels can only be used with regular grids")
+    if (params.save_model != null || params.load_model != null) {
+      if (params.kd_tree || params.combined_kd_grid)
+        param_error("--save-model and --load-model can't currently be used with K-d tree grids")
+      if (params.word_dist == "unsmoothed-ngram")
+        param_error("--save-model and --load-model need a unigram word distribution")
+    }
   }
 
   protected def initialize_document_table(word_dist_factory: WordDistFactory) =
@@ -332,9 +361,20 @@ trait GeolocateDriver extends GridLocateDriver[SphereCoord] {
         params.kd_use_backoff, params.kd_interpolate_weight)
     } else {
       new MultiRegularCellGrid(degrees_per_cell,
-        params.width_of_multi_cell, spheretab)
+        params.width_of_multi_cell, spheretab,
+        coarse_levels = params.coarse_grid_levels,
+        coarse_factor = params.coarse_grid_factor)
     }
   }
+
+  protected def save_cell_grid(filename: String) {
+    CellGridModelFile.save(cell_grid.asInstanceOf[MultiRegularCellGrid],
+      filename)
+  }
+
+  protected def load_cell_grid(table: GDocTable[SphereCoord],
+      filename: String) =
+    CellGridModelFile.load(table.asInstanceOf[SphereDocumentTable], filename)
 }
 
 class GeolocateDocumentParameters(
@@ -504,6 +544,28 @@ NOTE: Multiple --baseline-strategy options can be given, and each strategy will
 be tried, one after the other.  Currently, however, the *-most-common-toponym
 strategies cannot be mixed with other baseline strategies, or with non-baseline
 strategies, since they require that --preserve-case-words be set internally.""")
+
+  var serve_port =
+    ap.option[Int]("serve-port", metavar = "PORT",
+      default = 0,
+      help = """If non-zero, don't evaluate; instead, once the cell grid
+has been trained (or loaded using --load-model), run as a server on the given
+port, geolocating documents sent to it by HTTP POST to /locate, as raw text
+or, with 'format=counts' in the query string, as a word-count map.  The first
+--strategy is used.  Concurrent requests are scored together in batches of
+up to --eval-batch-size documents.""")
+  var serve_host =
+    ap.option[String]("serve-host", metavar = "HOST",
+      default = "127.0.0.1",
+      help = """In server mode, the host name or address of the interface to
+listen on.  Default %default, i.e. only local clients can connect; use
+0.0.0.0 to listen on all interfaces.""")
+  var serve_batch_wait =
+    ap.option[Int]("serve-batch-wait", metavar = "MSECS",
+      default = 2,
+      help = """In server mode, how long to wait after a request arrives for
+more requests to score in the same batch, in milliseconds.  Default
+%default.""")
 }
 
 // FUCK ME.  Have to make this abstract and GeolocateDocumentDriver a subclass
@@ -539,16 +601,22 @@ trait GeolocateDocumentTypeDriver extends GeolocateDriver with
       }
     }
 
-    if (params.eval_format == "raw-text") {
-      // FIXME!!!!
-      param_error("Raw-text reading not implemented yet")
-    }
+    if (params.serve_port < 0)
+      param_error("Server port must be positive if specified")
+    if (params.serve_batch_wait < 0)
+      param_error("Server batch wait must be non-negative")
+    if (params.serve_port == 0) {
+      if (params.eval_format == "raw-text") {
+        // FIXME!!!!
+        param_error("Raw-text reading not implemented yet")
+      }
 
-    if (params.eval_format == "internal") {
-      if (params.eval_file.length > 0)
-        param_error("--eval-file should not be given when --eval-format=internal")
-    } else
-      need_seq(params.eval_file, "eval-file", "evaluation file(s)")
+      if (params.eval_format == "internal") {
+        if (params.eval_file.length > 0)
+          param_error("--eval-file should not be given when --eval-format=internal")
+      } else
+        need_seq(params.eval_file, "eval-file", "evaluation file(s)")
+    }
   }
 
   override def create_strategy(stratname: String) = {
@@ -844,8 +912,17 @@ found   : (String, Iterator[evalobj.TEvalRes])
    *
    * NOTE: We force evaluation in this function because currently we mostly
    * depend on side effects (e.g. printing results to stdout/stderr).
+   *
+   * In server mode (--serve-port), this doesn't return; see
+   * `GeolocateServer`.
    */
   def run_after_setup() = {
+    if (params.serve_port > 0) {
+      if (strategies.isEmpty)
+        param_error("No strategy given to serve with")
+      val (stratname, strategy) = strategies.head
+      new GeolocateServer(this, strategy, stratname).run()
+    }
     for ((stratname, strategy) <- strategies) yield {
       val results =
         params.eval_format match {
@@ -862,7 +939,7 @@ found   : (String, Iterator[evalobj.TEvalRes])
                   get_file_handler, dir,
                   params.eval_set + "-" + document_file_suffix))
             val evalobj = create_cell_evaluator(strategy, stratname)
-            evalobj.evaluate_documents(docstats)
+            evalobj.evaluate_documents(docstats, prefetch = true)
           }
           case "raw-text" => {
             throw new UnsupportedOperationException(
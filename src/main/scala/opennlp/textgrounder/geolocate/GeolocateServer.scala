@@ -0,0 +1,344 @@
+///////////////////////////////////////////////////////////////////////////////
+//  GeolocateServer.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.geolocate
+
+import java.io._
+import java.net.{InetAddress, InetSocketAddress, URLDecoder}
+import java.util.concurrent.{CountDownLatch, Executors, LinkedBlockingQueue,
+  TimeUnit}
+import collection.mutable
+
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+
+import opennlp.textgrounder.{util => tgutil}
+import tgutil.distances._
+import tgutil.printutil.errprint
+import tgutil.textdbutil.Schema
+import tgutil.textutil.split_text_into_words
+
+import opennlp.textgrounder.gridlocate._
+
+/**
+ * A document sent to the geolocation server, and the place where its
+ * response is delivered once it has been scored.
+ *
+ * @param format Either 'text' (raw text) or 'counts' (a word-count map, as
+ *   in the counts field of a document file).
+ * @param body The text or count map.
+ * @param num_cells Number of top-ranked cells to return.
+ */
+class GeolocateServerRequest(
+  val format: String,
+  val body: String,
+  val num_cells: Int
+) {
+  protected val done = new CountDownLatch(1)
+  protected var response: String = _
+  protected var error: Throwable = _
+  /** HTTP status to answer with: 200, or the one given when failing. */
+  var status = 200
+
+  def finished = done.getCount == 0
+
+  def finish(response: String) {
+    synchronized {
+      if (!finished) {
+        this.response = response
+        done.countDown()
+      }
+    }
+  }
+
+  /**
+   * Complete the request with an error.  Does nothing if the request was
+   * already completed.
+   *
+   * @param status 400 if the request itself was bad, 500 if scoring it
+   *   failed.
+   */
+  def fail(error: Throwable, status: Int) {
+    synchronized {
+      if (!finished) {
+        this.error = error
+        this.status = status
+        done.countDown()
+      }
+    }
+  }
+
+  /**
+   * Wait until the request has been scored and return the response, or
+   * throw the error that occurred while handling it.
+   */
+  def await() = {
+    done.await()
+    if (error != null)
+      throw error
+    response
+  }
+}
+
+/**
+ * Server mode for document geolocation (--serve-port).  The cell grid is
+ * trained (or loaded using --load-model) once, and then documents are
+ * accepted over HTTP and geolocated using a single strategy and its ranker
+ * (including any reranker), just as during evaluation.
+ *
+ * A request is a POST to /locate, with the document as the body, in UTF-8.
+ * The query string can specify `format=text` (the default) or
+ * `format=counts`, and `cells=N` to override --num-top-cells-to-output.
+ * The response is plain text: a line 'coord LAT,LONG' giving the
+ * predicted coordinate (as selected by --coord-strategy), followed by a
+ * line 'cell RANK SCORE CENTER LOCATION' for each top-ranked cell, with
+ * fields separated by tabs.  Errors get a response with a line
+ * 'error MESSAGE': 400 for a bad request, 500 if scoring the document
+ * failed.  The server listens on --serve-host, the loopback interface
+ * unless specified otherwise.
+ *
+ * Concurrent requests are coalesced into micro-batches of up to
+ * --eval-batch-size documents: a batch is closed once it's full or
+ * --serve-batch-wait milliseconds after its first request arrived.  The
+ * documents' distributions are built on the batching thread; the batch is
+ * then scored in parallel (unless --no-parallel, or the ranker isn't
+ * thread-safe), and the next batch is collected meanwhile by the HTTP
+ * threads.
+ */
+class GeolocateServer(
+  val driver: GeolocateDocumentTypeDriver,
+  val strategy: GridLocateDocumentStrategy[SphereCoord],
+  val stratname: String
+) {
+  protected val params = driver.params
+  protected val ranker = driver.create_ranker(strategy)
+  protected val batch_size = params.eval_batch_size max 1
+  protected val batch_wait_nanos = params.serve_batch_wait * 1000000L
+  protected val mean_shift =
+    if (params.coord_strategy == "mean-shift")
+      new SphereMeanShift(params.mean_shift_window,
+        params.mean_shift_max_stddev, params.mean_shift_max_iterations)
+    else null
+
+  /* Requests waiting to be put into a batch.  Bounded so that clients
+     get pushed back on rather than piling up requests without limit. */
+  protected val queue =
+    new LinkedBlockingQueue[GeolocateServerRequest](16 * batch_size)
+
+  /* Documents are created as test documents of the generic corpus type.
+     They all get the same title, since the word-dist constructor remembers
+     the titles it has seen. */
+  protected val schema =
+    new Schema(Seq("title"), Map("split" -> "test", "corpus-type" -> "generic"))
+  protected val subtable =
+    driver.document_table.asInstanceOf[SphereDocumentTable].
+      find_subtable("generic").asInstanceOf[GenericSphereDocumentSubtable]
+
+  protected def create_document(request: GeolocateServerRequest) = {
+    val doc = subtable.create_document(schema)
+    doc.title = "server-request"
+    request.format match {
+      case "counts" =>
+        driver.word_dist_constructor.initialize_distribution(doc,
+          request.body, is_training_set = false)
+      case "text" => {
+        doc.dist = driver.word_dist_factory.create_word_dist()
+        doc.dist.add_document(
+          split_text_into_words(request.body, ignore_punc = true))
+      }
+    }
+    doc.dist.finish_before_global()
+    doc.dist.finish_after_global()
+    doc
+  }
+
+  protected def locate_document(doc: GenericSphereDocument, num_cells: Int) = {
+    val k =
+      if (mean_shift != null) num_cells max params.k_best else num_cells
+    val (cells, _) = ranker.evaluate_top(doc, Iterable[SphereCell](), k, null)
+    if (cells.isEmpty)
+      throw new IllegalStateException("No non-empty cells to rank")
+    val coord =
+      if (mean_shift == null)
+        cells.head._1.get_center_coord
+      else {
+        val top_k = cells.take(params.k_best).map(_._1.get_center_coord)
+        mean_shift.vec_mean(mean_shift.mean_shift(top_k))
+      }
+    val out = new StringBuilder
+    out ++= "coord\t%s,%s\n" format (coord.lat, coord.long)
+    for (((cell, score), rank) <- cells.take(num_cells).zipWithIndex) {
+      val center = cell.get_center_coord
+      out ++= "cell\t%s\t%s\t%s,%s\t%s\n" format (rank + 1, score,
+        center.lat, center.long, cell.describe_location)
+    }
+    out.toString
+  }
+
+  protected def process_batch(batch: Seq[GeolocateServerRequest]) {
+    val docs =
+      for (request <- batch) yield {
+        try {
+          (request, create_document(request))
+        } catch {
+          case e: Exception => {
+            request.fail(e, 400)
+            (request, null)
+          }
+          case e: Throwable => {
+            request.fail(e, 500)
+            (request, null)
+          }
+        }
+      }
+    val todo = docs.filter(_._2 != null)
+    def locate(request_doc: (GeolocateServerRequest, GenericSphereDocument)) {
+      val (request, doc) = request_doc
+      try {
+        request.finish(locate_document(doc, request.num_cells))
+      } catch {
+        case e: Throwable => request.fail(e, 500)
+      }
+    }
+    if (params.no_parallel || !ranker.thread_safe)
+      todo.foreach(locate)
+    else
+      todo.par.foreach(locate)
+  }
+
+  /**
+   * Collect requests into batches and process them, forever.  Whatever goes
+   * wrong with a batch, its requests are answered and the loop goes on.
+   */
+  protected def batch_loop() {
+    while (true) {
+      val batch = mutable.Buffer(queue.take())
+      val deadline = System.nanoTime + batch_wait_nanos
+      var more = true
+      while (more && batch.length < batch_size) {
+        val wait = deadline - System.nanoTime
+        val request =
+          if (wait > 0) queue.poll(wait, TimeUnit.NANOSECONDS)
+          else queue.poll()
+        if (request == null)
+          more = false
+        else
+          batch += request
+      }
+      try {
+        process_batch(batch)
+      } catch {
+        case e: Throwable => {
+          errprint("Error while processing batch: %s", e)
+          for (request <- batch)
+            request.fail(e, 500)
+        }
+      }
+    }
+  }
+
+  protected def parse_query(query: String) = {
+    if (query == null) Map[String, String]()
+    else
+      (for (param <- query.split("&") if param.length > 0) yield {
+        param.split("=", 2) match {
+          case Array(key, value) =>
+            (URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"))
+          case Array(key) => (URLDecoder.decode(key, "UTF-8"), "")
+        }
+      }).toMap
+  }
+
+  protected def read_body(stream: InputStream) = {
+    val reader = new InputStreamReader(stream, "UTF-8")
+    val out = new StringBuilder
+    val buf = new Array[Char](4096)
+    var len = reader.read(buf)
+    while (len >= 0) {
+      out.appendAll(buf, 0, len)
+      len = reader.read(buf)
+    }
+    out.toString
+  }
+
+  protected def respond(exchange: HttpExchange, status: Int, text: String) {
+    val bytes = text.getBytes("UTF-8")
+    exchange.getResponseHeaders.set("Content-Type",
+      "text/plain; charset=utf-8")
+    exchange.sendResponseHeaders(status, bytes.length)
+    exchange.getResponseBody.write(bytes)
+  }
+
+  protected class LocateHandler extends HttpHandler {
+    def handle(exchange: HttpExchange) {
+      try {
+        if (exchange.getRequestMethod != "POST")
+          respond(exchange, 405, "error\tUse POST\n")
+        else {
+          val query = parse_query(exchange.getRequestURI.getRawQuery)
+          val doc_format = query.getOrElse("format", "text")
+          val num_cells =
+            try {
+              query.get("cells").map(_.toInt).getOrElse(
+                params.num_top_cells_to_output)
+            } catch {
+              case e: NumberFormatException => 0
+            }
+          if (doc_format != "text" && doc_format != "counts")
+            respond(exchange, 400,
+              "error\tUnknown format %s\n" format doc_format)
+          else if (num_cells == 0 || num_cells < -1)
+            respond(exchange, 400, "error\tBad number of cells\n")
+          else {
+            val request = new GeolocateServerRequest(doc_format,
+              read_body(exchange.getRequestBody),
+              if (num_cells == -1) Int.MaxValue else num_cells)
+            queue.put(request)
+            try {
+              respond(exchange, 200, request.await())
+            } catch {
+              case e: Throwable =>
+                respond(exchange, request.status,
+                  "error\t%s\n" format e.getMessage)
+            }
+          }
+        }
+      } finally {
+        exchange.close()
+      }
+    }
+  }
+
+  /**
+   * Start serving on the host and port given by --serve-host and
+   * --serve-port.  Doesn't return.
+   */
+  def run() {
+    val address = InetAddress.getByName(params.serve_host)
+    val server =
+      HttpServer.create(new InetSocketAddress(address, params.serve_port), 0)
+    server.createContext("/locate", new LocateHandler)
+    // Each HTTP thread just waits while its request is in a batch, so there
+    // should be enough of them to fill a batch while the previous one is
+    // being scored.
+    server.setExecutor(Executors.newFixedThreadPool(2 * batch_size))
+    server.start()
+    errprint("Serving strategy %s on %s port %s", stratname,
+      params.serve_host, params.serve_port)
+    batch_loop()
+  }
+}
@@ -127,18 +127,30 @@ class KdTreeCellGrid(override val table: SphereDocumentTable,
    * Add the given document to the cell grid.
    */
   def add_document_to_cell(document: SphereDocument) {
+    for (cell <- add_document_to_grid(document))
+      cell.add_document(document)
+  }
+
+  /**
+   * On the first pass, add the document's coordinate to the tree and
+   * return no cells; on the second, return the cells of its leaf and all
+   * the leaf's ancestors.
+   */
+  override def add_document_to_grid(document: SphereDocument) = {
+    val cells = scala.collection.mutable.Buffer[SphereCell]()
     if (current_training_pass == 1) {
       kdtree.addPoint(Array(document.coord.lat, document.coord.long))
     } else if (current_training_pass == 2) {
       val leaf = kdtree.getLeaf(Array(document.coord.lat, document.coord.long))
       var n = leaf
       while (n != null) {
-        nodes_to_cell(n).add_document(document)
+        cells += nodes_to_cell(n)
         n = n.parent;
       }
     } else {
       assert(false)
     }
+    cells
   }
 
   /**
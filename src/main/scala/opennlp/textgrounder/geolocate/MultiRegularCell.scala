@@ -27,6 +27,7 @@ import tgutil.distances._
 import tgutil.printutil.{errout, errprint}
 import tgutil.experiment._
 
+import opennlp.textgrounder.gridlocate.CellHierarchy
 import opennlp.textgrounder.gridlocate.GridLocateDriver.Debug._
 
 /////////////////////////////////////////////////////////////////////////////
@@ -194,11 +195,18 @@ class MultiRegularCell(
  *   case it takes priority.
  * @param width_of_multi_cell Size of multi cells in tiling cells,
  *   determined by the --width-of-multi-cell option.
+ * @param coarse_levels Number of coarser grids to build on top of this one
+ *   for coarse-to-fine search (see `cell_hierarchy`), determined by the
+ *   --coarse-grid-levels option.
+ * @param coarse_factor Ratio of the cell size of each coarser grid to the
+ *   one below it, determined by the --coarse-grid-factor option.
  */
 class MultiRegularCellGrid(
   val degrees_per_cell: Double,
   val width_of_multi_cell: Int,
-  override val table: SphereDocumentTable
+  override val table: SphereDocumentTable,
+  val coarse_levels: Int = 0,
+  val coarse_factor: Int = 4
 ) extends SphereCellGrid(table) {
 
   /**
@@ -452,12 +460,21 @@ class MultiRegularCellGrid(
    * multi cells, creating them as necessary, and adds the document to each.
    */
   def add_document_to_cell(doc: SphereDocument) {
-    for (index <- iterate_overlapping_multi_cells(doc.coord)) {
+    for (cell <- add_document_to_grid(doc))
+      cell.add_document(doc)
+  }
+
+  /**
+   * Find all the multi cells the document belongs to, creating them as
+   * necessary.
+   */
+  override def add_document_to_grid(doc: SphereDocument) = {
+    for (index <- iterate_overlapping_multi_cells(doc.coord)) yield {
       val cell = find_cell_for_cell_index(index, create = true,
         record_created_cell = true)
       if (debug("cell"))
         errprint("Adding document %s to cell %s", doc, cell)
-      cell.add_document(doc)
+      cell
     }
   }
 
@@ -492,6 +509,56 @@ class MultiRegularCellGrid(
     } yield v
   }
 
+  /**
+   * The `coarse_levels` coarser grids on top of this one, built the first
+   * time they're needed.  Each is a grid of non-overlapping cells
+   * `coarse_factor` times as large on a side as the cells of the grid
+   * below it.  A cell of a finer grid belongs to the coarse cell containing
+   * its southwest corner, and the coarse cell's distribution combines those
+   * of all the cells belonging to it.  (So with multi cells wider than one
+   * tiling cell, documents near the edge of a coarse cell also count
+   * towards its neighbor, just as they do in the overlapping multi cells.)
+   */
+  override lazy val cell_hierarchy: CellHierarchy[SphereCoord] =
+    if (coarse_levels <= 0) null
+    else {
+      assert(all_cells_computed)
+      def floordiv(x: Int) =
+        if (x >= 0) x / coarse_factor
+        else -((-x + coarse_factor - 1) / coarse_factor)
+      val freeze = !table.driver.params.no_freeze_cell_dists
+      val child_cells =
+        mutable.Map[SphereCell, IndexedSeq[SphereCell]]()
+      var level_cells =
+        iter_nonempty_cells(nonempty_word_dist = true).toIndexedSeq
+      var level_degrees = degrees_per_cell
+      for (level <- 1 to coarse_levels) {
+        level_degrees *= coarse_factor
+        val grid = new MultiRegularCellGrid(level_degrees, 1, table)
+        val children_by_index = level_cells.groupBy { cell =>
+          val index = cell.index
+          RegularCellIndex(floordiv(index.latind), floordiv(index.longind))
+        }
+        for ((index, children) <- children_by_index) {
+          val cell = new MultiRegularCell(grid, index)
+          for (child <- children)
+            cell.add_cell(child)
+          cell.finish()
+          if (freeze)
+            cell.combined_dist.word_dist.freeze()
+          grid.corner_to_multi_cell(index) = cell
+          child_cells(cell) = children
+        }
+        grid.num_non_empty_cells = grid.corner_to_multi_cell.size
+        grid.all_cells_computed = true
+        errprint("Coarse grid level %s: %s degrees per cell, %s non-empty cells",
+          level, level_degrees, grid.num_non_empty_cells)
+        level_cells = grid.corner_to_multi_cell.values.toIndexedSeq
+      }
+      new CellHierarchy[SphereCoord](this, coarse_levels, level_cells,
+        child_cells)
+    }
+
   /**
    * Output a "ranking grid" of information so that a nice 3-D graph
    * can be created showing the ranks of cells surrounding the true
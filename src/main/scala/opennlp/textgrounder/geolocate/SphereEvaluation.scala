@@ -247,6 +247,11 @@ class RankedSphereCellGridEvaluator(
 ) extends RankedCellGridEvaluator[SphereCoord](
   strategy, stratname, driver, evalstats
 ) {
+  // The ranking grid is output from all cells.
+  override def num_cells_needed =
+    if (debug("gridrank") || !debuglist("gridrank").isEmpty) -1
+    else super.num_cells_needed
+
   override def print_individual_result(doctag: String,
       document: SphereDocument,
       result: TEvalRes,
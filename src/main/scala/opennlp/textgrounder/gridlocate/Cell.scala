@@ -134,6 +134,20 @@ class CombinedWordDist(factory: WordDistFactory) {
       num_docs_for_word_dist += 1
     }
   }
+
+  /**
+   * Add another combined distribution (e.g. that of a smaller cell inside
+   * this one) to the total distribution seen so far, along with its
+   * document and link counts.
+   */
+  def add_combined_dist(other: CombinedWordDist) {
+    incoming_links += other.incoming_links
+    num_docs_for_links += other.num_docs_for_links
+    if (!other.is_empty_for_word_dist) {
+      word_dist.add_word_distribution(other.word_dist)
+      num_docs_for_word_dist += other.num_docs_for_word_dist
+    }
+  }
 }
 
 /////////////////////////////////////////////////////////////////////////////
@@ -248,6 +262,20 @@ abstract class GCell[TCoord](
     }
   }
 
+  /**
+   * Add all the documents of another cell (e.g. a smaller cell inside this
+   * one) to the distribution for the cell, by way of the other cell's
+   * combined distribution.
+   */
+  def add_cell(cell: GCell[TCoord]) {
+    assert(!finished)
+    combined_dist.add_combined_dist(cell.combined_dist)
+    if (cell.mostpopdoc_links > mostpopdoc_links) {
+      mostpopdoc_links = cell.mostpopdoc_links
+      most_popular_document = cell.most_popular_document
+    }
+  }
+
   /**
    * Finish any computations related to the cell's word distribution.
    */
@@ -370,6 +398,20 @@ abstract class CellGrid[TCoord](
    */
   def add_document_to_cell(document: GDoc[TCoord]): Unit
 
+  /**
+   * Like `add_document_to_cell`, but rather than adding the document to
+   * the cells it belongs to (using `GCell.add_document`), return those
+   * cells so that the caller can do so.  Any other changes to the grid
+   * (e.g. creating the cells) are made here.  This lets the documents be
+   * added to different cells on different threads; see
+   * `StripedCellAccumulator`.  By default, the document is added with
+   * `add_document_to_cell` and no cells are returned.
+   */
+  def add_document_to_grid(document: GDoc[TCoord]): Iterable[GCell[TCoord]] = {
+    add_document_to_cell(document)
+    Seq()
+  }
+
   /**
    * Generate all non-empty cells.  This will be called once (and only once),
    * after all documents have been added to the cell grid by calling
@@ -413,6 +455,13 @@ abstract class CellGrid[TCoord](
       include.toSeq union cells.toSeq
   }
 
+  /**
+   * Coarser levels of cells built on top of this grid, for coarse-to-fine
+   * search (see `CellHierarchy`), or null if the grid doesn't have any.
+   * Only valid once the grid is finished.
+   */
+  def cell_hierarchy: CellHierarchy[TCoord] = null
+
   /*********************** Not meant to be overridden *********************/
   
   /* These are simply the sum of the corresponding counts
@@ -443,11 +492,15 @@ abstract class CellGrid[TCoord](
     { // Put in a block to control scope of 'task'
       val task = new ExperimentMeteredTask(table.driver, "non-empty cell",
         "computing statistics of")
+      val freeze = !table.driver.params.no_freeze_cell_dists
       for (cell <- iter_nonempty_cells()) {
         total_num_docs_for_word_dist +=
           cell.combined_dist.num_docs_for_word_dist
         total_num_docs_for_links +=
           cell.combined_dist.num_docs_for_links
+        // The cell distributions won't change from here on.
+        if (freeze && cell.finished)
+          cell.combined_dist.word_dist.freeze()
         task.item_processed()
       }
       task.finish()
@@ -0,0 +1,127 @@
+///////////////////////////////////////////////////////////////////////////////
+//  CellHierarchy.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.gridlocate
+
+import opennlp.textgrounder.{util => tgutil}
+import tgutil.printutil.errprint
+
+/**
+ * Successively coarser levels of cells built on top of a cell grid, for
+ * coarse-to-fine (beam) search: rather than scoring a document against
+ * every non-empty cell of the grid, score it against the few cells of the
+ * coarsest level, then only against the children of the best of those,
+ * and so on down to the cells of the grid itself (see
+ * `PointwiseScoreStrategy.score_cells_coarse_to_fine`).
+ *
+ * Each coarse cell combines the distributions of its children, so that it
+ * can be scored like any other cell.  Every cell of a level has exactly
+ * one parent in the next coarser level, so searching never scores a cell
+ * twice.
+ *
+ * @param cell_grid The grid at the bottom of the hierarchy.
+ * @param num_levels Number of coarse levels above `cell_grid`.
+ * @param top_cells The cells of the coarsest level.
+ * @param child_cells For each cell of a coarse level, its children in the
+ *   next finer level; for the finest coarse level, these are non-empty
+ *   cells of `cell_grid`.
+ */
+class CellHierarchy[TCoord](
+  val cell_grid: CellGrid[TCoord],
+  val num_levels: Int,
+  val top_cells: IndexedSeq[GCell[TCoord]],
+  child_cells: collection.Map[GCell[TCoord], IndexedSeq[GCell[TCoord]]]
+) {
+  def children(cell: GCell[TCoord]) =
+    child_cells.getOrElse(cell, IndexedSeq[GCell[TCoord]]())
+}
+
+/**
+ * Comparison of coarse-to-fine search against scoring every cell, gathered
+ * over all documents evaluated when --compare-exhaustive-search is given.
+ * Documents may be recorded from several threads at once.
+ */
+class CoarseToFineSearchStats {
+  protected var num_docs = 0
+  protected var num_same_top_cell = 0
+  protected var num_with_true_cell = 0
+  protected var num_true_cell_searched = 0
+  protected var num_true_cell_top_search = 0
+  protected var num_true_cell_top_exhaustive = 0
+  protected var search_cells_scored = 0L
+  protected var exhaustive_cells_scored = 0L
+  protected var search_nanos = 0L
+  protected var exhaustive_nanos = 0L
+
+  /**
+   * Record the result of both kinds of search for a document.
+   *
+   * @param search_top Best cell found by coarse-to-fine search, or null.
+   * @param search_rank Rank of the true cell in the coarse-to-fine search
+   *   (1000000000 if it wasn't scored), or -1 if there's no true cell.
+   * @param exhaustive_top Best cell among all cells, or null.
+   * @param exhaustive_rank Rank of the true cell among all cells, or -1.
+   */
+  def record(search_top: AnyRef, search_rank: Int,
+      exhaustive_top: AnyRef, exhaustive_rank: Int,
+      search_scored: Int, exhaustive_scored: Int,
+      search_time: Long, exhaustive_time: Long) {
+    synchronized {
+      num_docs += 1
+      if (search_top eq exhaustive_top)
+        num_same_top_cell += 1
+      if (exhaustive_rank >= 0) {
+        num_with_true_cell += 1
+        if (search_rank < 1000000000)
+          num_true_cell_searched += 1
+        if (search_rank == 1)
+          num_true_cell_top_search += 1
+        if (exhaustive_rank == 1)
+          num_true_cell_top_exhaustive += 1
+      }
+      search_cells_scored += search_scored
+      exhaustive_cells_scored += exhaustive_scored
+      search_nanos += search_time
+      exhaustive_nanos += exhaustive_time
+    }
+  }
+
+  def output_results(beam_width: Int) {
+    synchronized {
+      def pct(count: Int, total: Int) =
+        if (total == 0) 0.0 else 100.0 * count / total
+      def avg(total: Long) = if (num_docs == 0) 0.0 else total.toDouble / num_docs
+      errprint("Coarse-to-fine search (beam width %s) vs. exhaustive search, %s documents:",
+        beam_width, num_docs)
+      errprint("  Same top cell: %s (%.2f%%)", num_same_top_cell,
+        pct(num_same_top_cell, num_docs))
+      errprint("  True cell scored by search: %s of %s (%.2f%%)",
+        num_true_cell_searched, num_with_true_cell,
+        pct(num_true_cell_searched, num_with_true_cell))
+      errprint("  True cell ranked first: search %.2f%%, exhaustive %.2f%%",
+        pct(num_true_cell_top_search, num_with_true_cell),
+        pct(num_true_cell_top_exhaustive, num_with_true_cell))
+      errprint("  Cells scored per document: search %.1f, exhaustive %.1f",
+        avg(search_cells_scored), avg(exhaustive_cells_scored))
+      errprint("  Scoring time per document: search %.3f ms, exhaustive %.3f ms (speedup %.2fx)",
+        avg(search_nanos) / 1e6, avg(exhaustive_nanos) / 1e6,
+        if (search_nanos == 0) 0.0
+        else exhaustive_nanos.toDouble / search_nanos)
+    }
+  }
+}
@@ -0,0 +1,199 @@
+///////////////////////////////////////////////////////////////////////////////
+//  CellWordIndex.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.gridlocate
+
+import math._
+
+import opennlp.textgrounder.{util => tgutil}
+import tgutil.printutil.errprint
+
+import opennlp.textgrounder.worddist._
+import WordDist.memoizer._
+
+/**
+ * Inverted index from words to the cells whose word distributions contain
+ * them, for computing the partial KL-divergence of a document against all
+ * non-empty cells at once (the 'inverted-index' value of
+ * --kl-divergence-engine).
+ *
+ * `FastDiscountedUnigramWordDist.fast_kl_divergence` probes the cell's hash
+ * table once per document word, for every cell.  But for a word not in a
+ * cell, the cell's probability is just the word's overall probability times
+ * the cell's `unseen_mass / overall_unseen_mass`, under both interpolation
+ * and back-off.  So the contribution of all unseen words to a cell's
+ * divergence is
+ *
+ *   sum over w of p(w) (log p(w) - log owprob(w)) - log qfact_unseen * sum p(w)
+ *
+ * where the two sums only depend on the document.  We compute that once for
+ * every cell, then walk the postings of each document word and replace the
+ * unseen-word term with the real one for the cells that contain the word.
+ * The result is the same as calling `fast_kl_divergence` with
+ * `partial = true` on each cell, up to floating-point rounding.
+ *
+ * The index is a snapshot of the cells' distributions, so it must be built
+ * after `CellGrid.finish()` and the cells not changed afterwards.
+ */
+class CellWordIndex[TCoord](val cell_grid: CellGrid[TCoord]) {
+  /** The indexed cells; postings refer to cells by position here. */
+  val cells = cell_grid.iter_nonempty_cells(nonempty_word_dist = true).toIndexedSeq
+  val num_cells = cells.length
+
+  protected val cell_positions = cells.zipWithIndex.toMap
+
+  /** Position of `cell` in `cells`, or -1 if it isn't indexed. */
+  def position_of(cell: GCell[TCoord]) = cell_positions.getOrElse(cell, -1)
+
+  protected val dists = cells.map { cell =>
+    cell.combined_dist.word_dist match {
+      case x: DiscountedUnigramWordDist => x
+      case _ => throw new IllegalArgumentException("The inverted-index KL-divergence engine needs a discounted unigram word distribution (e.g. pseudo-good-turing)")
+    }
+  }
+
+  /* Per-cell factors of the smoothed cell distributions, as computed in
+     `fast_kl_divergence`. */
+  protected val qfact =
+    dists.map(d => (1.0 - d.unseen_mass) / d.model.num_tokens).toArray
+  protected val qfact_unseen =
+    dists.map(d => d.unseen_mass / d.overall_unseen_mass).toArray
+  protected val log_qfact_unseen = qfact_unseen.map(log(_))
+
+  /* Cells for which the closed form doesn't apply (a non-finite factor),
+     scored the slow way instead.  Shouldn't happen with sane smoothing. */
+  protected val pointwise_cells =
+    (0 until num_cells).filter(c =>
+      !(qfact_unseen(c) >= 0.0 && !qfact_unseen(c).isInfinite &&
+        !qfact(c).isNaN && !qfact(c).isInfinite)).toArray
+
+  /* The postings of word W are the entries `word_starts(W)` through
+     `word_starts(W + 1) - 1` of `posting_cells` (the cell) and
+     `posting_counts` (the word's count in that cell). */
+  protected var word_starts: Array[Int] = _
+  protected var posting_cells: Array[Int] = _
+  protected var posting_counts: Array[Double] = _
+
+  {
+    var max_word = 0
+    for (dist <- dists; word <- dist.model.iter_keys)
+      max_word = max_word max word
+    word_starts = new Array[Int](max_word + 2)
+    for (dist <- dists; (word, count) <- dist.model.iter_items if count != 0.0)
+      word_starts(word + 1) += 1
+    for (w <- 1 until word_starts.length)
+      word_starts(w) += word_starts(w - 1)
+
+    val num_postings = word_starts(word_starts.length - 1)
+    posting_cells = new Array[Int](num_postings)
+    posting_counts = new Array[Double](num_postings)
+    val next = word_starts.clone
+    for (c <- 0 until num_cells;
+         (word, count) <- dists(c).model.iter_items if count != 0.0) {
+      val pos = next(word)
+      posting_cells(pos) = c
+      posting_counts(pos) = count
+      next(word) += 1
+    }
+    errprint("Built inverted word index over %s cells, %s postings",
+      num_cells, num_postings)
+  }
+
+  /**
+   * Partial KL-divergence of the document distribution `self` against each
+   * indexed cell, in the order of `cells`.
+   *
+   * @param cache Cache created by `self.get_kl_divergence_cache()`, or null.
+   */
+  def partial_kl_divergences(self: DiscountedUnigramWordDist,
+      cache: KLDivergenceCache): Array[Double] = {
+    val the_cache =
+      if (cache == null)
+        FastDiscountedUnigramWordDist.get_kl_divergence_cache(self)
+      else
+        cache.asInstanceOf[DiscountedUnigramKLDivergenceCache]
+    assert(the_cache.worddist == self)
+    val pkeys = the_cache.self_keys
+    val psize = pkeys.length
+    val interpolate = self.dufactory.interpolate
+    assert(the_cache.interpolate == interpolate)
+    // p(w), log p(w), p(w) log p(w) and owprob(w), from the cache.
+    val ps = the_cache.self_probs
+    val plogps = the_cache.self_plogp
+    val powprobs = the_cache.self_owprobs
+
+    // 1. Document-only parts: the unseen-word term of each word without
+    // the cell factor, and the two sums over words with non-zero owprob.
+    val unseen_terms = new Array[Double](psize)
+    var unseen_sum = 0.0
+    var unseen_mass = 0.0
+    var i = 0
+    while (i < psize) {
+      val owprob = powprobs(i)
+      if (owprob > 0.0) {
+        unseen_terms(i) = plogps(i) - ps(i) * log(owprob)
+        unseen_sum += unseen_terms(i)
+        unseen_mass += ps(i)
+      }
+      i += 1
+    }
+
+    // 2. Every cell as if it contained none of the document's words.
+    val kldivs = new Array[Double](num_cells)
+    var c = 0
+    while (c < num_cells) {
+      if (qfact_unseen(c) > 0.0)
+        kldivs(c) = unseen_sum - unseen_mass * log_qfact_unseen(c)
+      c += 1
+    }
+
+    // 3. Correct the cells that do contain them.
+    i = 0
+    while (i < psize) {
+      val word = pkeys(i)
+      if (word < word_starts.length - 1) {
+        val owprob = powprobs(i)
+        val p = ps(i)
+        val plogp = plogps(i)
+        val unseen_term = unseen_terms(i)
+        var j = word_starts(word)
+        val end = word_starts(word + 1)
+        while (j < end) {
+          val cell = posting_cells(j)
+          val qf_unseen = qfact_unseen(cell)
+          if (owprob > 0.0 && qf_unseen > 0.0)
+            kldivs(cell) -= unseen_term - p * log_qfact_unseen(cell)
+          val q =
+            if (interpolate) posting_counts(j) * qfact(cell) + owprob * qf_unseen
+            else posting_counts(j) * qfact(cell)
+          if (q > 0.0)
+            kldivs(cell) += plogp - p * log(q)
+          j += 1
+        }
+      }
+      i += 1
+    }
+
+    for (cell <- pointwise_cells)
+      kldivs(cell) = FastDiscountedUnigramWordDist.fast_kl_divergence(
+        self, the_cache, dists(cell), interpolate = interpolate,
+        partial = true)
+
+    kldivs
+  }
+}
@@ -390,17 +390,90 @@ abstract class GDocTable[TCoord : Serializer](
    * @param schema Schema for textdb, indicating names of fields, etc.
    * @param record_in_table Whether to record the document in the document
    *  table.
+   * @param predecode If true, split the lines into fields and decode the
+   *  word counts of each batch of lines in parallel, on a separate thread
+   *  that reads ahead (see `WordDistConstructor.predecode_counts`).  The
+   *  documents themselves are still created in order on the calling thread,
+   *  since that updates the document table, the word memoizer and global
+   *  statistics; the results are the same either way.
    */
   def iterate_document_statuses(filehand: FileHandler, file: String,
-      schema: Schema, record_in_table: Boolean) = {
-    val lines = filehand.openr(file).zipWithIndex.map {
+      schema: Schema, record_in_table: Boolean,
+      predecode: Boolean = false): Iterator[DocumentStatus[GDoc[TCoord]]] = {
+    val file_lines = filehand.openr(file)
+    val lines = file_lines.zipWithIndex.map {
       case (line, idx) => (filehand, file, line, idx + 1)
     }
-    lines.map { case (filehand, file, line, lineno) =>
-      line_to_document(filehand, file, line, lineno, schema,
-        record_in_table) }
+    val counts_index = schema.fieldnames.indexOf("counts")
+    if (!predecode || counts_index < 0)
+      lines.map { case (filehand, file, line, lineno) =>
+        line_to_document(filehand, file, line, lineno, schema,
+          record_in_table) }
+    else {
+      val constructor = word_dist_factory.constructor
+      val num_fields = schema.fieldnames.length
+      // Decoding errors are ignored here; the counts are then decoded
+      // again when the document is created, which reports the error.
+      def predecode_line(line: String) = {
+        val fieldvals = line.split("\t", -1).toSeq
+        val decoded =
+          if (fieldvals.length != num_fields) null
+          else try {
+            constructor.predecode_counts(fieldvals(counts_index))
+          } catch {
+            case e: Exception => null
+          }
+        (fieldvals, decoded)
+      }
+      val batches =
+        lines.grouped(predecode_batch_size).map(batch =>
+          batch.par.map { case (filehand, file, line, lineno) =>
+            (filehand, file, line, lineno, predecode_line(line))
+          }.seq)
+      // The reading thread closes the file once it stops, which is also
+      // what happens if the prefetcher is closed before the file runs out.
+      val prefetcher =
+        new PrefetchIterator(batches, 4, () => file_lines.close())
+      open_prefetchers.synchronized { open_prefetchers += prefetcher }
+      prefetcher.flatMap(batch => batch).map {
+        case (filehand, file, line, lineno, (fieldvals, decoded)) => {
+          val maybe_fieldvals =
+            if (fieldvals.length == num_fields) Some(fieldvals)
+            else line_to_fields(line, lineno, schema)
+          if (decoded != null)
+            constructor.use_predecoded_counts(fieldvals(counts_index), decoded)
+          fields_to_document(filehand, file, maybe_fieldvals, lineno, schema,
+            record_in_table)
+        }
+      } ++ new SideEffectIterator(close_prefetcher(prefetcher))
+    }
   }
 
+  /**
+   * Read-ahead iterators started by `iterate_document_statuses` that haven't
+   * been read to the end yet.
+   */
+  private val open_prefetchers = mutable.Set[PrefetchIterator[_]]()
+
+  private def close_prefetcher(prefetcher: PrefetchIterator[_]) {
+    prefetcher.close()
+    open_prefetchers.synchronized { open_prefetchers -= prefetcher }
+  }
+
+  /**
+   * Stop reading ahead in, and close the files of, any document iterators
+   * from `iterate_document_statuses` that weren't read to the end, e.g.
+   * because a document limit was reached or reading failed.
+   */
+  def close_document_readers() {
+    val prefetchers =
+      open_prefetchers.synchronized { open_prefetchers.toList }
+    prefetchers.foreach(close_prefetcher)
+  }
+
+  /** Number of lines decoded at once by `iterate_document_statuses`. */
+  protected val predecode_batch_size = 256
+
   /**
    * Read the documents from a textdb corpus.
    *
@@ -414,16 +487,19 @@ abstract class GDocTable[TCoord : Serializer](
    *   distributions that depend on global (e.g. back-off) distribution
    *   statistics.  Normally true, but may be false during bootstrapping of
    *   those statistics.
+   * @param predecode Whether to decode the documents' word counts in
+   *   parallel ahead of time; see `iterate_document_statuses`.
    * @return Iterator over document statuses.
    */
   def read_document_statuses_from_textdb(filehand: FileHandler, dir: String,
       suffix: String, record_in_subtable: Boolean = false,
-      finish_globally: Boolean = true) = {
+      finish_globally: Boolean = true, predecode: Boolean = false) = {
     val (schema, files) =
       TextDBProcessor.get_textdb_files(filehand, dir, suffix)
     val docstats =
       (for (file <- files) yield {
-        iterate_document_statuses(filehand, file, schema, record_in_subtable)
+        iterate_document_statuses(filehand, file, schema, record_in_subtable,
+          predecode)
       }).flatten
     if (!finish_globally)
       docstats
@@ -439,9 +515,9 @@ abstract class GDocTable[TCoord : Serializer](
 
   def read_documents_from_textdb(filehand: FileHandler, dir: String,
       suffix: String, record_in_subtable: Boolean = false,
-      finish_globally: Boolean = true) = {
+      finish_globally: Boolean = true, predecode: Boolean = false) = {
     val statuses = read_document_statuses_from_textdb(filehand, dir, suffix,
-      record_in_subtable, finish_globally)
+      record_in_subtable, finish_globally, predecode)
     DocumentCounterTracker.process_statuses(statuses, driver)
   }
 
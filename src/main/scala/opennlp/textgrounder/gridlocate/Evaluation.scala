@@ -552,58 +552,125 @@ abstract class CorpusEvaluator(
     stat
   }
 
+  /**
+   * Called on each batch of documents that are about to be evaluated, in
+   * order, before `evaluate_document` is called on each of them.  This can
+   * do the expensive part of the evaluation for the whole batch at once
+   * (e.g. in parallel), as long as it doesn't depend on the order of the
+   * documents; recording and printing results should be left to
+   * `evaluate_document`.  By default, does nothing.
+   */
+  def prepare_documents(docs: Seq[TEvalDoc]) { }
+
   /**
    * Evaluate the documents, or some subset of them.  This may skip
    * some of the documents (e.g. based on the parameter
    * `--every-nth-test-doc`) and may stop early (e.g. based on
    * `--num-test-docs`).
    *
+   * Documents are evaluated in batches of `--eval-batch-size`: see
+   * `prepare_documents`.  Results are produced in the same order, and are
+   * the same, as when evaluating one document at a time.
+   *
+   * @param prefetch If true, read the documents from `docstats` on a
+   *   separate thread, ahead of their evaluation.  Only safe if nothing
+   *   else reads from `docstats`.
    * @return Iterator over evaluation results.
    */
-  def evaluate_documents(docstats: Iterator[DocumentStatus[TEvalDoc]]) = {
-    val docstatiter = new InterruptibleIterator(docstats)
+  def evaluate_documents(docstats: Iterator[DocumentStatus[TEvalDoc]],
+      prefetch: Boolean = false) = {
+    val batch_size =
+      if (driver.params.no_parallel) 1
+      else driver.params.eval_batch_size max 1
+    val prefetcher =
+      if (prefetch && batch_size > 1)
+        new PrefetchIterator(docstats, 2 * batch_size)
+      else null
+    val docstatiter =
+      new InterruptibleIterator(if (prefetcher != null) prefetcher else docstats)
     var stopped = false
-    val results =
-      (for (stat <- docstatiter) yield {
-        // errprint("Processing document: %s", stat)
-        val num_processed = task.num_processed
+
+    def reached_num_test_docs(num_processed: Int) =
+      driver.params.num_test_docs > 0 &&
+        num_processed >= driver.params.num_test_docs
+
+    /* Evaluate a batch of document statuses.  First decide in order which
+       documents to skip, since that depends on counters; then prepare the
+       documents to be evaluated all at once; then evaluate them in order.
+       Statuses past the point where we stop are dropped, just as if they
+       had never been read. */
+    def evaluate_batch(batch: Seq[DocumentStatus[TEvalDoc]]) = {
+      // Entries are (stat, doctag, action, reason), where `action` is
+      // "none" (pass the status through), "skip", "skip-counted" (skip, but
+      // count as processed) or "evaluate".
+      val plans = mutable.Buffer[(DocumentStatus[TEvalDoc], String, String, String)]()
+      var num_processed = task.num_processed
+      val batchiter = batch.iterator
+      while (batchiter.hasNext && !reached_num_test_docs(num_processed)) {
+        val stat = batchiter.next
         val doctag = "#%d" format (1 + num_processed)
-        val (mayberes, status, reason, docdesc) =
-          (stat.maybedoc, stat.status) match {
-            case (Some(doc), "processed") => {
-              val (skip, reason) = would_skip_document(doc, doctag)
+        plans += ((stat.maybedoc, stat.status) match {
+          case (Some(doc), "processed") => {
+            val (skip, reason) = would_skip_document(doc, doctag)
+            if (skip)
+              (stat, doctag, "skip", reason)
+            else {
+              num_processed += 1
+              val (skip, reason) = would_skip_by_parameters()
               if (skip)
+                (stat, doctag, "skip-counted", reason)
+              else
+                (stat, doctag, "evaluate", "")
+            }
+          }
+          case _ => (stat, doctag, "none", "")
+        })
+      }
+
+      if (batch_size > 1)
+        prepare_documents(
+          for ((stat, _, action, _) <- plans if action == "evaluate")
+            yield stat.maybedoc.get)
+
+      val results = mutable.Buffer[DocumentStatus[TEvalRes]]()
+      for ((stat, doctag, action, reason) <- plans if !stopped) {
+        // errprint("Processing document: %s", stat)
+        val (mayberes, status, why, docdesc) = action match {
+          case "none" => (None, stat.status, stat.reason, stat.docdesc)
+          case "skip" => (None, "skipped", reason, doctag)
+          case _ => {
+            val result =
+              if (action == "skip-counted")
                 (None, "skipped", reason, doctag)
               else {
-                val result = {
-                  val (skip, reason) = would_skip_by_parameters()
-                  if (skip)
-                    (None, "skipped", reason, doctag)
-                  else {
-                    // Don't put side-effecting code inside of an assert!
-                    val res1 = evaluate_document(doc, doctag)
-                    assert(res1 != null)
-                    (Some(res1), "processed", "", "")
-                  }
-                }
-
-                    
-                if (task.item_processed // If max time reached, stop
-                    ||
-                    // If max # of docs reached, stop
-                    (driver.params.num_test_docs > 0 &&
-                     task.num_processed >= driver.params.num_test_docs)) {
-                  stopped = true
-                  docstatiter.stop()
-                }
-                result
+                // Don't put side-effecting code inside of an assert!
+                val res1 = evaluate_document(stat.maybedoc.get, doctag)
+                assert(res1 != null)
+                (Some(res1), "processed", "", "")
               }
+
+            if (task.item_processed // If max time reached, stop
+                ||
+                // If max # of docs reached, stop
+                reached_num_test_docs(task.num_processed)) {
+              stopped = true
+              docstatiter.stop()
             }
-            case _ => (None, stat.status, stat.reason, stat.docdesc)
+            result
+          }
         }
-        DocumentStatus(stat.filehand, stat.file, mayberes, status, reason,
-          docdesc)
-      }).map(handle_status) ++ new SideEffectIterator( {
+        results += DocumentStatus[TEvalRes](stat.filehand, stat.file,
+          mayberes, status, why, docdesc)
+      }
+      results
+    }
+
+    val results =
+      (for (batch <- docstatiter.grouped(batch_size);
+            stat <- evaluate_batch(batch)) yield stat).
+      map(handle_status) ++ new SideEffectIterator( {
+        if (prefetcher != null)
+          prefetcher.close()
         if (stopped) {
           errprint("")
           errprint("Stopping because limit of %s documents reached",
@@ -669,6 +736,8 @@ abstract class CellGridEvaluator[TCoord](
 
   def output_results(isfinal: Boolean = false) {
     evalstats.output_results(all_results = isfinal)
+    if (isfinal)
+      strategy.output_search_stats()
  }
 
   override def would_skip_document(document: GDoc[TCoord], doctag: String) = {
@@ -720,6 +789,71 @@ abstract class CellGridEvaluator[TCoord](
     }
   }
 
+  /**
+   * Same as `return_ranked_cells`, but only return the `k` best cells, which
+   * lets the ranker avoid sorting all of them.  The rank of the true cell is
+   * still its rank among all cells.
+   */
+  def return_top_ranked_cells(document: GDoc[TCoord],
+      true_cell: GCell[TCoord], k: Int) = {
+    if (driver.params.oracle_results)
+      (Seq((true_cell, 0.0)), 1)
+    else
+      ranker.evaluate_top(document, Iterable[GCell[TCoord]](), k, true_cell)
+  }
+
+  /**
+   * Whether to print out individual evaluation results for each document.
+   */
+  def want_indiv_results =
+    !driver.params.oracle_results && !driver.params.no_individual_results
+
+  /**
+   * Number of top-ranked cells needed to evaluate a document, or -1 if the
+   * full ranking is needed.
+   */
+  def num_cells_needed = -1
+
+  /**
+   * Return `(pred_cells, true_rank)` as for `return_ranked_cells`, but only
+   * with the top `num_cells` cells (all of them if -1).  Uses the ranking
+   * made by `prepare_documents` if there is one.
+   */
+  def get_ranked_cells(document: GDoc[TCoord], true_cell: GCell[TCoord],
+      num_cells: Int): (Iterable[(GCell[TCoord], Double)], Int) = {
+    prepared_rankings.get(document) match {
+      case Some((cell, cells, rank)) if (cell eq true_cell) &&
+          num_cells == num_cells_needed => (cells, rank)
+      case _ =>
+        if (num_cells < 0) return_ranked_cells(document, true_cell)
+        else return_top_ranked_cells(document, true_cell, num_cells)
+    }
+  }
+
+  /* Rankings of the current batch of documents made by `prepare_documents`,
+     along with the true cell of each document. */
+  protected var prepared_rankings = Map[GDoc[TCoord],
+    (GCell[TCoord], Iterable[(GCell[TCoord], Double)], Int)]()
+
+  /**
+   * Rank the cells for all documents in the batch in parallel, if the
+   * ranker (including any reranker) says that's safe.  The cell grid is
+   * finished by now and isn't changed by ranking.
+   */
+  override def prepare_documents(docs: Seq[GDoc[TCoord]]) {
+    prepared_rankings = Map()
+    if (!driver.params.oracle_results && ranker.thread_safe &&
+        docs.size > 1) {
+      val num_cells = num_cells_needed
+      prepared_rankings = docs.par.map { document =>
+        val true_cell =
+          strategy.cell_grid.find_best_cell_for_document(document, true)
+        val (cells, rank) = get_ranked_cells(document, true_cell, num_cells)
+        (document, (true_cell, cells, rank))
+      }.seq.toMap
+    }
+  }
+
   /**
    * Actual implementation of code to evaluate a document.  Optionally
    * Return an object describing the results of the evaluation, and
@@ -753,15 +887,18 @@ abstract class CellGridEvaluator[TCoord](
     val (skip, reason) = would_skip_document(document, doctag)
     assert(!skip)
     assert(document.dist.finished)
-    val true_cell =
-      strategy.cell_grid.find_best_cell_for_document(document, true)
+    // Use the same true cell as `prepare_documents`, since cells not in the
+    // grid are created anew each time.
+    val true_cell = prepared_rankings.get(document) match {
+      case Some((cell, _, _)) => cell
+      case None =>
+        strategy.cell_grid.find_best_cell_for_document(document, true)
+    }
     if (debug("lots") || debug("commontop")) {
       val naitr = true_cell.combined_dist.num_docs_for_word_dist
       errprint("Evaluating document %s with %s word-dist documents in true cell",
         document, naitr)
     }
-    val want_indiv_results =
-      !driver.params.oracle_results && !driver.params.no_individual_results
     val result = imp_evaluate_document(document, doctag, true_cell,
       want_indiv_results)
     evalstats.record_result(result)
@@ -849,9 +986,23 @@ class RankedCellGridEvaluator[TCoord](
       driver.increment_local_counter("instances.num_where_avg_dist_of_neighbors_beats_pred_truedist.%s" format num_nearest_neighbors)
   }
 
+  /**
+   * Only rank as many cells as we'll look at, unless we print them all.
+   */
+  override def num_cells_needed = {
+    if (debug("all-scores") ||
+        want_indiv_results && driver.params.num_top_cells_to_output < 0)
+      -1
+    else if (want_indiv_results)
+      1 max driver.params.num_top_cells_to_output max
+        driver.params.num_nearest_neighbors
+    else 1
+  }
+
   def imp_evaluate_document(document: GDoc[TCoord], doctag: String,
       true_cell: GCell[TCoord], want_indiv_results: Boolean): TEvalRes = {
-    val (pred_cells, true_rank) = return_ranked_cells(document, true_cell)
+    val (pred_cells, true_rank) =
+      get_ranked_cells(document, true_cell, num_cells_needed)
     val result = new TEvalRes(document, pred_cells.head._1, true_rank)
 
     if (debug("all-scores")) {
@@ -951,8 +1102,11 @@ class MeanShiftCellGridEvaluator[TCoord](
 ) extends CoordCellGridEvaluator[TCoord](
   strategy, stratname, driver, evalstats
 ) {
+  override def num_cells_needed = k_best
+
   def find_best_point(document: GDoc[TCoord], true_cell: GCell[TCoord]) = {
-    val (pred_cells, true_rank) = return_ranked_cells(document, true_cell)
+    val (pred_cells, true_rank) =
+      get_ranked_cells(document, true_cell, num_cells_needed)
     val top_k = pred_cells.take(k_best).map(_._1.get_center_coord).toSeq
     val shifted_values = mean_shift_obj.mean_shift(top_k)
     mean_shift_obj.vec_mean(shifted_values)
@@ -128,6 +128,33 @@ abstract class GridLocateDocumentStrategy[TCoord](
   def return_ranked_cells(word_dist: WordDist,
       include: Iterable[GCell[TCoord]]):
     Iterable[(GCell[TCoord], Double)]
+
+  /**
+   * Like `return_ranked_cells` but only return the `k` best cells, along
+   * with the 1-based rank of `true_cell` among all the cells (1000000000 if
+   * it isn't ranked at all).  By default this does the full ranking;
+   * strategies that can pick out the best cells more cheaply than sorting
+   * all of them should override it.
+   */
+  def return_top_ranked_cells(word_dist: WordDist, k: Int,
+      include: Iterable[GCell[TCoord]], true_cell: GCell[TCoord]):
+      (Seq[(GCell[TCoord], Double)], Int) = {
+    val cells = return_ranked_cells(word_dist, include)
+    (cells.take(k).toSeq, Ranker.rank_of(cells, true_cell))
+  }
+
+  /**
+   * Output any statistics the strategy has gathered about its own
+   * operation, at the end of evaluation.  By default, does nothing.
+   */
+  def output_search_stats() { }
+
+  /**
+   * Whether cells may be ranked for several documents at once from
+   * different threads.  Strategies that keep no per-document state (or
+   * guard what they keep) override this to return true.
+   */
+  def thread_safe_ranking = false
 }
 
 /**
@@ -144,6 +171,8 @@ class RandomGridLocateDocumentStrategy[TCoord](
     val shuffled = (new Random()).shuffle(cells)
     (for (cell <- shuffled) yield (cell, 0.0))
   }
+
+  override def thread_safe_ranking = true
 }
 
 /**
@@ -166,6 +195,8 @@ class MostPopularCellGridLocateDocumentStrategy[TCoord] (
            cell.combined_dist.num_docs_for_links).toDouble)).
     toSeq sortWith (_._2 > _._2)
   }
+
+  override def thread_safe_ranking = true
 }
 
 /**
@@ -182,6 +213,35 @@ abstract class PointwiseScoreStrategy[TCoord](
    */
   def score_cell(word_dist: WordDist, cell: GCell[TCoord]): Double
 
+  /**
+   * Return a function that scores the given document distribution against
+   * a cell.  Anything that only depends on the document can be computed
+   * once here rather than in every call to `score_cell`.  The function may
+   * be called from several threads at once, as may this method for
+   * different documents.
+   */
+  def cell_scorer(word_dist: WordDist): GCell[TCoord] => Double =
+    score_cell(word_dist, _)
+
+  /* Scoring only reads the finished cell grid, and the search statistics
+     are recorded under a lock. */
+  override def thread_safe_ranking = true
+
+  /** Coarse levels of the cell grid to search through, or null. */
+  lazy val cell_hierarchy = cell_grid.cell_hierarchy
+
+  /**
+   * Whether to rank the cells by coarse-to-fine search rather than by
+   * scoring all of them.
+   */
+  def use_coarse_to_fine = cell_hierarchy != null
+
+  protected lazy val search_stats =
+    if (use_coarse_to_fine &&
+        cell_grid.table.driver.params.compare_exhaustive_search)
+      new CoarseToFineSearchStats
+    else null
+
   /**
    * Compare a word distribution (for a document, typically) against all
    * cells. Return a sequence of tuples (cell, score) where 'cell'
@@ -196,6 +256,7 @@ abstract class PointwiseScoreStrategy[TCoord](
      GeoText.
      */
       val buffer = mutable.Buffer[(GCell[TCoord], Double)]()
+      val scorer = cell_scorer(word_dist)
 
       for (cell <- cell_grid.iter_nonempty_cells_including(
           include, nonempty_word_dist = true)) {
@@ -205,7 +266,7 @@ abstract class PointwiseScoreStrategy[TCoord](
             cell.combined_dist.num_docs_for_word_dist)
         }
 
-        val score = score_cell(word_dist, cell)
+        val score = scorer(cell)
         buffer += ((cell, score))
       }
       buffer
@@ -220,14 +281,127 @@ abstract class PointwiseScoreStrategy[TCoord](
     include: Iterable[GCell[TCoord]]) = {
     val cells = cell_grid.iter_nonempty_cells_including(
       include, nonempty_word_dist = true)
-    cells.par.map(c => (c, score_cell(word_dist, c))).toBuffer
+    val scorer = cell_scorer(word_dist)
+    cells.par.map(c => (c, scorer(c))).toBuffer
   }
 
-  def return_ranked_cells(word_dist: WordDist, include: Iterable[GCell[TCoord]]) = {
+  /**
+   * Score a word distribution against each of the given cells, returning
+   * the scores in the same order as the cells.
+   */
+  def score_cells(word_dist: WordDist, cells: IndexedSeq[GCell[TCoord]]):
+      Array[Double] =
+    score_cells_with(cell_scorer(word_dist), cells)
+
+  /**
+   * Score each of the given cells with `scorer`, in parallel unless
+   * --no-parallel was given.
+   */
+  private def score_cells_with(scorer: GCell[TCoord] => Double,
+      cells: IndexedSeq[GCell[TCoord]]): Array[Double] = {
+    // FIXME, eliminate this global reference
+    if (!GridLocateDriver.Params.no_parallel)
+      cells.par.map(scorer).toArray
+    else
+      cells.map(scorer).toArray
+  }
+
+  /**
+   * Coarse-to-fine search through `cell_hierarchy`: score the cells of the
+   * coarsest level, keep the --beam-width best, score their children, and
+   * so on down to the cells of the grid itself.  Return those cells, after
+   * the cells in `include`, along with their scores.  Cells under coarse
+   * cells that fell out of the beam aren't scored (or returned) at all.
+   */
+  def score_cells_coarse_to_fine(word_dist: WordDist,
+      include: Iterable[GCell[TCoord]]) = {
+    val scorer = cell_scorer(word_dist)
+    def score(cells: IndexedSeq[GCell[TCoord]]) =
+      score_cells_with(scorer, cells)
+    val beam_width = cell_grid.table.driver.params.beam_width
+    var cells = cell_hierarchy.top_cells
+    var scores = score(cells)
+    for (level <- 1 to cell_hierarchy.num_levels) {
+      val beam = top_k_indices(scores, beam_width)
+      cells = beam.toIndexedSeq.flatMap(i => cell_hierarchy.children(cells(i)))
+      scores = score(cells)
+    }
+    val extra = include.filterNot(c => cells.exists(_ eq c)).toIndexedSeq
+    if (extra.isEmpty)
+      (cells, scores)
+    else
+      (extra ++ cells, score(extra) ++ scores)
+  }
+
+  /**
+   * The `k` best of the given cells and their scores, along with the rank
+   * of the true cell among them (1000000000 if it's not there).
+   */
+  protected def top_ranked_cells(cells: IndexedSeq[GCell[TCoord]],
+      scores: Array[Double], k: Int, true_cell: GCell[TCoord]) = {
+    val top = top_k_indices(scores, k).toSeq.map(i => (cells(i), scores(i)))
+    val true_index = cells.indexWhere(_ eq true_cell)
+    val true_rank =
+      if (true_index < 0) 1000000000
+      else rank_in_decreasing_order(scores, true_index)
+    (top, true_rank)
+  }
+
+  /**
+   * Score all cells into a primitive array and select the `k` best with a
+   * bounded heap; the rank of the true cell is found by counting the cells
+   * that beat it.  The result is the same as taking the first `k` entries
+   * of `return_ranked_cells`, ties included.  With coarse-to-fine search,
+   * only the cells reached by the search are ranked, and if
+   * --compare-exhaustive-search is given, all cells are also ranked for
+   * comparison.
+   */
+  override def return_top_ranked_cells(word_dist: WordDist, k: Int,
+      include: Iterable[GCell[TCoord]], true_cell: GCell[TCoord]) = {
+    if (debug("lots"))
+      super.return_top_ranked_cells(word_dist, k, include, true_cell)
+    else if (!use_coarse_to_fine) {
+      val cells = cell_grid.iter_nonempty_cells_including(
+        include, nonempty_word_dist = true).toIndexedSeq
+      top_ranked_cells(cells, score_cells(word_dist, cells), k, true_cell)
+    } else if (search_stats == null) {
+      val (cells, scores) = score_cells_coarse_to_fine(word_dist, include)
+      top_ranked_cells(cells, scores, k, true_cell)
+    } else {
+      val start = System.nanoTime
+      val (cells, scores) = score_cells_coarse_to_fine(word_dist, include)
+      val retval = top_ranked_cells(cells, scores, k max 1, true_cell)
+      val search_time = System.nanoTime - start
+      val start_exhaustive = System.nanoTime
+      val all_cells = cell_grid.iter_nonempty_cells_including(
+        include, nonempty_word_dist = true).toIndexedSeq
+      val (all_top, all_rank) = top_ranked_cells(all_cells,
+        score_cells(word_dist, all_cells), 1, true_cell)
+      val exhaustive_time = System.nanoTime - start_exhaustive
+      def top_cell(top: Seq[(GCell[TCoord], Double)]) =
+        if (top.isEmpty) null else top.head._1
+      search_stats.record(top_cell(retval._1),
+        if (true_cell == null) -1 else retval._2,
+        top_cell(all_top), if (true_cell == null) -1 else all_rank,
+        cells.length, all_cells.length, search_time, exhaustive_time)
+      (retval._1.take(k), retval._2)
+    }
+  }
+
+  override def output_search_stats() {
+    if (search_stats != null)
+      search_stats.output_results(cell_grid.table.driver.params.beam_width)
+  }
+
+  def return_ranked_cells(word_dist: WordDist,
+      include: Iterable[GCell[TCoord]]): Iterable[(GCell[TCoord], Double)] = {
     // FIXME, eliminate this global reference
     val parallel = !GridLocateDriver.Params.no_parallel
     val cell_buf = {
-      if (parallel)
+      if (use_coarse_to_fine) {
+        val (cells, scores) = score_cells_coarse_to_fine(word_dist, include)
+        (cells zip scores).toBuffer
+      } else if (parallel)
         return_ranked_cells_parallel(word_dist, include)
       else
         return_ranked_cells_serially(word_dist, include)
@@ -273,15 +447,38 @@ class KLDivergenceStrategy[TCoord](
   symmetric: Boolean = false
 ) extends PointwiseScoreStrategy[TCoord](cell_grid) {
 
-  var self_kl_cache: KLDivergenceCache = null
   val slow = false
 
-  def call_kl_divergence(self: WordDist, other: WordDist) =
+  /** Inverted word index over the cells, built on first use. */
+  lazy val word_index = new CellWordIndex[TCoord](cell_grid)
+
+  /**
+   * Whether to score all cells at once through `word_index` rather than
+   * one by one; only partial, one-way KL-divergence over discounted
+   * distributions can be done that way.  Not used with coarse-to-fine
+   * search, which only scores a few of the cells.
+   */
+  def use_word_index(word_dist: WordDist) =
+    partial && !symmetric && !use_coarse_to_fine &&
+    cell_grid.table.driver.params.kl_divergence_engine == "inverted-index" &&
+    word_dist.isInstanceOf[DiscountedUnigramWordDist]
+
+  def call_kl_divergence(self: WordDist, self_kl_cache: KLDivergenceCache,
+      other: WordDist) =
     self.kl_divergence(self_kl_cache, other, partial = partial)
 
-  def score_cell(word_dist: WordDist, cell: GCell[TCoord]) = {
+  def score_cell(word_dist: WordDist, cell: GCell[TCoord]): Double =
+    score_cell(word_dist, null, cell)
+
+  /**
+   * Score a cell, given the KL-divergence cache of `word_dist` (or null, in
+   * which case it's computed anew).  The cache is passed in rather than
+   * stored in the strategy so that several documents can be scored at once.
+   */
+  def score_cell(word_dist: WordDist, self_kl_cache: KLDivergenceCache,
+      cell: GCell[TCoord]): Double = {
     val cell_word_dist = cell.combined_dist.word_dist
-    var kldiv = call_kl_divergence(word_dist, cell_word_dist)
+    var kldiv = call_kl_divergence(word_dist, self_kl_cache, cell_word_dist)
     if (symmetric) {
       val kldiv2 = cell_word_dist.kl_divergence(null, word_dist,
         partial = partial)
@@ -291,13 +488,55 @@ class KLDivergenceStrategy[TCoord](
     -kldiv
   }
 
+  override def cell_scorer(word_dist: WordDist) = {
+    val self_kl_cache = word_dist.get_kl_divergence_cache()
+    (cell: GCell[TCoord]) => score_cell(word_dist, self_kl_cache, cell)
+  }
+
   override def return_ranked_cells(word_dist: WordDist,
-      include: Iterable[GCell[TCoord]]) = {
-    // This will be used by `score_cell` above.
-    self_kl_cache = word_dist.get_kl_divergence_cache()
+      include: Iterable[GCell[TCoord]]): Iterable[(GCell[TCoord], Double)] = {
+    val cells =
+      if (use_word_index(word_dist))
+        return_ranked_cells_indexed(word_dist, include)
+      else
+        super.return_ranked_cells(word_dist, include)
+
+    output_kldiv_debug(word_dist, cells)
+    cells
+  }
+
+  override def return_top_ranked_cells(word_dist: WordDist, k: Int,
+      include: Iterable[GCell[TCoord]], true_cell: GCell[TCoord]) = {
+    val retval = super.return_top_ranked_cells(word_dist, k, include, true_cell)
+    output_kldiv_debug(word_dist, retval._1)
+    retval
+  }
 
-    val cells = super.return_ranked_cells(word_dist, include)
+  /**
+   * When scoring through `word_index`, score all the indexed cells at once
+   * and look each of `cells` up among them; cells that aren't indexed
+   * (e.g. from `include`) are scored individually.
+   */
+  override def score_cells(word_dist: WordDist,
+      cells: IndexedSeq[GCell[TCoord]]) = {
+    if (use_word_index(word_dist)) {
+      val self_kl_cache = word_dist.get_kl_divergence_cache()
+      val kldivs = word_index.partial_kl_divergences(
+        word_dist.asInstanceOf[DiscountedUnigramWordDist], self_kl_cache)
+      val scores = new Array[Double](cells.length)
+      for (i <- 0 until cells.length) {
+        val c = word_index.position_of(cells(i))
+        scores(i) =
+          if (c >= 0) -kldivs(c)
+          else score_cell(word_dist, self_kl_cache, cells(i))
+      }
+      scores
+    } else
+      super.score_cells(word_dist, cells)
+  }
 
+  protected def output_kldiv_debug(word_dist: WordDist,
+      cells: Iterable[(GCell[TCoord], Double)]) {
     if (debug("kldiv") && word_dist.isInstanceOf[FastSlowKLDivergence]) {
       val fast_slow_dist = word_dist.asInstanceOf[FastSlowKLDivergence]
       // Print out the words that contribute most to the KL divergence, for
@@ -322,8 +561,34 @@ class KLDivergenceStrategy[TCoord](
         errprint("")
       }
     }
+  }
 
-    cells
+  /**
+   * Same result as `return_ranked_cells_serially` followed by sorting, but
+   * computed in one pass over the document's words using `word_index`.
+   * Cells in `include` are scored individually, as they may not be in the
+   * index.  The scores stay in a primitive array and the cells are ranked
+   * lazily (see `indices_in_decreasing_order`), so callers that only look
+   * at the first few cells don't pay for sorting all of them.  The result
+   * is a `Stream`, so the ranking is done only once however many times
+   * it's traversed.
+   */
+  def return_ranked_cells_indexed(word_dist: WordDist,
+      include: Iterable[GCell[TCoord]]): Iterable[(GCell[TCoord], Double)] = {
+    val self_kl_cache = word_dist.get_kl_divergence_cache()
+    val kldivs = word_index.partial_kl_divergences(
+      word_dist.asInstanceOf[DiscountedUnigramWordDist], self_kl_cache)
+    val included = include.toIndexedSeq
+    val num_included = included.length
+    val scores = new Array[Double](num_included + word_index.num_cells)
+    for (i <- 0 until num_included)
+      scores(i) = score_cell(word_dist, self_kl_cache, included(i))
+    for (c <- 0 until word_index.num_cells)
+      scores(num_included + c) = -kldivs(c)
+    def cell(i: Int) =
+      if (i < num_included) included(i)
+      else word_index.cells(i - num_included)
+    indices_in_decreasing_order(scores).map(i => (cell(i), scores(i))).toStream
   }
 }
 
@@ -397,10 +662,15 @@ class AverageCellProbabilityStrategy[TCoord](
     create_cell_dist_factory(cell_grid.table.driver.params.lru_cache_size)
 
   def return_ranked_cells(word_dist: WordDist, include: Iterable[GCell[TCoord]]) = {
-    val celldist =
+    // The factory's LRU cache isn't thread-safe, and documents may be
+    // ranked in parallel.
+    val celldist = cdist_factory.synchronized {
       cdist_factory.get_cell_dist_for_word_dist(cell_grid, word_dist)
+    }
     celldist.get_ranked_cells(include)
   }
+
+  override def thread_safe_ranking = true
 }
 
 /////////////////////////////////////////////////////////////////////////////
@@ -550,6 +820,24 @@ considered (but if an error occurs upon parsing a file, it will be ignored).
 Each file is read in and then disambiguation is performed.  Not used during
 document geolocation when --eval-format=internal (the default).""")
 
+  var save_model =
+    ap.option[String]("save-model", metavar = "FILE",
+      help = """After training, write the finished cell grid to the given
+file: the cells and their word distributions, the overall word probabilities
+and the vocabulary.  A later run can then be given --load-model to skip
+reading the training documents entirely.  Currently only supported for the
+regular (non-K-d) grid with the discounted unigram word distributions.""")
+  var load_model =
+    ap.option[String]("load-model", metavar = "FILE",
+      help = """Instead of reading the training documents, load the cell grid
+from a file written by --save-model.  The file is memory-mapped, so it must
+be a local file.  The options that shape the grid and the word
+distributions (--degrees-per-cell or equivalent, --width-of-multi-cell,
+--word-dist, --interpolate, --tf-idf, --preserve-case-words,
+--minimum-word-count and the stopword and whitelist files) must be the same
+as when saving; otherwise loading fails.  Baseline strategies that need the
+training documents themselves (e.g. the toponym baselines) won't work.""")
+
   var num_nearest_neighbors =
     ap.option[Int]("num-nearest-neighbors", "knn", default = 4,
       help = """Number of nearest neighbors (k in kNN); default is %default.""")
@@ -591,6 +879,14 @@ don't skip any documents.""")
       default = 1,
       help = """Only process every Nth test doc.  Default 1, i.e.
 process all.""")
+  var eval_batch_size =
+    ap.option[Int]("eval-batch-size", metavar = "NUM",
+      default = 64,
+      help = """Number of test documents to rank at once.  The documents
+in a batch are ranked in parallel against the cell grid, while the next
+ones are read in on a separate thread; results are still recorded and
+output in the order of the documents.  1 means rank one document at a
+time.  Ignored if --no-parallel is given.  Default %default.""")
   //  def skip_every_n_test_docs =
   //    ap.option[Int]("skip-every-n-test-docs", "skip-n", default = 0,
   //      help = """Skip this many after each one processed.  Default 0.""")
@@ -767,10 +1063,55 @@ probability) when doing weighted Naive Bayes.  Default %default.""")
       help = """Number of entries in the LRU cache.  Default %default.
 Used only when --strategy=average-cell-probability.""")
 
+  //// Options used when doing KL-divergence geolocation
+  var kl_divergence_engine =
+    ap.option[String]("kl-divergence-engine", "kl-engine", metavar = "ENGINE",
+      default = "pointwise",
+      choices = Seq("pointwise", "inverted-index"),
+      help = """How to compute the KL-divergence of a test document against
+the cells.  If 'pointwise', compare the document against each cell in turn,
+looking up each document word in the cell's distribution.  If
+'inverted-index', build an index from words to the cells containing them
+once training is done, and score all cells in a single pass over the
+document's words; this is much faster with many cells.  Only affects
+--strategy=partial-kl-divergence with discounted (e.g. pseudo-good-turing)
+word distributions; the results are the same up to rounding.  Default
+'%default'.""")
+
+  //// Options used with coarse-to-fine search (see --coarse-grid-levels)
+  var beam_width =
+    ap.option[Int]("beam-width", metavar = "NUM",
+      default = 10,
+      help = """Number of cells at each coarse level of the cell grid whose
+children are searched in turn, when ranking cells by coarse-to-fine search.
+Larger values make the search slower but less likely to miss the best
+cells.  Default %default.""")
+  var compare_exhaustive_search =
+    ap.flag("compare-exhaustive-search",
+      help = """When ranking cells by coarse-to-fine search, also rank all
+cells for each document, and output at the end how often the two agree
+and how long each took.""")
+
   //// Miscellaneous options for controlling internal operation
   var no_parallel =
     ap.flag("no-parallel",
-      help = """If true, don't do ranking computations in parallel.""")
+      help = """If true, don't do ranking computations in parallel, and
+read the training documents on a single thread.""")
+  var training_threads =
+    ap.option[Int]("training-threads", metavar = "NUM",
+      default = 0,
+      help = """Number of threads on which to add the training documents
+to the cells of the cell grid, while their word counts are decoded in
+parallel ahead of time.  The resulting cell grid is the same as when
+reading the documents on a single thread.  1 means do everything on one
+thread; 0 means use one thread per available processor.  Ignored if
+--no-parallel is given.  Default %default.""")
+  var no_freeze_cell_dists =
+    ap.flag("no-freeze-cell-dists",
+      help = """If true, keep the word distributions of cells in hash
+tables once the cell grid is finished, rather than converting them to
+sorted arrays of words and counts.  This takes more than twice the memory,
+but looking up single words is faster.""")
   var test_kl =
     ap.flag("test-kl",
       help = """If true, run both fast and slow KL-divergence variations and
@@ -933,6 +1274,15 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
       param_error("Value for --jelinek-factor must be between 0.0 and 1.0, but is %g" format params.jelinek_factor)
     }
 
+    if (params.save_model != null && params.load_model != null)
+      param_error("Only one of --save-model and --load-model can be given")
+
+    if (params.beam_width <= 0)
+      param_error("Beam width must be positive")
+
+    if (params.training_threads < 0)
+      param_error("Number of training threads must be non-negative")
+
     // Need to have `document_file_suffix` set early on, but factory
     // shouldn't be created till setup_for_run() because factory may
     // depend on auxiliary parameters set during this stage (e.g. during
@@ -945,6 +1295,19 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
 
   protected def initialize_cell_grid(table: GDocTable[TCoord]): CellGrid[TCoord]
 
+  /**
+   * Write the finished cell grid to the given file (--save-model).
+   */
+  protected def save_cell_grid(filename: String)
+
+  /**
+   * Create a finished cell grid over the given table from a file written
+   * by `save_cell_grid` (--load-model), in place of reading the training
+   * documents.
+   */
+  protected def load_cell_grid(table: GDocTable[TCoord], filename: String):
+    CellGrid[TCoord]
+
   protected def word_dist_type = {
     if (params.word_dist == "unsmoothed-ngram") "ngram"
     else "unigram"
@@ -1021,11 +1384,14 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
    *   distributions that depend on global (e.g. back-off) distribution
    *   statistics.  Normally true, but may be false during bootstrapping of
    *   those statistics.
+   * @param predecode Whether to decode the documents' word counts in
+   *   parallel ahead of time (see `GDocTable.iterate_document_statuses`).
    * @return Iterator over documents.
    */
   def read_training_documents(operation: String = "reading",
       record_in_subtable: Boolean = false,
-      finish_globally: Boolean = true): Iterator[GDoc[TCoord]] = {
+      finish_globally: Boolean = true,
+      predecode: Boolean = false): Iterator[GDoc[TCoord]] = {
     val task =
       new ExperimentMeteredTask(this, "document", operation,
         maxtime = params.max_time_per_stage)
@@ -1033,7 +1399,7 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
       params.input_corpus.toIterator.flatMap(dir =>
         document_table.read_documents_from_textdb(get_file_handler,
           dir, "training-" + document_file_suffix, 
-          record_in_subtable, finish_globally)))
+          record_in_subtable, finish_globally, predecode)))
     val docs =
       for (doc <- dociter) yield {
         var should_stop = false
@@ -1072,8 +1438,18 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
    * @param suffix Suffix specifying the type of document file wanted
    *   (e.g. "counts" or "document-metadata"
    * @param cell_grid Cell grid into which the documents are added.
+   *
+   * With more than one training thread (--training-threads), the documents'
+   * word counts are decoded in parallel ahead of time, and the documents
+   * are added to the cells by a `StripedCellAccumulator`, which is drained
+   * at the end of each pass.  The documents themselves are still created
+   * and placed in the grid on this thread, in order.
    */
   protected def read_training_documents_into_cell_grid() {
+    val num_threads =
+      if (params.no_parallel) 1
+      else if (params.training_threads > 0) params.training_threads
+      else Runtime.getRuntime.availableProcessors
     for (pass <- 1 to cell_grid.num_training_passes) {
       cell_grid.begin_training_pass(pass)
       // FIXME: I don't think we should be recording in subtables the first
@@ -1090,11 +1466,28 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
       // finish_before_global() and note_dist_globally() (as well as
       // record_in_subtable) and such should be handled by separate mapping
       // stages onto the documents.
-      for (doc <- read_training_documents("reading pass " + pass,
+      val docs = read_training_documents("reading pass " + pass,
           record_in_subtable = true,
-          finish_globally = false)) {
-        assert(doc.dist != null)
-        cell_grid.add_document_to_cell(doc)
+          finish_globally = false,
+          predecode = num_threads > 1)
+      if (num_threads <= 1) {
+        for (doc <- docs) {
+          assert(doc.dist != null)
+          cell_grid.add_document_to_cell(doc)
+        }
+      } else {
+        val accumulator = new StripedCellAccumulator[TCoord](num_threads)
+        try {
+          for (doc <- docs) {
+            assert(doc.dist != null)
+            for (cell <- cell_grid.add_document_to_grid(doc))
+              accumulator.add(cell, doc)
+          }
+        } finally {
+          // Stopping at --num-training-docs leaves the last file unread.
+          document_table.close_document_readers()
+        }
+        accumulator.finish()
       }
     }
     document_table.finish_document_loading()
@@ -1107,22 +1500,28 @@ trait GridLocateDriver[TCoord] extends HadoopableArgParserExperimentDriver {
     word_dist_constructor = initialize_word_dist_constructor(word_dist_factory)
     word_dist_factory.set_word_dist_constructor(word_dist_constructor)
     document_table = initialize_document_table(word_dist_factory)
-    cell_grid = initialize_cell_grid(document_table)
-    // This accesses all the above items, either directly through the variables
-    // storing them, or (as for the stopwords and whitelist) through the pointer
-    // to this in document_table.
-    read_training_documents_into_cell_grid()
-    if (debug("stop-after-reading-dists")) {
-      errprint("Stopping abruptly because debug flag stop-after-reading-dists set")
-      output_resource_usage()
-      // We throw to top level before exiting because hprof tends to report
-      // too much garbage as if it were live.  Unwinding the stack may fix
-      // some of that.  If you don't want this unwinding, comment out the
-      // throw and uncomment the call to System.exit().
-      throw new GridLocateAbruptExit
-      // System.exit(0)
+    if (params.load_model != null)
+      cell_grid = load_cell_grid(document_table, params.load_model)
+    else {
+      cell_grid = initialize_cell_grid(document_table)
+      // This accesses all the above items, either directly through the
+      // variables storing them, or (as for the stopwords and whitelist)
+      // through the pointer to this in document_table.
+      read_training_documents_into_cell_grid()
+      if (debug("stop-after-reading-dists")) {
+        errprint("Stopping abruptly because debug flag stop-after-reading-dists set")
+        output_resource_usage()
+        // We throw to top level before exiting because hprof tends to report
+        // too much garbage as if it were live.  Unwinding the stack may fix
+        // some of that.  If you don't want this unwinding, comment out the
+        // throw and uncomment the call to System.exit().
+        throw new GridLocateAbruptExit
+        // System.exit(0)
+      }
+      cell_grid.finish()
+      if (params.save_model != null)
+        save_cell_grid(params.save_model)
     }
-    cell_grid.finish()
     if(params.output_training_cell_dists) {
       for(cell <- cell_grid.iter_nonempty_cells(nonempty_word_dist = true)) {
         print(cell.shortstr+"\t")
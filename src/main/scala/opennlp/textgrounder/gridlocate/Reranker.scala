@@ -16,6 +16,36 @@ trait Ranker[TestItem, Answer] {
    */
   def evaluate(item: TestItem, include: Iterable[Answer]):
     Iterable[(Answer, Double)]
+
+  /**
+   * Like `evaluate`, but only return the `k` best answers, along with the
+   * 1-based rank of `true_answer` among all answers (1000000000 if it isn't
+   * ranked at all).  Rankers that can find the best answers without ranking
+   * all of them should override this.
+   */
+  def evaluate_top(item: TestItem, include: Iterable[Answer], k: Int,
+      true_answer: Answer): (Seq[(Answer, Double)], Int) = {
+    val answers = evaluate(item, include)
+    (answers.take(k).toSeq, Ranker.rank_of(answers, true_answer))
+  }
+
+  /**
+   * Whether `evaluate` and `evaluate_top` may be called for several items
+   * at once from different threads.  False unless a ranker is known to be
+   * safe.
+   */
+  def thread_safe = false
+}
+
+object Ranker {
+  /**
+   * Return the 1-based rank of `answer` in a list of ranked answers, or
+   * 1000000000 if it isn't in the list.
+   */
+  def rank_of[Answer](answers: Iterable[(Answer, Double)], answer: Answer) = {
+    val index = answers.iterator.indexWhere(_._1 == answer)
+    if (index < 0) 1000000000 else index + 1
+  }
 }
 
 /**
@@ -74,7 +104,8 @@ trait PointwiseClassifyingReranker[TestItem, RerankInstance, Answer]
    */
   protected def get_rerank_training_instances(item: TestItem,
       true_answer: Answer) = {
-    val answers = initial_ranker.evaluate(item, Iterable(true_answer)).take(top_n)
+    val (answers, _) =
+      initial_ranker.evaluate_top(item, Iterable(true_answer), top_n, true_answer)
     for {(possible_answer, score) <- answers
          is_correct = possible_answer == true_answer
         }
@@ -98,6 +129,23 @@ trait PointwiseClassifyingReranker[TestItem, RerankInstance, Answer]
     val (to_rerank, others) = initial_answers.splitAt(top_n)
     rerank_answers(item, to_rerank) ++ others
   }
+
+  /**
+   * Only the top `top_n` answers get reranked, so the initial ranker only
+   * needs to supply those (or `k`, if more), and the true answer's rank
+   * only changes if it's among them.
+   */
+  override def evaluate_top(item: TestItem, include: Iterable[Answer], k: Int,
+      true_answer: Answer) = {
+    val (initial_answers, initial_rank) =
+      initial_ranker.evaluate_top(item, include, k max top_n, true_answer)
+    val (to_rerank, others) = initial_answers.splitAt(top_n)
+    val answers = rerank_answers(item, to_rerank) ++ others
+    val rank =
+      if (initial_rank <= top_n) Ranker.rank_of(answers, true_answer)
+      else initial_rank
+    (answers.take(k), rank)
+  }
 }
 
 /**
@@ -188,6 +236,12 @@ class CellGridRanker[TCoord](
  ) extends Ranker[GDoc[TCoord], GCell[TCoord]] {
   def evaluate(item: GDoc[TCoord], include: Iterable[GCell[TCoord]]) =
     strategy.return_ranked_cells(item.dist, include)
+
+  override def evaluate_top(item: GDoc[TCoord],
+      include: Iterable[GCell[TCoord]], k: Int, true_answer: GCell[TCoord]) =
+    strategy.return_top_ranked_cells(item.dist, k, include, true_answer)
+
+  override def thread_safe = strategy.thread_safe_ranking
 }
 
 class GDocRerankInstance[TCoord](
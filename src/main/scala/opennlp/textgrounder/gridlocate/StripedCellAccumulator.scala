@@ -0,0 +1,104 @@
+///////////////////////////////////////////////////////////////////////////////
+//  StripedCellAccumulator.scala
+//
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+
+package opennlp.textgrounder.gridlocate
+
+import java.util.concurrent.{Executors, Semaphore, ThreadFactory, TimeUnit}
+import collection.mutable
+
+/**
+ * Adds training documents to the cells of a grid on several threads, for
+ * reading the training documents into a cell grid in parallel (see
+ * `CellGrid.add_document_to_grid`).
+ *
+ * The cells are divided into `num_stripes` stripes (by identity hash), and
+ * each stripe has a thread of its own that does all the adding for the
+ * cells in it.  So a cell is only ever changed by one thread, and gets its
+ * documents in the order they were passed to `add`, just as if they had
+ * been added on a single thread; the resulting distributions are the same.
+ * Documents are handed to the stripe threads in batches, and a limited
+ * number of batches can be waiting, so that reading doesn't get too far
+ * ahead.
+ *
+ * `add` must always be called from the same thread, and `finish` must be
+ * called once all documents have been added, before the cells are used.
+ */
+class StripedCellAccumulator[TCoord](
+  val num_stripes: Int,
+  val batch_size: Int = 256
+) {
+  protected val stripes = Array.fill(num_stripes)(
+    Executors.newSingleThreadExecutor(new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val thread = new Thread(r, "cell-accumulator")
+        thread.setDaemon(true)
+        thread
+      }
+    }))
+  protected val pending = Array.fill(num_stripes)(
+    mutable.Buffer[(GCell[TCoord], GDoc[TCoord])]())
+  protected val free_batches = new Semaphore(4 * num_stripes)
+  @volatile protected var error: Throwable = null
+
+  /**
+   * Add a document to a cell, sometime before `finish` returns.
+   */
+  def add(cell: GCell[TCoord], doc: GDoc[TCoord]) {
+    if (error != null)
+      throw error
+    val stripe = (System.identityHashCode(cell) & Int.MaxValue) % num_stripes
+    pending(stripe) += ((cell, doc))
+    if (pending(stripe).length >= batch_size)
+      submit(stripe)
+  }
+
+  protected def submit(stripe: Int) {
+    val batch = pending(stripe)
+    pending(stripe) = mutable.Buffer[(GCell[TCoord], GDoc[TCoord])]()
+    free_batches.acquire()
+    stripes(stripe).execute(new Runnable {
+      def run() {
+        try {
+          if (error == null)
+            for ((cell, doc) <- batch)
+              cell.add_document(doc)
+        } catch {
+          case e: Throwable => error = e
+        } finally {
+          free_batches.release()
+        }
+      }
+    })
+  }
+
+  /**
+   * Wait until all documents have been added to their cells, and stop the
+   * stripe threads.  Rethrows the first exception that occurred while
+   * adding documents.
+   */
+  def finish() {
+    for (stripe <- 0 until num_stripes if pending(stripe).length > 0)
+      submit(stripe)
+    for (executor <- stripes)
+      executor.shutdown()
+    for (executor <- stripes)
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) { }
+    if (error != null)
+      throw error
+  }
+}
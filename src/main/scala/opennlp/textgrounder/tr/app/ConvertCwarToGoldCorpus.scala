@@ -53,18 +53,8 @@ object ConvertCwarToGoldCorpus extends App {
   //tgnToCoord.foreach(println)
 
 
-  var gaz:GeoNamesGazetteer = null;
   //println("Reading serialized GeoNames gazetteer from " + gazIn + " ...")
-  var ois:ObjectInputStream = null;
-  if(gazIn.toLowerCase().endsWith(".gz")) {
-    val gis = new GZIPInputStream(new FileInputStream(gazIn))
-    ois = new ObjectInputStream(gis)
-  }
-  else {
-    val fis = new FileInputStream(gazIn)
-    ois = new ObjectInputStream(fis)
-  }
-  gaz = ois.readObject.asInstanceOf[GeoNamesGazetteer]
+  val gaz:Gazetteer = TopoUtil.readGazetteer(gazIn)
 
   println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
   println("<corpus>")
@@ -62,11 +62,8 @@ object SupervisedTRFeatureExtractor extends App {
   }
   in.close
  
-  println("Reading serialized gazetteer from " + gazInputFile.value.get + " ...")
-  val gis = new GZIPInputStream(new FileInputStream(gazInputFile.value.get))
-  val ois = new ObjectInputStream(gis)
-  val gnGaz = ois.readObject.asInstanceOf[GeoNamesGazetteer]
-  gis.close
+  println("Reading gazetteer from " + gazInputFile.value.get + " ...")
+  val gnGaz = TopoUtil.readGazetteer(gazInputFile.value.get)
 
   println("Reading Wiki text corpus from " + wikiTextInputFile.value.get + " ...")
 
@@ -20,17 +20,8 @@ class BayesRuleResolver(val logFilePath:String,
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-    val modelDir = new File(modelDirPath)
-
-    val toponymsToModels:Map[String, AbstractModel] =
-      (for(file <- modelDir.listFiles.filter(_.getName.endsWith(".mxm"))) yield {
-        val dataInputStream = new DataInputStream(new FileInputStream(file));
-        val reader = new BinaryGISModelReader(dataInputStream)
-        val model = reader.getModel
-        
-        //println(file.getName.dropRight(4).replaceAll("_", " "))
-        (file.getName.dropRight(4).replaceAll("_", " "), model)
-      }).toMap
+    // Models are named by toponym, with underscores for spaces
+    val models = MaxentModelRegistry.getRegistry(modelDirPath)
 
     val ngramDists = LogUtil.getNgramDists(logFilePath)
     //println(ngramDists.size)
@@ -44,10 +35,10 @@ class BayesRuleResolver(val logFilePath:String,
 
         // P(l|d_c(t))
         val cellDistGivenLocalContext =
-        if(toponymsToModels.containsKey(toponym.getForm)) {
+        if(models.hasModel(toponym.getForm.replaceAll(" ", "_"))) {
           val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, WINDOW_SIZE, Set[String]())
 
-          /*val d = */MaxentResolver.getCellDist(toponymsToModels(toponym.getForm), contextFeatures,
+          /*val d = */MaxentResolver.getCellDist(models.getModel(toponym.getForm.replaceAll(" ", "_")), contextFeatures,
                                      toponym.getCandidates.toList, DPC)
         }
         else
@@ -10,25 +10,27 @@ class DocDistResolver(val logFilePath:String) extends Resolver {
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-    val predDocLocations = (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
-      (pe.docName, pe.predCoord)
-    }).toMap
+    val logIndex = LogUtil.getLogIndex(logFilePath)
 
-    for(doc <- corpus) {
-      for(sent <- doc) {
-        for(toponym <- sent.getToponyms.filter(_.getAmbiguity > 0)) {
-          if(overwriteSelecteds || !toponym.hasSelected) {
-            val predDocLocation = predDocLocations.getOrElse(doc.getId, null)
-            if(predDocLocation != null) {
-              val indexToSelect = toponym.getCandidates.zipWithIndex.minBy(
-                p => p._1.getRegion.distance(predDocLocation))._2
-              if(indexToSelect != -1) {
-                toponym.setSelectedIdx(indexToSelect)
+    try {
+      for(doc <- corpus) {
+        lazy val predDocLocation = logIndex.getPredCoord(doc.getId)
+        for(sent <- doc) {
+          for(toponym <- sent.getToponyms.filter(_.getAmbiguity > 0)) {
+            if(overwriteSelecteds || !toponym.hasSelected) {
+              if(predDocLocation != null) {
+                val indexToSelect = toponym.getCandidates.zipWithIndex.minBy(
+                  p => p._1.getRegion.distance(predDocLocation))._2
+                if(indexToSelect != -1) {
+                  toponym.setSelectedIdx(indexToSelect)
+                }
               }
             }
           }
         }
       }
+    } finally {
+      logIndex.close
     }
 
     corpus
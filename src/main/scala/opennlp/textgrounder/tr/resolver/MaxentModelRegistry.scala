@@ -0,0 +1,94 @@
+package opennlp.textgrounder.tr.resolver
+
+import java.io._
+import java.util.zip._
+
+import opennlp.maxent.io._
+import opennlp.model._
+
+/**
+ * The per-toponym maxent models (.mxm files) of a model directory, loaded
+ * on first use and kept in an LRU cache of at most `capacity` models, so
+ * that heap use depends on the toponyms a corpus mentions rather than on
+ * the size of the directory. Instead of a directory, `modelPath` may be a
+ * zip archive with the .mxm files as entries.
+ *
+ * Models are looked up by their file name without ".mxm". Resolvers in
+ * one JVM share registries through `MaxentModelRegistry.getRegistry`.
+ */
+class MaxentModelRegistry(val modelPath:String,
+                          val capacity:Int = MaxentModelRegistry.DEFAULT_CAPACITY) {
+
+  val MODEL_SUFFIX = ".mxm"
+
+  protected val archive =
+    if(new File(modelPath).isFile) new ZipFile(modelPath) else null
+
+  // Model names to their files (or archive entry names), found up front
+  // without reading any models
+  protected val modelSources:Map[String, String] =
+    if(archive != null) {
+      val entries = archive.entries
+      val sources = new scala.collection.mutable.HashMap[String, String]
+      while(entries.hasMoreElements) {
+        val entry = entries.nextElement
+        if(!entry.isDirectory && entry.getName.endsWith(MODEL_SUFFIX))
+          sources.put(new File(entry.getName).getName.dropRight(MODEL_SUFFIX.length), entry.getName)
+      }
+      sources.toMap
+    }
+    else
+      (for(file <- new File(modelPath).listFiles.filter(_.getName.endsWith(MODEL_SUFFIX))) yield {
+        (file.getName.dropRight(MODEL_SUFFIX.length), file.getPath)
+      }).toMap
+
+  protected val cache = new java.util.LinkedHashMap[String, AbstractModel](16, 0.75f, true) {
+    override protected def removeEldestEntry(eldest:java.util.Map.Entry[String, AbstractModel]): Boolean =
+      size > capacity
+  }
+
+  def modelNames = modelSources.keySet
+
+  def hasModel(name:String) = modelSources.contains(name)
+
+  /**
+   * The model with the given name, loading it if it isn't cached, or null
+   * if there's no such model.
+   */
+  def getModel(name:String): AbstractModel = synchronized {
+    var model = cache.get(name)
+    if(model == null && modelSources.contains(name)) {
+      model = loadModel(modelSources(name))
+      cache.put(name, model)
+    }
+    model
+  }
+
+  protected def loadModel(source:String): AbstractModel = {
+    val in =
+      if(archive != null)
+        new DataInputStream(new BufferedInputStream(archive.getInputStream(archive.getEntry(source))))
+      else
+        new DataInputStream(new BufferedInputStream(new FileInputStream(source)))
+    try {
+      new BinaryGISModelReader(in).getModel
+    } finally {
+      in.close
+    }
+  }
+}
+
+object MaxentModelRegistry {
+  val DEFAULT_CAPACITY = 1000
+
+  protected val registries = new scala.collection.mutable.HashMap[String, MaxentModelRegistry]
+
+  /**
+   * The registry shared by all resolvers in this JVM for a model directory
+   * or archive.
+   */
+  def getRegistry(modelPath:String): MaxentModelRegistry = synchronized {
+    registries.getOrElseUpdate(new File(modelPath).getAbsolutePath,
+      new MaxentModelRegistry(modelPath))
+  }
+}
@@ -20,30 +20,19 @@ class MaxentResolver(val logFilePath:String,
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-    val modelDir = new File(modelDirPath)
-
-    val toponymsToModels:Map[String, AbstractModel] =
-    (for(file <- modelDir.listFiles.filter(_.getName.endsWith(".mxm"))) yield {
-      val dataInputStream = new DataInputStream(new FileInputStream(file));
-      val reader = new BinaryGISModelReader(dataInputStream)
-      val model = reader.getModel
-
-      //println("Found model for "+file.getName.dropRight(4))
-
-      (file.getName.dropRight(4), model)
-    }).toMap
+    val models = MaxentModelRegistry.getRegistry(modelDirPath)
 
     for(doc <- corpus) {
       val docAsArray = TextUtil.getDocAsArray(doc)
       var tokIndex = 0
       for(token <- docAsArray) {
         if(token.isToponym && token.asInstanceOf[Toponym].getAmbiguity > 0
-           && toponymsToModels.containsKey(token.getForm)) {
+           && models.hasModel(token.getForm)) {
           val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, windowSize, Set[String]())
           //print("Features for "+token.getForm+": ")
           //contextFeatures.foreach(f => print(f+","))
           //println
-          val bestIndex = MaxentResolver.getBestIndex(toponymsToModels(token.getForm), contextFeatures,
+          val bestIndex = MaxentResolver.getBestIndex(models.getModel(token.getForm), contextFeatures,
                                            token.asInstanceOf[Toponym].getCandidates.toList, dpc)
           //println("best index for "+token.getForm+": "+bestIndex)
           if(bestIndex != -1)
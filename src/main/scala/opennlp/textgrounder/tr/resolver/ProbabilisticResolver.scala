@@ -21,26 +21,10 @@ class ProbabilisticResolver(val logFilePath:String,
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-  val docIdToCellDist:Map[String, Map[Int, Double]] =
-  (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
-    (pe.docName, pe.getProbDistOverPredCells(KNN, DPC).toMap)
-  }).toMap
+  val logIndex = LogUtil.getLogIndex(logFilePath)
 
-  val predDocLocations = (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
-    (pe.docName, pe.predCoord)
-  }).toMap
-
-  val modelDir = new File(modelDirPath)
-
-  val toponymsToModels:Map[String, AbstractModel] =
-  (for(file <- modelDir.listFiles.filter(_.getName.endsWith(".mxm"))) yield {
-    val dataInputStream = new DataInputStream(new FileInputStream(file));
-    val reader = new BinaryGISModelReader(dataInputStream)
-    val model = reader.getModel
-
-    //println(file.getName.dropRight(4).replaceAll("_", " "))
-    (file.getName.dropRight(4).replaceAll("_", " "), model)
-  }).toMap
+  // Models are named by toponym, with underscores for spaces
+  val models = MaxentModelRegistry.getRegistry(modelDirPath)
 
   var toponymsToCounts = new scala.collection.mutable.HashMap[String, Int]
   var total = 0
@@ -61,100 +45,105 @@ class ProbabilisticResolver(val logFilePath:String,
   toponymsToCounts = null
   //toponymsToFrequencies.foreach(p => println(p._1+": "+p._2))
 
-  for(doc <- corpus) {
-    val docAsArray = TextUtil.getDocAsArray(doc)
-    var tokIndex = 0
-    for(token <- docAsArray) {
-      if(token.isToponym && token.asInstanceOf[Toponym].getAmbiguity > 0) {
-        val toponym = token.asInstanceOf[Toponym]
-
-        // P(l|t,d_c(t))
-        val cellDistGivenLocalContext =
-        if(toponymsToModels.containsKey(toponym.getForm)) {
-          val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, WINDOW_SIZE, Set[String]())
-
-          //println("getting a cell dist for "+toponym.getForm)
-
-          /*val d = */MaxentResolver.getCellDist(toponymsToModels(toponym.getForm), contextFeatures,
-                                     toponym.getCandidates.toList, DPC)
-          //println(d.size)
-          //d.foreach(println)
-          //d
-        }
-        else
-          null
-
-        // P(l|d)
-        //val prev = docIdToCellDist.getOrElse(doc.getId, null)
-        val cellDistGivenDocument = filterAndNormalize(docIdToCellDist.getOrElse(doc.getId, null), toponym)
-        /*if(prev != null) {
-          println("prev size = " + prev.size)
-          println(" new size = " + cellDistGivenDocument.size)
-          println("-----")
-        }*/
-
-        val topFreq = toponymsToFrequencies(toponym.getForm)
-        val lambda = topFreq / (topFreq + 1.0E-4)//0.7
-
-        var indexToSelect = -1
-        var maxProb = 0.0
-        var candIndex = 0
-        for(cand <- toponym.getCandidates) {
-          val curCellNum = TopoUtil.getCellNumber(cand.getRegion.getCenter, DPC)
-
-          val localContextComponent =
-          if(cellDistGivenLocalContext != null)
-            cellDistGivenLocalContext.getOrElse(curCellNum, 0.0)
-          else
-            0.0
-
-          val documentComponent =
-          if(cellDistGivenDocument != null && cellDistGivenDocument.size > 0)
-            cellDistGivenDocument.getOrElse(curCellNum, 0.0)
+  try {
+    for(doc <- corpus) {
+      val docAsArray = TextUtil.getDocAsArray(doc)
+      lazy val docCellDist = logIndex.getProbDistOverPredCells(doc.getId, KNN, DPC)
+      var tokIndex = 0
+      for(token <- docAsArray) {
+        if(token.isToponym && token.asInstanceOf[Toponym].getAmbiguity > 0) {
+          val toponym = token.asInstanceOf[Toponym]
+
+          // P(l|t,d_c(t))
+          val cellDistGivenLocalContext =
+          if(models.hasModel(toponym.getForm.replaceAll(" ", "_"))) {
+            val contextFeatures = TextUtil.getContextFeatures(docAsArray, tokIndex, WINDOW_SIZE, Set[String]())
+
+            //println("getting a cell dist for "+toponym.getForm)
+
+            /*val d = */MaxentResolver.getCellDist(models.getModel(toponym.getForm.replaceAll(" ", "_")), contextFeatures,
+                                       toponym.getCandidates.toList, DPC)
+            //println(d.size)
+            //d.foreach(println)
+            //d
+          }
           else
-            0.0
-
-          /*if(localContextComponent == 0.0) {
-            if(documentComponent == 0.0) {
-              println("BOTH ZERO")
+            null
+
+          // P(l|d)
+          //val prev = docCellDist
+          val cellDistGivenDocument = filterAndNormalize(docCellDist, toponym)
+          /*if(prev != null) {
+            println("prev size = " + prev.size)
+            println(" new size = " + cellDistGivenDocument.size)
+            println("-----")
+          }*/
+
+          val topFreq = toponymsToFrequencies(toponym.getForm)
+          val lambda = topFreq / (topFreq + 1.0E-4)//0.7
+
+          var indexToSelect = -1
+          var maxProb = 0.0
+          var candIndex = 0
+          for(cand <- toponym.getCandidates) {
+            val curCellNum = TopoUtil.getCellNumber(cand.getRegion.getCenter, DPC)
+
+            val localContextComponent =
+            if(cellDistGivenLocalContext != null)
+              cellDistGivenLocalContext.getOrElse(curCellNum, 0.0)
+            else
+              0.0
+
+            val documentComponent =
+            if(cellDistGivenDocument != null && cellDistGivenDocument.size > 0)
+              cellDistGivenDocument.getOrElse(curCellNum, 0.0)
+            else
+              0.0
+
+            /*if(localContextComponent == 0.0) {
+              if(documentComponent == 0.0) {
+                println("BOTH ZERO")
+              }
+              else {
+                println("LOCAL ZERO")
+              }
             }
-            else {
-              println("LOCAL ZERO")
-            }
-          }
-          else if(documentComponent == 0.0)
-            println("DOC ZERO")*/
+            else if(documentComponent == 0.0)
+              println("DOC ZERO")*/
 
-          // Incorporate administrative level here
-          val adminLevelComponent = getAdminLevelComponent(cand, toponym.getCandidates.toList/*cand.getType, cand.getAdmin1Code*/)
+            // Incorporate administrative level here
+            val adminLevelComponent = getAdminLevelComponent(cand, toponym.getCandidates.toList/*cand.getType, cand.getAdmin1Code*/)
 
-          // P(l|t,d)
-          val probOfLocation = adminLevelComponent * (lambda * localContextComponent + (1-lambda) * documentComponent)
+            // P(l|t,d)
+            val probOfLocation = adminLevelComponent * (lambda * localContextComponent + (1-lambda) * documentComponent)
 
-          if(probOfLocation > maxProb) {
-            indexToSelect = candIndex
-            maxProb = probOfLocation
-          }
+            if(probOfLocation > maxProb) {
+              indexToSelect = candIndex
+              maxProb = probOfLocation
+            }
 
-          candIndex += 1
-        }
+            candIndex += 1
+          }
 
-        /*if(indexToSelect == -1) {
-          val predDocLocation = predDocLocations.getOrElse(doc.getId, null)
-          if(predDocLocation != null) {
-            val indexToSelectBackoff = toponym.getCandidates.zipWithIndex.minBy(p => p._1.getRegion.distance(predDocLocation))._2
-            if(indexToSelectBackoff != -1) {
-              indexToSelect = indexToSelectBackoff
+          /*if(indexToSelect == -1) {
+            val predDocLocation = logIndex.getPredCoord(doc.getId)
+            if(predDocLocation != null) {
+              val indexToSelectBackoff = toponym.getCandidates.zipWithIndex.minBy(p => p._1.getRegion.distance(predDocLocation))._2
+              if(indexToSelectBackoff != -1) {
+                indexToSelect = indexToSelectBackoff
+              }
             }
-          }
-        }*/
+          }*/
 
-        if(indexToSelect >= 0)
-          toponym.setSelectedIdx(indexToSelect)
+          if(indexToSelect >= 0)
+            toponym.setSelectedIdx(indexToSelect)
 
+        }
+        tokIndex += 1
       }
-      tokIndex += 1
     }
+  } finally {
+    logIndex.close
   }
 
   // Backoff to DocDist:
@@ -173,6 +162,8 @@ class ProbabilisticResolver(val logFilePath:String,
   }
 
   def filterAndNormalize(dist:Map[Int, Double], toponym:Toponym): Map[Int, Double] = {
+    if(dist == null)
+      return null
     val cells = toponym.getCandidates.map(l => TopoUtil.getCellNumber(l.getRegion.getCenter, DPC)).toSet
     val filteredDist = dist.filter(c => cells(c._1))
     val sum = filteredDist.map(_._2).sum
@@ -13,7 +13,7 @@ class ToponymAsDocDistResolver(val logFilePath:String) extends Resolver {
 
   def disambiguate(corpus:StoredCorpus): StoredCorpus = {
 
-    val predLocations = (for(pe <- LogUtil.parseLogFile(logFilePath)) yield {
+    val predLocations = (for(pe <- LogUtil.iterateLogFile(logFilePath)) yield {
       val docTokRE(docName, tokenIndex) = pe.docName
       ((docName, tokenIndex.toInt), pe.predCoord)
     }).toMap
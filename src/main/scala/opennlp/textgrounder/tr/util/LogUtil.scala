@@ -1,5 +1,7 @@
 package opennlp.textgrounder.tr.util
 
+import java.io._
+
 import opennlp.textgrounder.tr.topo._
 
 object LogUtil {
@@ -19,15 +21,24 @@ object LogUtil {
   val ngramAndCountRE = """^(\S+)\=(\S+)$""".r
 
   def parseLogFile(filename: String): List[LogFileParseElement]/*List[(String, Coordinate, Coordinate, List[(Coordinate, Int)])]*/ = {
-    val lines = scala.io.Source.fromFile(filename).getLines
+    iterateLogFile(filename).toList
+  }
+
+  /**
+   * The documents of a log file in order, parsed one at a time as the
+   * iterator is advanced. The file is closed once the iterator runs out.
+   */
+  def iterateLogFile(filename: String): Iterator[LogFileParseElement] = {
+    val source = scala.io.Source.fromFile(filename)
+    val lines = source.getLines
 
     var docName:String = null
-    var neighbors:List[(Coordinate, Int)] = null
-    var predCells:List[(Int, Double, Coordinate)] = null
+    var neighbors:scala.collection.mutable.ListBuffer[(Coordinate, Int)] = null
+    var predCells:scala.collection.mutable.ListBuffer[(Int, Double, Coordinate)] = null
     var trueCoord:Coordinate = null
     var predCoord:Coordinate = null
 
-    (for(line <- lines) yield {
+    val elements = (for(line <- lines) yield {
       if(line.startsWith("#")) {
 
         if(line.contains(DOC_PREFIX)) {
@@ -41,8 +52,8 @@ object LogUtil {
           val rawCoords = line.slice(startIndex, endIndex).split(",")
           trueCoord = Coordinate.fromDegrees(rawCoords(0).toDouble, rawCoords(1).toDouble)
 
-          predCells = List()
-          neighbors = List()
+          predCells = new scala.collection.mutable.ListBuffer[(Int, Double, Coordinate)]
+          neighbors = new scala.collection.mutable.ListBuffer[(Coordinate, Int)]
 
           None
         }
@@ -59,7 +70,7 @@ object LogUtil {
           val rawBlCoord = line.slice(blCoordStartIndex, blCoordEndIndex).split(",")
           val blCoord = Coordinate.fromDegrees(rawBlCoord(0).toDouble, rawBlCoord(1).toDouble)
 
-          predCells = predCells ::: ((rank, kl, blCoord) :: Nil)
+          predCells += ((rank, kl, blCoord))
 
           None
         }
@@ -73,7 +84,7 @@ object LogUtil {
           val rankEndIndex = line.indexOf(" ", rankStartIndex)
           val rank = line.slice(rankStartIndex, rankEndIndex).toInt
           
-          neighbors = neighbors ::: ((curNeighbor, rank) :: Nil)
+          neighbors += ((curNeighbor, rank))
 
           None
         }
@@ -84,19 +95,53 @@ object LogUtil {
           val rawCoords = line.slice(startIndex, endIndex).split(",")
           predCoord = Coordinate.fromDegrees(rawCoords(0).toDouble, rawCoords(1).toDouble)
 
-          Some(new LogFileParseElement(docName, trueCoord, predCoord, predCells, neighbors))
+          Some(new LogFileParseElement(docName, trueCoord, predCoord, predCells.toList, neighbors.toList))
         }
 
         else None
       }
       else None
-    }).flatten.toList
+    }).flatten
+
+    new Iterator[LogFileParseElement] {
+      def hasNext = elements.hasNext || { source.close; false }
+      def next = elements.next
+    }
+  }
+
+  // side files of logs indexed so far, including any temporary ones
+  protected val logIndexFiles = new scala.collection.mutable.HashMap[String, File]
+
+  /**
+   * The index of a log file, for looking up documents by name; the caller
+   * should close it when done. The first time a log file is indexed, its
+   * documents are converted into a binary side file next to it (or into a
+   * temporary file, if that can't be written), and the side file is reused
+   * until the log file changes.
+   */
+  def getLogIndex(filename: String): LogIndex = synchronized {
+    val logFile = new File(filename)
+    var indexFile = logIndexFiles.getOrElse(logFile.getAbsolutePath, new File(filename + LogIndex.SUFFIX))
+    if(!LogIndex.isValid(indexFile, logFile)) {
+      try {
+        indexFile = new File(filename + LogIndex.SUFFIX)
+        LogIndex.write(logFile, indexFile)
+      } catch {
+        case e: IOException =>
+          indexFile = File.createTempFile(logFile.getName, LogIndex.SUFFIX)
+          indexFile.deleteOnExit
+          LogIndex.write(logFile, indexFile)
+      }
+      logIndexFiles.put(logFile.getAbsolutePath, indexFile)
+    }
+    new LogIndex(indexFile)
   }
 
   def getNgramDists(filename: String): Map[Int, Map[String, Double]] = {
-    val lines = scala.io.Source.fromFile(filename).getLines
+    val source = scala.io.Source.fromFile(filename)
+    val lines = source.getLines
 
-    (for(line <- lines) yield {
+    val dists = (for(line <- lines) yield {
       if(line.startsWith(CELL_BOTTOM_LEFT_COORD_PREFIX)) {
         val blCoordStartIndex = CELL_BOTTOM_LEFT_COORD_PREFIX.length
         val blCoordEndIndex = line.indexOf(")", blCoordStartIndex)
@@ -120,6 +165,8 @@ object LogUtil {
       else
         None
     }).flatten.toMap
+    source.close
+    dists
   }
 
 }
@@ -141,3 +188,187 @@ class LogFileParseElement(
       }).map(p => (p._1, p._2/sum)).toList
     }
 }
+
+/**
+ * Documents of a log file, looked up by name in a binary side file written
+ * by `LogIndex.write`, without parsing or keeping the whole log in memory.
+ * Only the names and file offsets of the documents are read in up front.
+ * If a name occurs more than once in the log, the last document with it is
+ * the one found.
+ *
+ * The side file has a header, one record per document (its length, then
+ * the document name, true and predicted coordinates, predicted cells and
+ * neighbors), the table of names and offsets, and the offset of that table
+ * as the last 8 bytes.
+ */
+class LogIndex(val indexFile: File) extends Closeable {
+
+  protected val offsets = new scala.collection.mutable.HashMap[String, Long]
+
+  {
+    val in = new RandomAccessFile(indexFile, "r")
+    val tableOffset =
+      try {
+        in.seek(in.length - 8)
+        in.readLong
+      } finally {
+        in.close
+      }
+    val tableIn = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))
+    try {
+      var skipped = 0L
+      while(skipped < tableOffset)
+        skipped += tableIn.skip(tableOffset - skipped)
+      val numDocs = tableIn.readInt
+      for(i <- 0 until numDocs) {
+        val docName = tableIn.readUTF
+        offsets.put(docName, tableIn.readLong)
+      }
+    } finally {
+      tableIn.close
+    }
+  }
+
+  protected val file = new RandomAccessFile(indexFile, "r")
+
+  def size = offsets.size
+
+  def contains(docName: String) = offsets.contains(docName)
+
+  def get(docName: String): Option[LogFileParseElement] = {
+    offsets.get(docName).map { offset =>
+      val record = file.synchronized {
+        file.seek(offset)
+        val bytes = new Array[Byte](file.readInt)
+        file.readFully(bytes)
+        bytes
+      }
+      LogIndex.readElement(new DataInputStream(new ByteArrayInputStream(record)))
+    }
+  }
+
+  def getPredCoord(docName: String): Coordinate =
+    get(docName).map(_.predCoord).getOrElse(null)
+
+  /**
+   * The normalized distribution over the document's first `knn` predicted
+   * cells (see `LogFileParseElement.getProbDistOverPredCells`), or null if
+   * the document isn't in the log.
+   */
+  def getProbDistOverPredCells(docName: String, knn: Int, dpc: Double): Map[Int, Double] =
+    get(docName).map(_.getProbDistOverPredCells(knn, dpc).toMap).getOrElse(null)
+
+  def close() {
+    file.close
+  }
+}
+
+object LogIndex {
+  val SUFFIX = ".index"
+  val MAGIC = 0x54474c4f47494458L // "TGLOGIDX"
+  val VERSION = 1
+
+  /**
+   * Whether `indexFile` is a side file of this version at least as new as
+   * `logFile`.
+   */
+  def isValid(indexFile: File, logFile: File): Boolean = {
+    if(!indexFile.exists || indexFile.lastModified < logFile.lastModified)
+      false
+    else {
+      val in = new DataInputStream(new FileInputStream(indexFile))
+      try {
+        in.readLong == MAGIC && in.readInt == VERSION
+      } catch {
+        case e: IOException => false
+      } finally {
+        in.close
+      }
+    }
+  }
+
+  /**
+   * Convert the documents of a log file into a side file, streaming through
+   * the log once.
+   */
+  def write(logFile: File, indexFile: File) {
+    val tmpFile = new File(indexFile.getPath + ".tmp")
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))
+    try {
+      out.writeLong(MAGIC)
+      out.writeInt(VERSION)
+      var offset = 12L
+      val offsets = new scala.collection.mutable.LinkedHashMap[String, Long]
+      val record = new ByteArrayOutputStream
+      for(pe <- LogUtil.iterateLogFile(logFile.getPath)) {
+        record.reset
+        writeElement(new DataOutputStream(record), pe)
+        out.writeInt(record.size)
+        record.writeTo(out)
+        offsets.put(pe.docName, offset)
+        offset += 4 + record.size
+      }
+      out.writeInt(offsets.size)
+      for((docName, docOffset) <- offsets) {
+        out.writeUTF(docName)
+        out.writeLong(docOffset)
+      }
+      out.writeLong(offset)
+    } finally {
+      out.close
+    }
+    if(!tmpFile.renameTo(indexFile)) {
+      indexFile.delete
+      if(!tmpFile.renameTo(indexFile))
+        throw new IOException("Couldn't rename " + tmpFile + " to " + indexFile)
+    }
+  }
+
+  protected def writeCoordinate(out: DataOutputStream, coord: Coordinate) {
+    out.writeBoolean(coord != null)
+    if(coord != null) {
+      out.writeDouble(coord.getLat)
+      out.writeDouble(coord.getLng)
+    }
+  }
+
+  protected def readCoordinate(in: DataInputStream): Coordinate = {
+    if(in.readBoolean)
+      Coordinate.fromRadians(in.readDouble, in.readDouble)
+    else
+      null
+  }
+
+  def writeElement(out: DataOutputStream, pe: LogFileParseElement) {
+    out.writeUTF(pe.docName)
+    writeCoordinate(out, pe.trueCoord)
+    writeCoordinate(out, pe.predCoord)
+    out.writeInt(pe.predCells.size)
+    for((rank, kl, blCoord) <- pe.predCells) {
+      out.writeInt(rank)
+      out.writeDouble(kl)
+      writeCoordinate(out, blCoord)
+    }
+    out.writeInt(pe.neighbors.size)
+    for((coord, rank) <- pe.neighbors) {
+      writeCoordinate(out, coord)
+      out.writeInt(rank)
+    }
+  }
+
+  def readElement(in: DataInputStream): LogFileParseElement = {
+    val docName = in.readUTF
+    val trueCoord = readCoordinate(in)
+    val predCoord = readCoordinate(in)
+    val predCells = (for(i <- 0 until in.readInt) yield {
+      val rank = in.readInt
+      val kl = in.readDouble
+      (rank, kl, readCoordinate(in))
+    }).toList
+    val neighbors = (for(i <- 0 until in.readInt) yield {
+      val coord = readCoordinate(in)
+      (coord, in.readInt)
+    }).toList
+    new LogFileParseElement(docName, trueCoord, predCoord, predCells, neighbors)
+  }
+}
@@ -56,6 +56,11 @@ import scala.collection.generic.CanBuildFrom
  *    -- 'fromto', which does a range that is insensitive to order of its
  *       arguments
  *    -- 'merge_numbered_sequences_uniquely'
+ *    -- 'PrefetchIterator', which reads ahead in an iterator on a separate
+ *       thread
+ *    -- 'top_k_indices', 'rank_in_decreasing_order' and
+ *       'indices_in_decreasing_order', for finding the best few entries of
+ *       an array of scores without sorting it
  */
 
 package object collectionutil {
@@ -690,6 +695,84 @@ package object collectionutil {
     }
   }
 
+  /**
+   * An iterator that reads ahead in another iterator on a separate thread,
+   * keeping up to `capacity` items waiting, so that producing the items
+   * (e.g. reading and parsing documents) overlaps with consuming them.
+   * The wrapped iterator is only ever touched by the reading thread, which
+   * is started on first access.  An exception thrown while reading is
+   * rethrown to the consumer when it gets to that point.  Call `close()`
+   * to stop reading ahead if the rest of the items won't be needed.
+   * `on_stop`, if given, is run once reading stops, whether because the
+   * items ran out, reading failed or the iterator was closed; it runs on the
+   * reading thread, or on the caller of `close()` if reading never started.
+   */
+  class PrefetchIterator[T](iter: Iterator[T], capacity: Int,
+      on_stop: () => Unit = null) extends Iterator[T] {
+    private case class Item(value: T)
+    private case class Failure(e: Throwable)
+    private case object End
+    private val queue =
+      new java.util.concurrent.ArrayBlockingQueue[AnyRef](capacity max 1)
+    @volatile private var closed = false
+    private var started = false
+    private var head: AnyRef = null
+
+    private def start() {
+      started = true
+      val thread = new Thread("prefetch") {
+        override def run() {
+          try {
+            while (!closed && iter.hasNext)
+              queue.put(Item(iter.next))
+            if (!closed)
+              queue.put(End)
+          } catch {
+            case e: Throwable => if (!closed) queue.put(Failure(e))
+          } finally {
+            if (on_stop != null)
+              on_stop()
+          }
+        }
+      }
+      thread.setDaemon(true)
+      thread.start()
+    }
+
+    def hasNext = {
+      if (closed) false
+      else {
+        if (!started)
+          start()
+        if (head == null)
+          head = queue.take()
+        head match {
+          case Failure(e) => throw e
+          case End => false
+          case _ => true
+        }
+      }
+    }
+
+    def next = {
+      if (!hasNext)
+        throw new java.util.NoSuchElementException("next on empty iterator")
+      val value = head.asInstanceOf[Item].value
+      head = null
+      value
+    }
+
+    def close() {
+      if (!closed) {
+        closed = true
+        // Unblock the reading thread if it's waiting for room.
+        queue.clear()
+        if (!started && on_stop != null)
+          on_stop()
+      }
+    }
+  }
+
   /**
    * An empty iterator that executes some code when its contents are fetched.
    * This is useful for ensuring that side-effecting code gets executed at the
@@ -791,6 +874,120 @@ package object collectionutil {
     }
   }
 
+  /**
+   * Return the indices of the `k` largest values in `scores`, from largest
+   * to smallest.  Ties go to the lower index, so the result is the same as
+   * the first `k` indices of a stable sort by decreasing value.  This uses
+   * a heap of size `k`, so takes O(n log k) time rather than O(n log n).
+   */
+  def top_k_indices(scores: Array[Double], k: Int): Array[Int] = {
+    val n = scores.length
+    val size = (k min n) max 0
+    // A min-heap of the best indices seen so far, with the worst at the root.
+    val heap = new Array[Int](size)
+    if (size == 0)
+      return heap
+    def worse(a: Int, b: Int) =
+      scores(a) < scores(b) || (scores(a) == scores(b) && a > b)
+    def sift_down(start: Int, end: Int) {
+      var i = start
+      var child = 2 * i + 1
+      while (child < end) {
+        if (child + 1 < end && worse(heap(child + 1), heap(child)))
+          child += 1
+        if (worse(heap(child), heap(i))) {
+          val tmp = heap(i)
+          heap(i) = heap(child)
+          heap(child) = tmp
+          i = child
+          child = 2 * i + 1
+        } else
+          child = end
+      }
+    }
+
+    for (i <- 0 until size)
+      heap(i) = i
+    for (i <- size / 2 - 1 to 0 by -1)
+      sift_down(i, size)
+    for (i <- size until n) {
+      if (worse(heap(0), i)) {
+        heap(0) = i
+        sift_down(0, size)
+      }
+    }
+    // Heapsort what's left; moving the worst to the back each time leaves
+    // the best in front.
+    for (end <- size - 1 until 0 by -1) {
+      val tmp = heap(0)
+      heap(0) = heap(end)
+      heap(end) = tmp
+      sift_down(0, end)
+    }
+    heap
+  }
+
+  /**
+   * Return the 1-based rank the value at `index` in `scores` would have in a
+   * stable sort by decreasing value (see `top_k_indices`), by counting the
+   * values ahead of it rather than sorting.
+   */
+  def rank_in_decreasing_order(scores: Array[Double], index: Int) = {
+    val score = scores(index)
+    var rank = 1
+    var i = 0
+    while (i < scores.length) {
+      if (scores(i) > score || (scores(i) == score && i < index))
+        rank += 1
+      i += 1
+    }
+    rank
+  }
+
+  /**
+   * Iterate over the indices of `scores` in the order of a stable sort by
+   * decreasing value (see `top_k_indices`), sorting only as far as the
+   * iterator is taken: the indices are heapified up front in O(n) time and
+   * each one taken costs O(log n), so the first `k` cost O(n + k log n).
+   */
+  def indices_in_decreasing_order(scores: Array[Double]): Iterator[Int] =
+    new Iterator[Int] {
+      // A max-heap of the indices not yet returned, with the best at the root.
+      protected val heap = Array.range(0, scores.length)
+      protected var size = heap.length
+      protected def better(a: Int, b: Int) =
+        scores(a) > scores(b) || (scores(a) == scores(b) && a < b)
+      protected def sift_down(start: Int) {
+        var i = start
+        var child = 2 * i + 1
+        while (child < size) {
+          if (child + 1 < size && better(heap(child + 1), heap(child)))
+            child += 1
+          if (better(heap(child), heap(i))) {
+            val tmp = heap(i)
+            heap(i) = heap(child)
+            heap(child) = tmp
+            i = child
+            child = 2 * i + 1
+          } else
+            child = size
+        }
+      }
+      for (i <- size / 2 - 1 to 0 by -1)
+        sift_down(i)
+
+      def hasNext = size > 0
+      def next() = {
+        if (size == 0)
+          throw new NoSuchElementException("next on empty iterator")
+        val best = heap(0)
+        size -= 1
+        heap(0) = heap(size)
+        sift_down(0)
+        best
+      }
+    }
+
   /**
    * Combine two maps, adding up the numbers where overlap occurs.
    */
@@ -23,6 +23,7 @@ import util.control.Breaks._
 
 import java.io.PrintStream
 
+import collectionutil.DynamicArray
 import printutil.{errprint, warning}
 import ioutil._
 
@@ -549,16 +550,69 @@ package object textdbutil {
     private val encode_chars_regex = "[%s]".format(chars_to_encode mkString "").r
     private val encode_chars_map =
       chars_to_encode.map(c => (c.toString, "%%%02X".format(c.toInt))).toMap
-    private val decode_chars_map =
-      encode_chars_map.toSeq.flatMap {
-        case (dec, enc) => Seq((enc, dec), (enc.toLowerCase, dec)) }.toMap
-    private val decode_chars_regex =
-      "(%s)".format(decode_chars_map.keys mkString "|").r
+    /* The two hex digits following the % for each encoded char, in upper
+       and lower case; either case is decoded. */
+    private val decode_chars = chars_to_encode.toArray
+    private val decode_upper =
+      decode_chars.map(c => "%02X".format(c.toInt).toCharArray)
+    private val decode_lower =
+      decode_upper.map(hex => hex.map(_.toLower))
 
     def encode(str: String) =
       encode_chars_regex.replaceAllIn(str, m => encode_chars_map(m.matched))
-    def decode(str: String) =
-      decode_chars_regex.replaceAllIn(str, m => decode_chars_map(m.matched))
+    def decode(str: String) = decode_slice(str, 0, str.length)
+
+    /**
+     * Index in `decode_chars` of the char encoded by the two hex digits
+     * at `pos` in `str`, or -1 if they don't encode one.
+     */
+    protected def decoded_char_index(str: String, pos: Int) = {
+      val hi = str.charAt(pos)
+      val lo = str.charAt(pos + 1)
+      var index = -1
+      var i = 0
+      while (index < 0 && i < decode_chars.length) {
+        if ((hi == decode_upper(i)(0) && lo == decode_upper(i)(1)) ||
+            (hi == decode_lower(i)(0) && lo == decode_lower(i)(1)))
+          index = i
+        i += 1
+      }
+      index
+    }
+
+    /**
+     * Decode the chars of `str` from `start` up to (not including) `end`.
+     * Same as `decode(str.substring(start, end))`, but the string is scanned
+     * in place, and if nothing needs decoding (the usual case), the only
+     * string created is the substring itself.
+     */
+    def decode_slice(str: String, start: Int, end: Int): String = {
+      var builder: java.lang.StringBuilder = null
+      var copied = start
+      var i = start
+      while (i < end) {
+        val index =
+          if (str.charAt(i) == '%' && i + 2 < end)
+            decoded_char_index(str, i + 1)
+          else -1
+        if (index < 0)
+          i += 1
+        else {
+          if (builder == null)
+            builder = new java.lang.StringBuilder(end - start)
+          builder.append(str, copied, i)
+          builder.append(decode_chars(index))
+          i += 3
+          copied = i
+        }
+      }
+      if (builder == null)
+        str.substring(start, end)
+      else {
+        builder.append(str, copied, end)
+        builder.toString
+      }
+    }
   }
 
   private val endec_string_for_count_map_field =
@@ -640,7 +694,35 @@ package object textdbutil {
    * Decode an n-gram encoded using `encode_ngram_for_count_map_field`.
    */
   def decode_ngram_for_count_map_field(ngram: String) = {
-    ngram.split(":", -1).map(decode_string_for_count_map_field)
+    val words = mutable.ArrayBuffer[String]()
+    var start = 0
+    var colon = ngram.indexOf(':')
+    while (colon >= 0) {
+      words += endec_string_for_count_map_field.decode_slice(ngram, start, colon)
+      start = colon + 1
+      colon = ngram.indexOf(':', start)
+    }
+    words += endec_string_for_count_map_field.decode_slice(ngram, start,
+      ngram.length)
+    words.toArray
+  }
+
+  /**
+   * Parse the count from `start` up to `end` in `str`, with the same result
+   * (or exception) as `str.substring(start, end).toInt`.  Plain counts of up
+   * to 9 digits, i.e. nearly all of them, are parsed without creating a
+   * string.
+   */
+  protected def parse_count(str: String, start: Int, end: Int) = {
+    var count = 0
+    var i = start
+    while (i < end && i - start < 9 && str.charAt(i) >= '0' &&
+        str.charAt(i) <= '9') {
+      count = count * 10 + (str.charAt(i) - '0')
+      i += 1
+    }
+    if (i == end && end > start) count
+    else str.substring(start, end).toInt
   }
 
   /**
@@ -652,8 +734,8 @@ package object textdbutil {
       throw FileFormatException(
         "Counts field must be of the form WORD:WORD:...:COUNT, but %s seen"
           format field)
-    val count = field.slice(last_colon + 1, field.length).toInt
-    (field.slice(0, last_colon), count)
+    val count = parse_count(field, last_colon + 1, field.length)
+    (field.substring(0, last_colon), count)
   }
 
   /**
@@ -691,26 +773,47 @@ package object textdbutil {
    * (word, count) pairs.
    */
   def decode_count_map(encoded: String) = {
-    if (encoded.length == 0)
-      Array[(String, Int)]()
-    else
-      {
-      val wordcounts = encoded.split(" ")
-      for (wordcount <- wordcounts) yield {
-        val split_wordcount = wordcount.split(":", -1)
-        if (split_wordcount.length != 2)
-          throw FileFormatException(
-            "For unigram counts, items must be of the form WORD:COUNT, but %s seen"
-            format wordcount)
-        val Array(word, strcount) = split_wordcount
-        if (word.length == 0)
-          throw FileFormatException(
-            "For unigram counts, WORD in WORD:COUNT must not be empty, but %s seen"
-            format wordcount)
-        val count = strcount.toInt
-        val decoded_word = decode_string_for_count_map_field(word)
-        (decoded_word, count)
-      }
+    val words = new DynamicArray[String]()
+    val counts = new DynamicArray[Int]()
+    decode_count_map_into(encoded, words, counts)
+    (0 until words.length).map(i => (words.array(i), counts.array(i))).toArray
+  }
+
+  /**
+   * Deserialize an encoded word-count map, appending the words and their
+   * counts to `words` and `counts`.  The result is the same as for
+   * `decode_count_map`, but the map is decoded in a single scan of
+   * `encoded`, without splitting it up or creating a tuple per word, and
+   * the buffers can be reused from one map to the next.
+   */
+  def decode_count_map_into(encoded: String, words: DynamicArray[String],
+      counts: DynamicArray[Int]) {
+    // As with `split(" ")`, trailing spaces are ignored, but other empty
+    // items are errors.
+    var end = encoded.length
+    while (end > 0 && encoded.charAt(end - 1) == ' ')
+      end -= 1
+    var start = 0
+    while (start < end) {
+      var item_end = encoded.indexOf(' ', start)
+      if (item_end < 0 || item_end > end)
+        item_end = end
+      val colon = encoded.indexOf(':', start)
+      val next_colon = if (colon < 0) -1 else encoded.indexOf(':', colon + 1)
+      if (colon < 0 || colon >= item_end ||
+          (next_colon >= 0 && next_colon < item_end))
+        throw FileFormatException(
+          "For unigram counts, items must be of the form WORD:COUNT, but %s seen"
+          format encoded.substring(start, item_end))
+      if (colon == start)
+        throw FileFormatException(
+          "For unigram counts, WORD in WORD:COUNT must not be empty, but %s seen"
+          format encoded.substring(start, item_end))
+      val count = parse_count(encoded, colon + 1, item_end)
+      words += endec_string_for_count_map_field.decode_slice(encoded, start,
+        colon)
+      counts += count
+      start = item_end + 1
     }
   }
 
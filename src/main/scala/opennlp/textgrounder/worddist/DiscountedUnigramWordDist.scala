@@ -218,6 +218,16 @@ abstract class DiscountedUnigramWordDist(
         format (this, normalization_factor, model.num_tokens, unseen_mass))
   }
 
+  /**
+   * Precompute the per-document parts of `fast_kl_divergence`; see
+   * `DiscountedUnigramKLDivergenceCache`.  The distribution must be
+   * finished.
+   */
+  override def get_kl_divergence_cache(): KLDivergenceCache = {
+    assert(finished)
+    FastDiscountedUnigramWordDist.get_kl_divergence_cache(this)
+  }
+
   def fast_kl_divergence(cache: KLDivergenceCache, other: WordDist,
       partial: Boolean = false) = {
     FastDiscountedUnigramWordDist.fast_kl_divergence(
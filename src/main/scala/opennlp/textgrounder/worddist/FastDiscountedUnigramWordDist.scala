@@ -42,12 +42,39 @@ import WordDist.memoizer.Word
   the moment in case we need to convert it to Java, C++, etc.
  */
 
+/**
+ * Everything about a (finished) document distribution that
+ * `fast_kl_divergence` needs and that doesn't depend on the distribution
+ * it's compared against: the words and counts, and for each word its
+ * overall probability, its smoothed probability p in the document, log p
+ * and p log p.  Then the inner loop only has to compute log q.  Created
+ * once per document when scoring it against all the cells, and read-only
+ * afterwards, so it can be shared by threads scoring different cells.
+ */
 class DiscountedUnigramKLDivergenceCache(
     val worddist: DiscountedUnigramWordDist
   ) extends KLDivergenceCache {
   val self_size = worddist.model.num_types
   val self_keys = worddist.model.iter_keys.toArray
   val self_values = worddist.model.iter_items.map { case (k,v) => v}.toArray
+  /** Whether the probabilities below were computed with interpolation. */
+  val interpolate = worddist.dufactory.interpolate
+  val self_owprobs = {
+    val owprobs = worddist.dufactory.overall_word_probs
+    self_keys.map(owprobs(_))
+  }
+  val self_probs = {
+    val pfact = (1.0 - worddist.unseen_mass)/worddist.model.num_tokens
+    val pfact_unseen = worddist.unseen_mass / worddist.overall_unseen_mass
+    if (interpolate)
+      (0 until self_size).map(i =>
+        self_values(i) * pfact + self_owprobs(i) * pfact_unseen).toArray
+    else
+      self_values.map(_ * pfact)
+  }
+  val self_log_probs = self_probs.map(log(_))
+  val self_plogp = (0 until self_size).map(i =>
+    self_probs(i) * self_log_probs(i)).toArray
 }
 
 object FastDiscountedUnigramWordDist {
@@ -80,11 +107,13 @@ object FastDiscountedUnigramWordDist {
         cache
     assert(the_cache.worddist == self)
     assert(the_cache.self_size == self.model.num_types)
+    assert(the_cache.interpolate == interpolate)
     val pkeys = the_cache.self_keys
-    val pvalues = the_cache.self_values
-    val pfact = (1.0 - self.unseen_mass)/self.model.num_tokens
-    val qfact = (1.0 - other.unseen_mass)/other.model.num_tokens
+    val pprobs = the_cache.self_probs
+    val pplogp = the_cache.self_plogp
+    val powprobs = the_cache.self_owprobs
     val pfact_unseen = self.unseen_mass / self.overall_unseen_mass
+    val qfact = (1.0 - other.unseen_mass)/other.model.num_tokens
     val qfact_unseen = other.unseen_mass / other.overall_unseen_mass
     val factory = self.dufactory
     /* Not needed in the new way
@@ -98,18 +127,21 @@ object FastDiscountedUnigramWordDist {
 
     // 1.
 
-    val psize = self.model.num_types
+    val psize = the_cache.self_size
 
-    // FIXME!! p * log(p) is the same for all calls of fast_kl_divergence
-    // on this item, so we could cache it.  Not clear it would save much
-    // time, though.
     var kldiv = 0.0
     /* THIS IS THE INSIDE LOOP.  THIS IS THE CODE BOTTLENECK.  THIS IS IT.
        
        This code needs to scream.  Hence we do extra setup above involving
        arrays, to avoid having a function call through a function
-       pointer (through the "obvious" use of forEach()). FIXME: But see
-       comment above.
+       pointer (through the "obvious" use of forEach()).  Everything that
+       only depends on `self` -- p, p log p and the overall probability of
+       each word -- comes precomputed from the cache, which is created once
+       per document rather than once per comparison; so all that's left
+       per word is looking it up in `other` and one log.  (Gathering the
+       q's into an array first, to get a loop over arrays only, doesn't
+       pay: the lookups cost far more than the rest, and HotSpot won't
+       vectorize log() anyway.)
       
        Note that HotSpot is good about inlining function calls.
        Hence we can assume that the calls to apply() below (e.g.
@@ -126,53 +158,32 @@ object FastDiscountedUnigramWordDist {
     var i = 0
     if (interpolate) {
       while (i < psize) {
-        val word = pkeys(i)
-        val pcount = pvalues(i)
-        val qcount = qmodel.get_item(word)
-        val owprob = owprobs(word)
-        val p = pcount * pfact + owprob * pfact_unseen
-        val q = qcount * qfact + owprob * qfact_unseen
+        val qcount = qmodel.get_item(pkeys(i))
+        val q = qcount * qfact + powprobs(i) * qfact_unseen
         /* In the "new way" we have to notice when a word was never seen
            at all, and ignore it. */
-        if (q > 0.0) {
-          //if (p == 0.0)
-          //  errprint("Warning: zero value: p=%s q=%s word=%s pcount=%s qcount=%s qfact=%s qfact_unseen=%s owprobs=%s",
-          //      p, q, word, pcount, qcount, qfact, qfact_unseen,
-          //      owprobs(word))
-          kldiv += p * (log(p) - log(q))
-        }
+        if (q > 0.0)
+          kldiv += pplogp(i) - pprobs(i) * log(q)
         i += 1
       }
     } else {
       while (i < psize) {
-        val word = pkeys(i)
-        val pcount = pvalues(i)
-        val p = pcount * pfact
         val q = {
-          val qcount = qmodel.get_item(word)
+          val qcount = qmodel.get_item(pkeys(i))
           if (qcount != 0) qcount * qfact
           else {
-            val owprob = owprobs(word)
             /* The old way:
             if (owprob != 0.0) owprob * qfact_unseen
             else qfact_globally_unseen_prob
             */
             /* The new way: No need for a globally unseen probability. */
-            owprob * qfact_unseen
+            powprobs(i) * qfact_unseen
           }
         }
         /* However, in the "new way" we have to notice when a word was never
            seen at all, and ignore it. */
-        if (q > 0.0) {
-          //if (q == 0.0)
-          //  errprint("Strange: word=%s qfact_globally_unseen_prob=%s qcount=%s qfact=%s",
-          //           word, qfact_globally_unseen_prob, qcount, qfact)
-          //if (p == 0.0 || q == 0.0)
-          //  errprint("Warning: zero value: p=%s q=%s word=%s pcount=%s qcount=%s qfact=%s qfact_unseen=%s owprobs=%s",
-          //      p, q, word, pcount, qcount, qfact, qfact_unseen,
-          //      owprobs(word))
-          kldiv += p * (log(p) - log(q))
-        }
+        if (q > 0.0)
+          kldiv += pplogp(i) - pprobs(i) * log(q)
         i += 1
       }
     }
@@ -74,6 +74,10 @@ abstract class Memoizer {
  * The memoizer we actually use.  Maps word strings to Ints.  Uses Trove
  * for extremely fast and memory-efficient hash tables, making use of the
  * Trove-Scala interface for easy access to the Trove hash tables.
+ *
+ * Documents may be read (and their words memoized) on one thread while
+ * results are output (and words unmemoized) on another, so the maps are
+ * only accessed while holding the memoizer's lock.
  */
 class IntStringMemoizer extends Memoizer {
   type Word = Int
@@ -91,7 +95,7 @@ class IntStringMemoizer extends Memoizer {
   //protected val id_word_map = mutable.Map[Word,String]()
   protected val id_word_map = trovescala.IntObjectMap[String]()
 
-  def memoize_string(word: String) = {
+  def memoize_string(word: String) = synchronized {
     val index = word_id_map.getOrElse(word, 0)
     if (index != 0) index
     else {
@@ -103,7 +107,7 @@ class IntStringMemoizer extends Memoizer {
     }
   }
 
-  def unmemoize_string(word: Word) = id_word_map(word)
+  def unmemoize_string(word: Word) = synchronized { id_word_map(word) }
 
   def create_word_int_map() = trovescala.IntIntMap()
   type WordIntMap = trovescala.IntIntMap
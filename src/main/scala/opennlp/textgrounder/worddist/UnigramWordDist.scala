@@ -52,32 +52,91 @@ class UnigramStorage extends ItemStorage[Word] {
    * code does interpolation on cells).  FIXME: This seems ugly, perhaps
    * there is a better way?
    */
-  val counts = create_word_double_map()
+  var counts = create_word_double_map()
   var tokens_accurate = true
   var num_tokens_val = 0.0
 
+  /**
+   * Once frozen (see `freeze`), the words in increasing order and their
+   * counts, replacing `counts`, which is then null.
+   */
+  protected var frozen_keys: Array[Word] = null
+  protected var frozen_values: Array[Double] = null
+
+  def frozen = frozen_keys != null
+
+  /**
+   * Convert `counts` to parallel sorted arrays of words and counts, and
+   * disallow further changes.  This takes under half the memory of the
+   * hash table; lookups then use binary search.  The token count is
+   * computed beforehand.
+   */
+  def freeze() {
+    if (!frozen) {
+      num_tokens
+      val keys = counts.keys.toArray
+      java.util.Arrays.sort(keys)
+      frozen_values = keys.map(counts(_))
+      frozen_keys = keys
+      counts = null
+    }
+  }
+
+  /**
+   * Set an empty table to the frozen state directly, given the words in
+   * increasing order, their counts and the total token count (e.g. when
+   * loading a saved model).  The arrays are used as-is, not copied.
+   */
+  def set_frozen(keys: Array[Word], values: Array[Double], tokens: Double) {
+    assert(!frozen && counts.size == 0)
+    assert(keys.length == values.length)
+    frozen_keys = keys
+    frozen_values = values
+    num_tokens_val = tokens
+    tokens_accurate = true
+    counts = null
+  }
+
   def add_item(item: Word, count: Double) {
+    assert(!frozen, "Can't change a frozen distribution")
     counts(item) += count
     num_tokens_val += count
   }
 
   def set_item(item: Word, count: Double) {
+    assert(!frozen, "Can't change a frozen distribution")
     counts(item) = count
     tokens_accurate = false
   }
 
   def remove_item(item: Word) {
+    assert(!frozen, "Can't change a frozen distribution")
     counts -= item
     tokens_accurate = false
   }
 
-  def contains(item: Word) = counts contains item
+  def contains(item: Word) = {
+    if (frozen) java.util.Arrays.binarySearch(frozen_keys, item) >= 0
+    else counts contains item
+  }
 
-  def get_item(item: Word) = counts(item)
+  def get_item(item: Word) = {
+    if (frozen) {
+      val index = java.util.Arrays.binarySearch(frozen_keys, item)
+      if (index >= 0) frozen_values(index) else 0.0
+    } else counts(item)
+  }
 
-  def iter_items = counts.toIterable
+  def iter_items: Iterable[(Word, Double)] = {
+    if (frozen)
+      (0 until frozen_keys.length).view.map(i => (frozen_keys(i), frozen_values(i)))
+    else counts.toIterable
+  }
 
-  def iter_keys = counts.keys
+  def iter_keys: Iterable[Word] = {
+    if (frozen) frozen_keys.toIterable
+    else counts.keys
+  }
 
   def num_tokens = {
     if (!tokens_accurate) {
@@ -87,7 +146,7 @@ class UnigramStorage extends ItemStorage[Word] {
     num_tokens_val
   }
 
-  def num_types = counts.size
+  def num_types = if (frozen) frozen_keys.length else counts.size
 }
 
 /**
@@ -110,6 +169,11 @@ abstract class UnigramWordDist(
   val pmodel = new UnigramStorage()
   val model = pmodel
 
+  override def freeze() {
+    super.freeze()
+    model.freeze()
+  }
+
   def innerToString: String
 
   override def toString = {
@@ -260,18 +324,49 @@ class DefaultUnigramWordDistConstructor(
    */
   protected val raw_keys_set = mutable.Set[String]()
 
+  /* Counts decoded ahead of time for the string `predecoded_countstr`,
+     as a pair of (words, counts) DynamicArrays; see
+     `use_predecoded_counts`. */
+  protected var predecoded_countstr: String = null
+  protected var predecoded_counts: (DynamicArray[String], DynamicArray[Int]) =
+    null
+
+  override def predecode_counts(countstr: String): AnyRef = {
+    val words = new DynamicArray[String]()
+    val counts = new DynamicArray[Int]()
+    textdbutil.decode_count_map_into(countstr, words, counts)
+    (words, counts)
+  }
+
+  override def use_predecoded_counts(countstr: String, decoded: AnyRef) {
+    predecoded_countstr = countstr
+    predecoded_counts =
+      decoded.asInstanceOf[(DynamicArray[String], DynamicArray[Int])]
+  }
+
   protected def parse_counts(countstr: String) {
     keys_dynarr.clear()
     values_dynarr.clear()
     raw_keys_set.clear()
-    for ((word, count) <- textdbutil.decode_count_map(countstr)) {
+    if (predecoded_countstr eq countstr) {
+      val (words, counts) = predecoded_counts
+      keys_dynarr.ensure_at_least(words.length)
+      values_dynarr.ensure_at_least(words.length)
+      System.arraycopy(words.array, 0, keys_dynarr.array, 0, words.length)
+      System.arraycopy(counts.array, 0, values_dynarr.array, 0, words.length)
+      keys_dynarr.length = words.length
+      values_dynarr.length = words.length
+    } else
+      textdbutil.decode_count_map_into(countstr, keys_dynarr, values_dynarr)
+    predecoded_countstr = null
+    predecoded_counts = null
+    for (i <- 0 until keys_dynarr.length) {
+      val word = keys_dynarr.array(i)
       /* FIXME: Is this necessary? */
       if (raw_keys_set contains word)
         throw FileFormatException(
           "Word %s seen twice in same counts list" format word)
       raw_keys_set += word
-      keys_dynarr += word
-      values_dynarr += count
     }
   }
 
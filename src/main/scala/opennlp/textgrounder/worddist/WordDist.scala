@@ -205,6 +205,23 @@ abstract class WordDistConstructor(factory: WordDistFactory) {
    */
   def initialize_distribution(doc: GDoc[_], countstr: String,
       is_training_set: Boolean)
+
+  /**
+   * Decode the field describing a distribution (as passed to
+   * `initialize_distribution`) ahead of time, returning an object to pass
+   * to `use_predecoded_counts`, or null if the constructor can't do that.
+   * Unlike the rest of the constructor, this must be thread-safe, so that
+   * documents can be decoded on worker threads while earlier ones are
+   * being added to the cell grid.
+   */
+  def predecode_counts(countstr: String): AnyRef = null
+
+  /**
+   * Supply the result of `predecode_counts` for `countstr`, to be used by
+   * the next call to `initialize_distribution` if it's given the very same
+   * string.  By default, ignored.
+   */
+  def use_predecoded_counts(countstr: String, decoded: AnyRef) { }
 }
 
 class KLDivergenceCache {
@@ -405,6 +422,16 @@ abstract class WordDist(factory: WordDistFactory,
     finished = true
   }
 
+  /**
+   * Convert the distribution to a more compact, read-only representation,
+   * once it's known that it won't change any more (e.g. the distribution of
+   * a cell once the cell grid is finished).  Lookups must work the same
+   * afterwards.  By default, does nothing.
+   */
+  def freeze() {
+    assert(finished)
+  }
+
   def dunning_log_likelihood_1(a: Double, b: Double, c: Double, d: Double) = {
     val cprime = a+c
     val dprime = b+d
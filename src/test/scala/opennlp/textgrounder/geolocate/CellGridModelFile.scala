@@ -0,0 +1,163 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2012 Ben Wing, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.geolocate
+
+import java.io._
+
+import org.specs._
+import org.specs.runner._
+
+import opennlp.textgrounder.util.argparser.ArgParser
+import opennlp.textgrounder.util.ioutil.FileFormatException
+import opennlp.textgrounder.worddist._
+import opennlp.textgrounder.worddist.WordDist.memoizer._
+
+class CellGridModelFileTest extends JUnit4(CellGridModelFileSpec)
+object CellGridModelFileSpec extends Specification {
+
+  /* A small training corpus: documents in a few cells, one of which only
+   * has a document without words. */
+  val corpus = File.createTempFile("model-test", "")
+  corpus.delete()
+  corpus.mkdir()
+  corpus.deleteOnExit()
+
+  def write_file(name: String, lines: String*) = {
+    val file = new File(corpus, name)
+    file.deleteOnExit()
+    val out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))
+    lines.foreach(out.println)
+    out.close()
+    file
+  }
+
+  write_file("test-training-unigram-counts-schema.txt",
+    "title\tcoord\tcounts", "split\ttraining", "corpus-type\tgeneric")
+  write_file("test-training-unigram-counts.txt",
+    "austin\t30.27,-97.74\tcapitol:3 river:1 texas:2",
+    "round rock\t30.51,-97.68\ttexas:1 suburb:2",
+    "houston\t29.76,-95.37\tbayou:2 texas:4 port:1",
+    "paris\t48.86,2.35\triver:2 seine:3 louvre:1",
+    "nowhere\t-45.5,170.5\t")
+  val stopwords = write_file("stopwords.txt")
+
+  val model = File.createTempFile("model-test", ".tgcm")
+  model.deleteOnExit()
+
+  def setup_grid(args: String*) = {
+    val parser = new ArgParser("geolocate-document")
+    new GeolocateDocumentParameters(parser)
+    val stopword_args =
+      if (args contains "--stopwords-file") Seq()
+      else Seq("--stopwords-file", stopwords.getPath)
+    parser.parse((Seq("--input-corpus", corpus.getPath) ++ stopword_args ++
+      args).toArray)
+    val driver = new GeolocateDocumentDriver
+    driver.set_parameters(new GeolocateDocumentParameters(parser))
+    driver.setup_for_run()
+    driver.cell_grid.asInstanceOf[MultiRegularCellGrid]
+  }
+
+  val saved = setup_grid("--degrees-per-cell", "1",
+    "--save-model", model.getPath)
+  val loaded = setup_grid("--degrees-per-cell", "1",
+    "--load-model", model.getPath)
+
+  def dist_of(cell: MultiRegularCell) =
+    cell.combined_dist.word_dist.asInstanceOf[DiscountedUnigramWordDist]
+
+  def word_counts(cell: MultiRegularCell) =
+    dist_of(cell).model.iter_items.map {
+      case (word, count) => (unmemoize_string(word), count)
+    }.toMap
+
+  def same(x: Double, y: Double) = x == y || (x.isNaN && y.isNaN)
+
+  "A saved cell grid" should {
+    "load back with the same cells" in {
+      loaded.corner_to_multi_cell.keySet must_== saved.corner_to_multi_cell.keySet
+      loaded.corner_to_multi_cell.size must_== 4
+    }
+
+    "load back with the same cell bounds" in {
+      saved.corner_to_multi_cell.forall { case (index, cell) =>
+        val other = loaded.corner_to_multi_cell(index)
+        other.get_southwest_coord() == cell.get_southwest_coord() &&
+          other.get_northeast_coord() == cell.get_northeast_coord()
+      } must beTrue
+    }
+
+    "load back with the same word counts" in {
+      saved.corner_to_multi_cell.forall { case (index, cell) =>
+        word_counts(loaded.corner_to_multi_cell(index)) == word_counts(cell)
+      } must beTrue
+    }
+
+    "load back with the same document counts and smoothing" in {
+      saved.corner_to_multi_cell.forall { case (index, cell) =>
+        val other = loaded.corner_to_multi_cell(index)
+        val dist = dist_of(cell)
+        val other_dist = dist_of(other)
+        other.combined_dist.num_docs_for_word_dist == cell.combined_dist.num_docs_for_word_dist &&
+          same(other_dist.unseen_mass, dist.unseen_mass) &&
+          same(other_dist.normalization_factor, dist.normalization_factor) &&
+          same(other_dist.model.num_tokens, dist.model.num_tokens)
+      } must beTrue
+    }
+
+    "keep a cell whose documents have no words" in {
+      val empty = saved.corner_to_multi_cell.values.filter(
+        dist_of(_).model.num_types == 0)
+      empty.size must_== 1
+      empty.forall { cell =>
+        val other = loaded.corner_to_multi_cell(cell.index)
+        other.combined_dist.num_docs_for_word_dist == 1 &&
+          dist_of(other).model.num_types == 0
+      } must beTrue
+    }
+
+    "load back with the same most popular documents" in {
+      saved.corner_to_multi_cell.forall { case (index, cell) =>
+        val other = loaded.corner_to_multi_cell(index)
+        other.mostpopdoc_links == cell.mostpopdoc_links &&
+          (other.most_popular_document == null) ==
+            (cell.most_popular_document == null) &&
+          (cell.most_popular_document == null ||
+            (other.most_popular_document.title ==
+              cell.most_popular_document.title &&
+             other.most_popular_document.coord ==
+              cell.most_popular_document.coord))
+      } must beTrue
+    }
+
+    "refuse to load with a different grid size" in {
+      setup_grid("--degrees-per-cell", "2",
+        "--load-model", model.getPath) must throwA[FileFormatException]
+    }
+
+    "refuse to load with different stopwords" in {
+      val other_stopwords = write_file("other-stopwords.txt", "texas")
+      setup_grid("--degrees-per-cell", "1",
+        "--stopwords-file", other_stopwords.getPath,
+        "--load-model", model.getPath) must throwA[FileFormatException]
+    }
+
+    "load back with the same grid totals" in {
+      loaded.total_num_cells must_== saved.total_num_cells
+      loaded.num_non_empty_cells must_== saved.num_non_empty_cells
+    }
+  }
+}
@@ -0,0 +1,108 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.topo
+
+import scala.collection.JavaConversions._
+import scala.util.Random
+
+import org.specs._
+import org.specs.runner._
+
+import opennlp.textgrounder.tr.topo._
+import opennlp.textgrounder.tr.util.FastTrig
+
+class DistanceTest extends JUnit4(DistanceSpec)
+object DistanceSpec extends Specification {
+
+  /* The law-of-cosines distance that Coordinate used before unit vectors. */
+  def lawOfCosines(a: Coordinate, b: Coordinate) =
+    if (a == b) 0.0
+    else math.acos(math.sin(a.getLat) * math.sin(b.getLat) +
+                   math.cos(a.getLat) * math.cos(b.getLat) * math.cos(b.getLng - a.getLng))
+
+  def randomCoordinate(random: Random) =
+    Coordinate.fromDegrees(random.nextDouble * 180 - 90, random.nextDouble * 360 - 180)
+
+  def randomRegion(random: Random) = {
+    val coordinates = new java.util.ArrayList[Coordinate]
+    (1 to 5).foreach(_ => coordinates.add(randomCoordinate(random)))
+    new PointSetRegion(coordinates)
+  }
+
+  val random = new Random(42)
+  val pairs = (1 to 100000).map(_ => (randomCoordinate(random), randomCoordinate(random)))
+
+  "The unit-vector distance" should {
+    "agree with the law of cosines to within 1e-7 radians" in {
+      pairs.map { case (a, b) => math.abs(a.distance(b) - lawOfCosines(a, b)) }.max must be_<=(1e-7)
+    }
+
+    "be zero between equal coordinates" in {
+      pairs.forall { case (a, _) => a.distance(Coordinate.fromRadians(a.getLat, a.getLng)) == 0.0 } must beTrue
+    }
+
+    "not be NaN for coordinates a few meters apart" in {
+      val a = Coordinate.fromDegrees(30.2672, -97.7431)
+      val b = Coordinate.fromDegrees(30.2672, -97.74309)
+      a.distance(b).isNaN must beFalse
+    }
+  }
+
+  "The approximate arc cosine" should {
+    "be within 3e-8 of Math.acos on [-1, 1]" in {
+      (-100000 to 100000).map { i =>
+        val x = i / 100000.0
+        math.abs(FastTrig.acosApprox(x) - math.acos(x))
+      }.max must be_<=(3e-8)
+    }
+
+    "clamp arguments just outside [-1, 1]" in {
+      FastTrig.acosApprox(1.0 + 1e-15) must_== 0.0
+      FastTrig.acosApprox(-1.0 - 1e-15) must_== math.Pi
+    }
+
+    "give region distances within 3e-8 of the exact ones" in {
+      val regions = (1 to 1000).map(_ => randomRegion(random))
+      regions.zip(regions.tail).map { case (a, b) =>
+        math.abs(a.approxDistance(b) - a.distance(b))
+      }.max must be_<=(3e-8)
+    }
+  }
+
+  "A region distance" should {
+    val regions = (1 to 1000).map(_ => randomRegion(random))
+
+    "be the minimum over all pairs of representatives" in {
+      regions.zip(regions.tail).forall { case (a, b) =>
+        val brute = (for (x <- a.getRepresentatives; y <- b.getRepresentatives)
+                     yield lawOfCosines(x, y)).min
+        math.abs(a.distance(b) - brute) <= 1e-7
+      } must beTrue
+    }
+
+    "be the minimum over all representatives for a coordinate" in {
+      regions.forall { region =>
+        val c = randomCoordinate(random)
+        val brute = region.getRepresentatives.map(lawOfCosines(_, c)).min
+        math.abs(region.distance(c) - brute) <= 1e-7
+      } must beTrue
+    }
+
+    "be infinite when a region has no representatives" in {
+      new PointSetRegion(new java.util.ArrayList[Coordinate]).distance(regions.head) must_== Double.PositiveInfinity
+    }
+  }
+}
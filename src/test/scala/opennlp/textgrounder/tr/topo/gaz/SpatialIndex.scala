@@ -0,0 +1,148 @@
+///////////////////////////////////////////////////////////////////////////////
+//  Copyright (C) 2010 Travis Brown, The University of Texas at Austin
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//  See the License for the specific language governing permissions and
+//  limitations under the License.
+///////////////////////////////////////////////////////////////////////////////
+package opennlp.textgrounder.tr.topo.gaz
+
+import scala.collection.JavaConversions._
+import scala.util.Random
+
+import org.specs._
+import org.specs.runner._
+
+import opennlp.textgrounder.tr.topo._
+import opennlp.textgrounder.tr.util.TopoUtil
+
+class SpatialIndexTest extends JUnit4(SpatialIndexSpec)
+object SpatialIndexSpec extends Specification {
+
+  val random = new Random(42)
+
+  def randomCoordinate =
+    Coordinate.fromDegrees(random.nextDouble * 180 - 90, random.nextDouble * 360 - 180)
+
+  /* Mostly ordinary locations, with some that have no points or a NaN point. */
+  def randomLocation(id: Int) = {
+    val coordinates = new java.util.ArrayList[Coordinate]
+    random.nextInt(10) match {
+      case 0 =>
+      case 1 =>
+        coordinates.add(randomCoordinate)
+        coordinates.add(Coordinate.fromRadians(Double.NaN, Double.NaN))
+      case _ =>
+        (0 to random.nextInt(4)).foreach(_ => coordinates.add(randomCoordinate))
+    }
+    new Location(id, "loc" + id, new PointSetRegion(coordinates))
+  }
+
+  /* Boxes of all sizes, some wrapping around the antimeridian. */
+  def randomBox = {
+    val lat1 = random.nextDouble * 180 - 90
+    val lat2 = random.nextDouble * 180 - 90
+    val width = random.nextDouble * (if (random.nextBoolean) 20 else 360)
+    val minLng = random.nextDouble * 360 - 180
+    val maxLng = if (minLng + width > 180) minLng + width - 360 else minLng + width
+    RectRegion.fromDegrees(math.min(lat1, lat2), math.max(lat1, lat2), minLng, maxLng)
+  }
+
+  /* Random centers, plus centers near the poles and the antimeridian. */
+  def randomCenter = random.nextInt(4) match {
+    case 0 => Coordinate.fromDegrees(90 - random.nextDouble, random.nextDouble * 360 - 180)
+    case 1 => Coordinate.fromDegrees(random.nextDouble - 90, random.nextDouble * 360 - 180)
+    case 2 => Coordinate.fromDegrees(random.nextDouble * 180 - 90,
+                                     (if (random.nextBoolean) 1 else -1) * (180 - random.nextDouble))
+    case _ => randomCoordinate
+  }
+
+  val locations = new java.util.ArrayList[Location]
+  (0 until 5000).foreach(id => locations.add(randomLocation(id)))
+  val index = new SpatialIndex(locations)
+  val boxes = (1 to 200).map(_ => randomBox)
+  val centers = (1 to 200).map(_ => randomCenter)
+
+  /* The cosine of the angle to a location's nearest non-NaN point, computed as
+   * SpatialIndex does, or None if it has no such point. */
+  def bestCos(center: Coordinate, loc: Location) = {
+    val points = loc.getRegion.getRepresentatives.filterNot(p => p.getLat.isNaN || p.getLng.isNaN)
+    if (points.isEmpty) None
+    else Some(points.map(p => math.sin(center.getLat) * math.sin(p.getLat)
+      + math.cos(center.getLat) * math.cos(p.getLat) * math.cos(p.getLng - center.getLng)).max)
+  }
+
+  def bruteForceWithin(center: Coordinate, radiusKm: Double) = {
+    val minCos = math.cos(radiusKm / 6372.8)
+    locations.filter(loc => bestCos(center, loc).exists(_ >= minCos)).toList
+  }
+
+  def bruteForceNearest(center: Coordinate, k: Int) =
+    locations.toList.zipWithIndex.flatMap { case (loc, idx) =>
+      bestCos(center, loc).map(cos => (math.acos(math.min(1.0, cos)), idx, loc))
+    }.sortBy(hit => (hit._1, hit._2)).take(k).map(_._3)
+
+  "A spatial index" should {
+    "find the same locations in a box as TopoUtil.filter" in {
+      boxes.forall { box =>
+        index.getLocationsInBox(box).toList == TopoUtil.filter(locations, box).toList
+      } must beTrue
+    }
+
+    "keep locations without representatives, as TopoUtil.filter does" in {
+      val empty = locations.filter(_.getRegion.getRepresentatives.isEmpty)
+      empty.isEmpty must beFalse
+      boxes.forall(box => empty.forall(loc => index.getIdsInBox(box).get(loc.getId))) must beTrue
+    }
+
+    "drop locations with a NaN point" in {
+      val withNaN = locations.filter(_.getRegion.getRepresentatives.exists(_.getLat.isNaN))
+      boxes.forall(box => withNaN.forall(loc => !index.getIdsInBox(box).get(loc.getId))) must beTrue
+    }
+
+    "find the same locations within a radius as a brute-force scan" in {
+      centers.forall { center =>
+        List(50.0, 500.0, 5000.0).forall { radiusKm =>
+          index.getLocationsWithin(center, radiusKm).toList == bruteForceWithin(center, radiusKm)
+        }
+      } must beTrue
+    }
+
+    "find the same nearest locations as a brute-force scan" in {
+      centers.forall { center =>
+        List(1, 5, 50).forall(k => index.getNearest(center, k).toList == bruteForceNearest(center, k))
+      } must beTrue
+    }
+
+    "never find locations without representatives near a point" in {
+      centers.forall { center =>
+        index.getNearest(center, 50).forall(!_.getRegion.getRepresentatives.isEmpty) &&
+          index.getLocationsWithin(center, 5000.0).forall(!_.getRegion.getRepresentatives.isEmpty)
+      } must beTrue
+    }
+
+    "find locations with a NaN point by their other points" in {
+      val withNaN = locations.filter(_.getRegion.getRepresentatives.exists(_.getLat.isNaN)).toSet
+      centers.exists(center => index.getLocationsWithin(center, 5000.0).exists(withNaN)) must beTrue
+    }
+
+    "filter candidate lists by id the same way as by points" in {
+      // Candidates without an id fall back to checking their points.
+      val candidates = new java.util.ArrayList[Location]
+      (0 until 100).foreach(_ => candidates.add(locations.get(random.nextInt(locations.size))))
+      (0 until 20).foreach(_ => candidates.add(randomLocation(-1)))
+      boxes.forall { box =>
+        TopoUtil.filter(candidates, index.getIdsInBox(box), box).toList ==
+          TopoUtil.filter(candidates, box).toList
+      } must beTrue
+    }
+  }
+}